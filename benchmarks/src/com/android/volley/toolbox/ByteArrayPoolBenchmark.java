@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The buffer pools and {@link PoolingByteArrayOutputStream} shared by several network dispatchers.
+ * Run with {@code -t 4}, {@code -t 8} or {@code -t 16} to change the contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+public class ByteArrayPoolBenchmark {
+
+    /** Sizes asked by BasicNetwork and PoolingByteArrayOutputStream. */
+    private static final int[] SIZES = { 256, 1024, 2048, 4096 };
+
+    /** The default pool size of BasicNetwork. */
+    private static final int POOL_SIZE = 4096;
+
+    @Param({ "locked", "bucketed" })
+    public String pool;
+
+    @Param({ "16384" })
+    public int bodySize;
+
+    private ByteArrayPool mPool;
+    private byte[] mChunk;
+
+    @Setup
+    public void setUp() {
+        mPool = "bucketed".equals(pool)
+                ? new BucketedByteArrayPool(POOL_SIZE) : new ByteArrayPool(POOL_SIZE);
+        mChunk = new byte[1024];
+    }
+
+    @Benchmark
+    public byte[] getAndReturn() {
+        byte[] buf = mPool.getBuf(SIZES[ThreadLocalRandom.current().nextInt(SIZES.length)]);
+        mPool.returnBuf(buf);
+        return buf;
+    }
+
+    /**
+     * Copies a response body the way BasicNetwork does.
+     */
+    @Benchmark
+    public byte[] outputStream() throws IOException {
+        PoolingByteArrayOutputStream bytes = new PoolingByteArrayOutputStream(mPool, 256);
+        byte[] buffer = mPool.getBuf(1024);
+        try {
+            for (int written = 0; written < bodySize; written += mChunk.length) {
+                System.arraycopy(mChunk, 0, buffer, 0, mChunk.length);
+                bytes.write(buffer, 0, mChunk.length);
+            }
+            return bytes.toByteArray();
+        } finally {
+            mPool.returnBuf(buffer);
+            bytes.close();
+        }
+    }
+}
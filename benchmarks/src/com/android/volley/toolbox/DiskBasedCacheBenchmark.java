@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads, writes and reloads of a {@link DiskBasedCache} holding 1k or 10k entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DiskBasedCacheBenchmark {
+
+    @Param({ "1000", "10000" })
+    public int entries;
+
+    @Param({ "2048" })
+    public int entrySize;
+
+    private File mRootDirectory;
+    private DiskBasedCache mCache;
+    private String[] mKeys;
+    private Cache.Entry mEntry;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mRootDirectory = File.createTempFile("volley-bench", "");
+        mRootDirectory.delete();
+        mCache = new DiskBasedCache(mRootDirectory, Integer.MAX_VALUE);
+        mCache.initialize();
+
+        mEntry = makeEntry(entrySize);
+        mKeys = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            mKeys[i] = "http://example.com/api/items/" + i + "?page=" + (i % 10);
+            mCache.put(mKeys[i], mEntry);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mCache.clear();
+        mRootDirectory.delete();
+    }
+
+    @Benchmark
+    public Cache.Entry get() {
+        return mCache.get(randomKey());
+    }
+
+    @Benchmark
+    public void put() {
+        // Replaces an existing entry, so the cache keeps the same size.
+        mCache.put(randomKey(), mEntry);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public DiskBasedCache initialize() {
+        DiskBasedCache cache = new DiskBasedCache(mRootDirectory, Integer.MAX_VALUE);
+        cache.initialize();
+        return cache;
+    }
+
+    private String randomKey() {
+        return mKeys[ThreadLocalRandom.current().nextInt(mKeys.length)];
+    }
+
+    static Cache.Entry makeEntry(int size) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[size];
+        new Random(42).nextBytes(entry.data);
+        entry.etag = "\"5d8c72a5edda8d6a\"";
+        entry.serverDate = System.currentTimeMillis();
+        entry.ttl = entry.serverDate + TimeUnit.DAYS.toMillis(1);
+        entry.softTtl = entry.serverDate + TimeUnit.HOURS.toMillis(1);
+        entry.responseHeaders = Collections.singletonMap("Content-Type",
+                "application/json; charset=UTF-8");
+        return entry;
+    }
+}
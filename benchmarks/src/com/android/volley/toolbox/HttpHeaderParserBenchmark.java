@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+import com.android.volley.NetworkResponse;
+
+import org.apache.http.impl.cookie.DateUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the caching headers of every network response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HttpHeaderParserBenchmark {
+
+    private NetworkResponse mMaxAgeResponse;
+    private NetworkResponse mExpiresResponse;
+
+    @Setup
+    public void setUp() {
+        long now = System.currentTimeMillis();
+
+        Map<String, String> headers = commonHeaders(now);
+        headers.put("Cache-Control", "public, max-age=3600, must-revalidate");
+        mMaxAgeResponse = new NetworkResponse(200, new byte[0], headers, false);
+
+        headers = commonHeaders(now);
+        headers.put("Expires", DateUtils.formatDate(new Date(now + 3600 * 1000)));
+        mExpiresResponse = new NetworkResponse(200, new byte[0], headers, false);
+    }
+
+    @Benchmark
+    public Cache.Entry parseMaxAge() {
+        return HttpHeaderParser.parseCacheHeaders(mMaxAgeResponse);
+    }
+
+    @Benchmark
+    public Cache.Entry parseExpires() {
+        return HttpHeaderParser.parseCacheHeaders(mExpiresResponse);
+    }
+
+    @Benchmark
+    public String parseCharset() {
+        return HttpHeaderParser.parseCharset(mMaxAgeResponse.headers, "UTF-8");
+    }
+
+    private static Map<String, String> commonHeaders(long now) {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Date", DateUtils.formatDate(new Date(now)));
+        headers.put("Content-Type", "application/json; charset=UTF-8");
+        headers.put("ETag", "\"5d8c72a5edda8d6a\"");
+        headers.put("Server", "nginx");
+        headers.put("Vary", "Accept-Encoding");
+        return headers;
+    }
+}
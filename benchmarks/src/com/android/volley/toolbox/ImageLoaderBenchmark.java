@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The memory cache key computed for every image bound to a view.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ImageLoaderBenchmark {
+
+    private String mUrl =
+            "http://images.example.com/photos/2014/11/04/a8f5f167f44f4964e6c998dee827110c.jpg";
+    private int mMaxWidth = 720;
+    private int mMaxHeight = 1280;
+
+    @Benchmark
+    public String getCacheKey() {
+        return ImageLoader.getCacheKey(mUrl, mMaxWidth, mMaxHeight);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.sedona.volley.manager;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Json parsing of a response body by {@link RequestBuilder}, from a byte array and from a stream,
+ * compared with parsing it from a String as done before. The larger payloads show the cost of
+ * the intermediate String.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParseDataBenchmark {
+
+    private static final Type ITEMS_TYPE = new TypeToken<List<Item>>() { }.getType();
+
+    /** Size of the Json array in bytes: about 10 and 1000 items, then 1MB and 10MB. */
+    @Param({ "1200", "120000", "1048576", "10485760" })
+    public int payloadBytes;
+
+    private Gson mGson;
+    private BenchmarkRequest mRequest;
+    private byte[] mData;
+
+    @Setup
+    public void setUp() throws UnsupportedEncodingException {
+        mGson = new Gson();
+        RequestBuilder.setGson(mGson);
+        mRequest = new BenchmarkRequest();
+
+        StringBuilder json = new StringBuilder(payloadBytes + 256);
+        json.append('[');
+        for (int i = 0; json.length() < payloadBytes; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":").append(i)
+                    .append(",\"name\":\"Item n\u00b0").append(i)
+                    .append("\",\"description\":\"Lorem ipsum dolor sit amet, consectetur\"")
+                    .append(",\"price\":").append(i * 1.5)
+                    .append(",\"available\":").append(i % 2 == 0).append('}');
+        }
+        mData = json.append(']').toString().getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public List<Item> parseString() throws UnsupportedEncodingException {
+        return mGson.fromJson(new String(mData, RequestBuilder.DEFAULT_CHARSET), ITEMS_TYPE);
+    }
+
+    @Benchmark
+    public List<Item> parseBytes() {
+        return mRequest.parseData(ITEMS_TYPE, mData, RequestBuilder.DEFAULT_CHARSET);
+    }
+
+    @Benchmark
+    public List<Item> parseStream() throws IOException {
+        return mRequest.parseData(ITEMS_TYPE, new ByteArrayInputStream(mData),
+                RequestBuilder.DEFAULT_CHARSET);
+    }
+
+    static class BenchmarkRequest extends RequestBuilder<List<Item>, Object> {
+        BenchmarkRequest() {
+            super(RequestBuilder.GET, "http://example.com/api/items");
+        }
+    }
+
+    static class Item {
+        int id;
+        String name;
+        String description;
+        double price;
+        boolean available;
+    }
+}
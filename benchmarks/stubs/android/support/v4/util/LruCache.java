@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.v4.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * JVM stand-in for the support library cache, so that the library compiles without it. The size
+ * limit is counted with {@link #sizeOf(Object, Object)} like the original.
+ */
+public class LruCache<K, V> {
+    private final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(0, 0.75f, true);
+    private final int maxSize;
+    private int size;
+
+    public LruCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+    }
+
+    protected V create(K key) {
+        return null;
+    }
+
+    public final synchronized V get(K key) {
+        V value = map.get(key);
+        if (value == null) {
+            value = create(key);
+            if (value != null) {
+                put(key, value);
+            }
+        }
+        return value;
+    }
+
+    public final synchronized V put(K key, V value) {
+        size += sizeOf(key, value);
+        V previous = map.put(key, value);
+        if (previous != null) {
+            size -= sizeOf(key, previous);
+            entryRemoved(false, key, previous, value);
+        }
+        trimToSize(maxSize);
+        return previous;
+    }
+
+    public final synchronized V remove(K key) {
+        V previous = map.remove(key);
+        if (previous != null) {
+            size -= sizeOf(key, previous);
+            entryRemoved(false, key, previous, null);
+        }
+        return previous;
+    }
+
+    public final void evictAll() {
+        trimToSize(-1);
+    }
+
+    public final synchronized int size() {
+        return size;
+    }
+
+    public final synchronized int maxSize() {
+        return maxSize;
+    }
+
+    private synchronized void trimToSize(int max) {
+        while (size > max && !map.isEmpty()) {
+            Map.Entry<K, V> eldest = map.entrySet().iterator().next();
+            map.remove(eldest.getKey());
+            size -= sizeOf(eldest.getKey(), eldest.getValue());
+            entryRemoved(true, eldest.getKey(), eldest.getValue(), null);
+        }
+    }
+}
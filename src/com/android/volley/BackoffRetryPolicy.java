@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.Random;
+
+/**
+ * Retry policy waiting between attempts. The wait before the n-th retry is picked at random
+ * between 0 and baseDelayMs * 2^(n-1), capped to maxDelayMs ("full jitter"), so that clients
+ * failing at the same time do not retry at the same time.
+ *
+ * <p>The wait does not hold a network dispatcher: {@link com.android.volley.toolbox.BasicNetwork}
+ * throws a {@link RetryLaterError} and the dispatcher adds the request back to its queue once
+ * the wait is over. Besides timeouts and authentication failures, server errors (5xx) and
+ * connection failures are retried with this policy.</p>
+ */
+public class BackoffRetryPolicy extends DefaultRetryPolicy {
+    /** The default wait before the first retry, at most. */
+    public static final int DEFAULT_BASE_DELAY_MS = 500;
+
+    /** The default maximum wait before a retry. */
+    public static final int DEFAULT_MAX_DELAY_MS = 30 * 1000;
+
+    private final int mBaseDelayMs;
+    private final int mMaxDelayMs;
+    private final Random mRandom;
+
+    /** The wait before the next attempt. */
+    private long mRetryDelayMs;
+
+    /**
+     * Constructs a new retry policy with the default delays.
+     * @param initialTimeoutMs The initial timeout for the policy.
+     * @param maxNumRetries The maximum number of retries.
+     */
+    public BackoffRetryPolicy(int initialTimeoutMs, int maxNumRetries) {
+        this(initialTimeoutMs, maxNumRetries, DEFAULT_BACKOFF_MULT, DEFAULT_BASE_DELAY_MS,
+                DEFAULT_MAX_DELAY_MS);
+    }
+
+    /**
+     * Constructs a new retry policy.
+     * @param initialTimeoutMs The initial timeout for the policy.
+     * @param maxNumRetries The maximum number of retries.
+     * @param backoffMultiplier Backoff multiplier for the timeout.
+     * @param baseDelayMs Maximum wait before the first retry.
+     * @param maxDelayMs Maximum wait before any retry.
+     */
+    public BackoffRetryPolicy(int initialTimeoutMs, int maxNumRetries, float backoffMultiplier,
+            int baseDelayMs, int maxDelayMs) {
+        this(initialTimeoutMs, maxNumRetries, backoffMultiplier, baseDelayMs, maxDelayMs,
+                new Random());
+    }
+
+    BackoffRetryPolicy(int initialTimeoutMs, int maxNumRetries, float backoffMultiplier,
+            int baseDelayMs, int maxDelayMs, Random random) {
+        super(initialTimeoutMs, maxNumRetries, backoffMultiplier);
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mRandom = random;
+    }
+
+    /**
+     * Prepares for the next retry by applying a backoff to the timeout and picking the wait
+     * before it.
+     * @param error The error code of the last attempt.
+     */
+    @Override
+    public void retry(VolleyError error) throws VolleyError {
+        super.retry(error);
+        long cap = mBaseDelayMs;
+        for (int i = 1; i < getCurrentRetryCount() && cap < mMaxDelayMs; i++) {
+            cap *= 2;
+        }
+        cap = Math.min(cap, mMaxDelayMs);
+        mRetryDelayMs = (long) (mRandom.nextDouble() * cap);
+    }
+
+    /**
+     * Returns the wait before the next attempt, in milliseconds.
+     */
+    public long getRetryDelayMs() {
+        return mRetryDelayMs;
+    }
+}
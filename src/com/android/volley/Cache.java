@@ -18,6 +18,7 @@ package com.android.volley;
 
 import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * An interface for a cache keyed by a String with a byte array as data.
@@ -50,6 +51,13 @@ public interface Cache {
      */
     public void invalidate(String key, boolean fullExpire);
 
+    /**
+     * Invalidates every entry having one of the given tags.
+     * @param fullExpire True to fully expire the entries, false to soft expire
+     * @param tags Tags of the entries, see {@link Entry#tags}
+     */
+    public void invalidateTags(boolean fullExpire, String... tags);
+
     /**
      * Removes an entry from the cache.
      * @param key Cache key
@@ -90,6 +98,18 @@ public interface Cache {
         /** Immutable response headers as received from server; must be non-null. */
         public Map<String, String> responseHeaders = Collections.emptyMap();
 
+        /** Tags to invalidate this record with, such as "user:42"; must be non-null. */
+        public Set<String> tags = Collections.emptySet();
+
+        /**
+         * A second representation of the data, such as the parsed object in a binary form
+         * faster to read back than the data, or null. Stored after the data.
+         */
+        public byte[] snapshot;
+
+        /** Format of the snapshot, telling whether it can still be read back, or null. */
+        public String snapshotVersion;
+
         /** True if the entry is expired. */
         public boolean isExpired() {
             return this.ttl < System.currentTimeMillis();
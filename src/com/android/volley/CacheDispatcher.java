@@ -18,6 +18,8 @@ package com.android.volley;
 
 import android.os.Process;
 
+import com.android.volley.toolbox.HttpHeaderParser;
+
 import java.util.concurrent.BlockingQueue;
 
 /**
@@ -105,6 +107,13 @@ public class CacheDispatcher extends Thread {
                     continue;
                 }
 
+                // A response fetched with other values of the headers it varies on is a miss.
+                if (!matchesVary(request, entry)) {
+                    request.addMarker("cache-miss-vary");
+                    mNetworkQueue.put(request);
+                    continue;
+                }
+
                 // If it is completely expired, just send it to the network.
                 if (entry.isExpired()) {
                     request.addMarker("cache-hit-expired");
@@ -115,8 +124,9 @@ public class CacheDispatcher extends Thread {
 
                 // We have a cache hit; parse its data for delivery back to the request.
                 request.addMarker("cache-hit");
-                Response<?> response = request.parseNetworkResponse(new NetworkResponse(entry.data, entry.responseHeaders));
+                Response<?> response = request.parseCacheEntry(entry);
                 request.addMarker("cache-hit-parsed");
+                response.setCacheMetadata(entry, Response.Origin.CACHE);
 
                 if (!entry.refreshNeeded()) {
                     // Completely unexpired cache hit. Just deliver the response.
@@ -153,4 +163,12 @@ public class CacheDispatcher extends Thread {
             }
         }
     }
+
+    private static boolean matchesVary(Request<?> request, Cache.Entry entry) {
+        try {
+            return HttpHeaderParser.matchesVary(entry.responseHeaders, request.getHeaders());
+        } catch (AuthFailureError e) {
+            return false;
+        }
+    }
 }
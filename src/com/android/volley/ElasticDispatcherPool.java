@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of {@link NetworkDispatcher}s growing when requests wait too long for a dispatcher and
+ * shrinking when dispatchers stay idle.
+ *
+ * <p>All dispatchers take requests from the same priority queue, so the priority ordering of
+ * requests is unchanged.</p>
+ *
+ * <p>The wait time is checked when requests are added to or taken from the queue, and by a
+ * scheduler thread while requests are waiting.</p>
+ */
+class ElasticDispatcherPool implements NetworkQueue.Listener {
+    private final NetworkQueue mQueue;
+    private final Network mNetwork;
+    private final Cache mCache;
+    private final ResponseDelivery mDelivery;
+    private final ParseStage mParseStage;
+
+    private final int mMinPoolSize;
+    private final int mMaxPoolSize;
+    private final long mMaxQueueWaitMs;
+    private final long mKeepAliveMs;
+
+    /** The running dispatchers. */
+    private final List<NetworkDispatcher> mDispatchers = new ArrayList<NetworkDispatcher>();
+
+    /** Number of dispatchers waiting for a request. */
+    private final AtomicInteger mIdleCount = new AtomicInteger();
+
+    /** Time a dispatcher was last added, to let it pick up requests before adding another. */
+    private long mLastGrowTime;
+
+    /**
+     * Checks the queue again once requests had time to exceed the wait threshold, so that the
+     * pool grows even when no more requests are added.
+     */
+    private ScheduledExecutorService mChecker;
+
+    /** True while a check of the queue is scheduled. */
+    private boolean mCheckScheduled;
+
+    private boolean mStopped;
+
+    /**
+     * @param minPoolSize Number of dispatchers always running
+     * @param maxPoolSize Maximum number of dispatchers
+     * @param maxQueueWaitMs Time a request may wait for a dispatcher before the pool grows
+     * @param keepAliveMs Time an extra dispatcher may stay idle before it quits
+     */
+    public ElasticDispatcherPool(NetworkQueue queue, Network network, Cache cache,
+            ResponseDelivery delivery, ParseStage parseStage, int minPoolSize, int maxPoolSize,
+            long maxQueueWaitMs, long keepAliveMs) {
+        if (minPoolSize < 1 || maxPoolSize < minPoolSize) {
+            throw new IllegalArgumentException("Invalid pool sizes " + minPoolSize + ", "
+                    + maxPoolSize);
+        }
+        mQueue = queue;
+        mNetwork = network;
+        mCache = cache;
+        mDelivery = delivery;
+        mParseStage = parseStage;
+        mMinPoolSize = minPoolSize;
+        mMaxPoolSize = maxPoolSize;
+        mMaxQueueWaitMs = maxQueueWaitMs;
+        mKeepAliveMs = keepAliveMs;
+    }
+
+    /**
+     * Starts the minimum number of dispatchers.
+     */
+    public synchronized void start() {
+        mStopped = false;
+        mChecker = Executors.newSingleThreadScheduledExecutor();
+        for (int i = 0; i < mMinPoolSize; i++) {
+            addDispatcher();
+        }
+        mQueue.setListener(this);
+    }
+
+    /**
+     * Stops all the dispatchers.
+     */
+    public synchronized void stop() {
+        mStopped = true;
+        mQueue.setListener(null);
+        mChecker.shutdownNow();
+        for (NetworkDispatcher dispatcher : mDispatchers) {
+            dispatcher.quit();
+        }
+        mDispatchers.clear();
+    }
+
+    /**
+     * Returns the number of running dispatchers.
+     */
+    public synchronized int getPoolSize() {
+        return mDispatchers.size();
+    }
+
+    public long getKeepAliveMs() {
+        return mKeepAliveMs;
+    }
+
+    @Override
+    public void onRequestQueued(NetworkQueue queue) {
+        maybeGrow(queue.getHeadWaitTime());
+        scheduleCheck();
+    }
+
+    /**
+     * Called by a dispatcher when it takes a request from the queue.
+     */
+    public void onRequestTaken(Request<?> request) {
+        maybeGrow(SystemClock.elapsedRealtime() - request.getNetworkQueueTime());
+    }
+
+    /** Called by a dispatcher before it waits for a request. */
+    public void onDispatcherIdle() {
+        mIdleCount.incrementAndGet();
+    }
+
+    /** Called by a dispatcher after it stopped waiting for a request. */
+    public void onDispatcherBusy() {
+        mIdleCount.decrementAndGet();
+    }
+
+    /**
+     * Called by a dispatcher which stayed idle for the keep-alive time.
+     * @return true if the dispatcher is removed from the pool and must quit
+     */
+    public synchronized boolean onDispatcherTimeout(NetworkDispatcher dispatcher) {
+        if (mDispatchers.size() <= mMinPoolSize) {
+            return false;
+        }
+        mDispatchers.remove(dispatcher);
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Network dispatcher idle, pool size %d", mDispatchers.size());
+        }
+        return true;
+    }
+
+    /**
+     * Adds a dispatcher if requests wait longer than allowed while no dispatcher is idle.
+     */
+    private void maybeGrow(long waitTime) {
+        if (waitTime <= mMaxQueueWaitMs || mIdleCount.get() > 0) {
+            return;
+        }
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            if (mStopped || mDispatchers.size() >= mMaxPoolSize
+                    || now - mLastGrowTime < mMaxQueueWaitMs) {
+                return;
+            }
+            mLastGrowTime = now;
+            addDispatcher();
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("Requests waiting %d ms, pool size %d", waitTime, mDispatchers.size());
+            }
+        }
+    }
+
+    /**
+     * Schedules a check of the queue if requests are waiting. An idle dispatcher may be about
+     * to take them, but may also be the one which just took the previous request.
+     */
+    private void scheduleCheck() {
+        if (mQueue.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if (mStopped || mCheckScheduled || mDispatchers.size() >= mMaxPoolSize) {
+                return;
+            }
+            mCheckScheduled = true;
+            mChecker.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (ElasticDispatcherPool.this) {
+                        mCheckScheduled = false;
+                    }
+                    maybeGrow(mQueue.getHeadWaitTime());
+                    scheduleCheck();
+                }
+            }, mMaxQueueWaitMs + 1, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void addDispatcher() {
+        NetworkDispatcher dispatcher = new NetworkDispatcher(mQueue, mNetwork, mCache, mDelivery,
+                mParseStage, this);
+        mDispatchers.add(dispatcher);
+        dispatcher.start();
+    }
+}
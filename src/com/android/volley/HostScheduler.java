@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.net.Uri;
+
+import com.android.volley.Request.Priority;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Admits requests to the network queue of a {@link RequestQueue}, see
+ * {@link RequestQueue#setHostScheduler(HostScheduler)}.
+ *
+ * <p>At most a given number of requests per host are in the network queue or in flight, the
+ * others wait in a queue per host. When a request finishes, the next request is taken from the
+ * waiting host with the highest priority request, then from the host which had the least share
+ * of the dispatchers relative to its weight.</p>
+ *
+ * <p>Some dispatcher capacity is reserved for {@link Priority#HIGH} and
+ * {@link Priority#IMMEDIATE} requests: lower priority requests are only admitted while fewer
+ * than the number of dispatchers minus the reserved count of them are admitted.</p>
+ */
+public class HostScheduler {
+    /** Weight of the hosts not given one. */
+    public static final int DEFAULT_WEIGHT = 1;
+
+    /** Pass added to a host for each admitted request, divided by the weight of the host. */
+    private static final long STRIDE = 1 << 20;
+
+    private final int mMaxRequestsPerHost;
+    private final int mReservedForHighPriority;
+
+    /** Number of network dispatchers, set by the request queue. */
+    private int mCapacity = Integer.MAX_VALUE;
+
+    /** Number of admitted requests below {@link Priority#HIGH}. */
+    private int mAdmittedLowPriority;
+
+    /** Pass of the last host a request was taken from. */
+    private long mPass;
+
+    private final Map<String, Integer> mWeights = new HashMap<String, Integer>();
+    private final Map<String, Host> mHosts = new HashMap<String, Host>();
+
+    /** Host of each admitted request. */
+    private final Map<Request<?>, Host> mAdmitted = new HashMap<Request<?>, Host>();
+
+    /** A host and its waiting requests. */
+    private static class Host {
+        final String name;
+        final int weight;
+        final PriorityQueue<Request<?>> waiting = new PriorityQueue<Request<?>>();
+        int admitted;
+        long pass;
+
+        Host(String name, int weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * @param maxRequestsPerHost Maximum number of requests per host admitted at once
+     * @param reservedForHighPriority Number of dispatchers kept for high priority requests
+     */
+    public HostScheduler(int maxRequestsPerHost, int reservedForHighPriority) {
+        if (maxRequestsPerHost < 1 || reservedForHighPriority < 0) {
+            throw new IllegalArgumentException("Invalid limits " + maxRequestsPerHost + ", "
+                    + reservedForHighPriority);
+        }
+        mMaxRequestsPerHost = maxRequestsPerHost;
+        mReservedForHighPriority = reservedForHighPriority;
+    }
+
+    /**
+     * Sets the share of the dispatchers given to a host when several hosts have waiting
+     * requests: a host of weight 2 gets twice as many requests admitted as a host of weight 1.
+     */
+    public synchronized void setHostWeight(String host, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Invalid weight " + weight);
+        }
+        mWeights.put(host, weight);
+    }
+
+    /**
+     * Returns the number of requests waiting to be admitted.
+     */
+    public synchronized int getWaitingCount() {
+        int count = 0;
+        for (Host host : mHosts.values()) {
+            count += host.waiting.size();
+        }
+        return count;
+    }
+
+    /**
+     * Sets the number of network dispatchers the reserved capacity is taken from.
+     */
+    synchronized void setCapacity(int capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * Admits the request if its host and the dispatchers have room for it, otherwise keeps it
+     * waiting until {@link #release(Request)} admits it.
+     * @return true if the request is admitted and may be added to the network queue
+     */
+    synchronized boolean admit(Request<?> request) {
+        if (mAdmitted.containsKey(request)) {
+            // Added back for a retry: it keeps its room while waiting for it.
+            return true;
+        }
+        Host host = getHost(request);
+        if (host.waiting.isEmpty() && canAdmit(host, request)) {
+            admit(host, request);
+            return true;
+        }
+        host.waiting.add(request);
+        request.addMarker("host-scheduler-wait");
+        return false;
+    }
+
+    /**
+     * Releases the room of a finished request.
+     * @return The waiting requests admitted in its place, to add to the network queue
+     */
+    synchronized List<Request<?>> release(Request<?> request) {
+        Host host = mAdmitted.remove(request);
+        if (host == null) {
+            return null;
+        }
+        host.admitted--;
+        if (!isHighPriority(request)) {
+            mAdmittedLowPriority--;
+        }
+
+        List<Request<?>> admitted = null;
+        Host next;
+        while ((next = selectHost()) != null) {
+            Request<?> nextRequest = next.waiting.poll();
+            admit(next, nextRequest);
+            if (admitted == null) {
+                admitted = new ArrayList<Request<?>>();
+            }
+            admitted.add(nextRequest);
+        }
+        if (host.admitted == 0 && host.waiting.isEmpty()) {
+            mHosts.remove(host.name);
+        }
+        return admitted;
+    }
+
+    /**
+     * Returns the host to take the next request from, or null if no waiting request can be
+     * admitted.
+     */
+    private Host selectHost() {
+        Host selected = null;
+        Priority selectedPriority = null;
+        for (Host host : mHosts.values()) {
+            Request<?> head = host.waiting.peek();
+            if (head == null || !canAdmit(host, head)) {
+                continue;
+            }
+            int order = selected == null ? 1 : head.getPriority().compareTo(selectedPriority);
+            if (order > 0 || (order == 0 && host.pass < selected.pass)) {
+                selected = host;
+                selectedPriority = head.getPriority();
+            }
+        }
+        return selected;
+    }
+
+    private boolean canAdmit(Host host, Request<?> request) {
+        if (host.admitted >= mMaxRequestsPerHost) {
+            return false;
+        }
+        return isHighPriority(request)
+                || mAdmittedLowPriority < Math.max(1, mCapacity - mReservedForHighPriority);
+    }
+
+    private void admit(Host host, Request<?> request) {
+        host.admitted++;
+        host.pass += STRIDE / host.weight;
+        mPass = host.pass;
+        if (!isHighPriority(request)) {
+            mAdmittedLowPriority++;
+        }
+        mAdmitted.put(request, host);
+    }
+
+    private Host getHost(Request<?> request) {
+        String name = getHostName(request);
+        Host host = mHosts.get(name);
+        if (host == null) {
+            Integer weight = mWeights.get(name);
+            host = new Host(name, weight != null ? weight : DEFAULT_WEIGHT);
+            // Hosts are forgotten when idle: a host coming back does not make up for that time.
+            host.pass = mPass;
+            mHosts.put(name, host);
+        }
+        return host;
+    }
+
+    private static String getHostName(Request<?> request) {
+        String url = request.getUrl();
+        Uri uri = url != null ? Uri.parse(url) : null;
+        String host = uri != null ? uri.getHost() : null;
+        return host != null ? host : "";
+    }
+
+    private static boolean isHighPriority(Request<?> request) {
+        return request.getPriority().compareTo(Priority.HIGH) >= 0;
+    }
+}
@@ -30,5 +30,17 @@ public interface Network {
      */
     public NetworkResponse performRequest(Request<?> request) throws VolleyError;
 
+    /**
+     * Performs the specified request, handing the response body to
+     * {@link StreamingRequest#parseNetworkStream(NetworkResponse, java.io.InputStream)} while it
+     * is read, and writing it to the cache on the way if the request should be cached.
+     * @param request Request to process
+     * @param cache Cache to write the response to
+     * @return The parsed response, or null if the server returned a 304 (Not Modified)
+     * @throws VolleyError on errors
+     */
+    public Response<?> performStreamingRequest(StreamingRequest<?> request, Cache cache)
+            throws VolleyError;
+
     public CookieStore getCookieStore();
 }
@@ -21,7 +21,13 @@ import android.net.TrafficStats;
 import android.os.Build;
 import android.os.Process;
 
+import com.android.volley.toolbox.HttpHeaderParser;
+
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provides a thread for performing network dispatch from a queue of requests.
@@ -40,9 +46,16 @@ public class NetworkDispatcher extends Thread {
     private final Cache mCache;
     /** For posting responses and errors. */
     private final ResponseDelivery mDelivery;
+    /** Parses responses off this thread, or null to parse them here. */
+    private final ParseStage mParseStage;
+    /** The elastic pool this dispatcher belongs to, or null. */
+    private final ElasticDispatcherPool mPool;
     /** Used for telling us to die. */
     private volatile boolean mQuit = false;
 
+    /** Adds requests waiting for a retry back to their queue, shared by all dispatchers. */
+    private static ScheduledExecutorService sRetryScheduler;
+
     /**
      * Creates a new network dispatcher thread.  You must call {@link #start()}
      * in order to begin processing.
@@ -55,10 +68,38 @@ public class NetworkDispatcher extends Thread {
     public NetworkDispatcher(BlockingQueue<Request<?>> queue,
             Network network, Cache cache,
             ResponseDelivery delivery) {
+        this(queue, network, cache, delivery, null);
+    }
+
+    /**
+     * Creates a new network dispatcher thread handing responses off to a parse stage.  You must
+     * call {@link #start()} in order to begin processing.
+     *
+     * @param queue Queue of incoming requests for triage
+     * @param network Network interface to use for performing requests
+     * @param cache Cache interface to use for writing responses to cache
+     * @param delivery Delivery interface to use for posting responses
+     * @param parseStage Parse stage to parse responses with, or null to parse them on this thread
+     */
+    public NetworkDispatcher(BlockingQueue<Request<?>> queue,
+            Network network, Cache cache,
+            ResponseDelivery delivery, ParseStage parseStage) {
+        this(queue, network, cache, delivery, parseStage, null);
+    }
+
+    /**
+     * Creates a new network dispatcher thread which quits when its pool has too many idle
+     * dispatchers.
+     */
+    NetworkDispatcher(BlockingQueue<Request<?>> queue,
+            Network network, Cache cache,
+            ResponseDelivery delivery, ParseStage parseStage, ElasticDispatcherPool pool) {
         mQueue = queue;
         mNetwork = network;
         mCache = cache;
         mDelivery = delivery;
+        mParseStage = parseStage;
+        mPool = pool;
     }
 
     /**
@@ -85,7 +126,17 @@ public class NetworkDispatcher extends Thread {
         while (true) {
             try {
                 // Take a request from the queue.
-                request = mQueue.take();
+                if (mPool == null) {
+                    request = mQueue.take();
+                } else {
+                    request = pollFromPool();
+                    if (request == null) {
+                        if (mPool.onDispatcherTimeout(this)) {
+                            return;
+                        }
+                        continue;
+                    }
+                }
             } catch (InterruptedException e) {
                 // We may have been interrupted because it was time to quit.
                 if (mQuit) {
@@ -103,8 +154,21 @@ public class NetworkDispatcher extends Thread {
                     continue;
                 }
 
+                // Do not open a connection for a request nobody waits for anymore.
+                if (request.isPastDeadline()) {
+                    request.addMarker("network-discard-deadline");
+                    parseAndDeliverNetworkError(request, new TimeoutError());
+                    continue;
+                }
+
                 addTrafficStatsTag(request);
 
+                if (request instanceof StreamingRequest
+                        && ((StreamingRequest<?>) request).shouldStream()) {
+                    performStreamingRequest((StreamingRequest<?>) request);
+                    continue;
+                }
+
                 // Perform the network request.
                 NetworkResponse networkResponse = mNetwork.performRequest(request);
                 request.addMarker("network-http-complete");
@@ -115,44 +179,217 @@ public class NetworkDispatcher extends Thread {
                     continue;
                 }
                 // If the server returned 304 AND we never delivered a response: try to get the last cache
-                if (networkResponse.notModified){
-                    Cache.Entry entry = mCache.get(request.getCacheKey());
-
-                    if(entry != null){
-                        Response<?> response = request.parseNetworkResponse(new NetworkResponse(entry.data, entry.responseHeaders));
-                        request.addMarker("cache-hit-parsed");
-                        mDelivery.postResponse(request, response);
-                        continue;
-                    }
+                if (networkResponse.notModified && deliverCachedResponse(request)) {
+                    continue;
                 }
 
-                // Parse the response here on the worker thread.
-                Response<?> response = request.parseNetworkResponse(networkResponse);
-                request.addMarker("network-parse-complete");
-
-                // Write to cache if applicable.
-                // TODO: Only update cache metadata instead of entire record for 304s.
-                if (request.shouldCache() && response.cacheEntry != null) {
-                    mCache.put(request.getCacheKey(), response.cacheEntry);
-                    request.addMarker("network-cache-written");
+                if (mParseStage != null) {
+                    // Go back to the network queue while the response is parsed.
+                    final Request<?> parsedRequest = request;
+                    final NetworkResponse parsedResponse = networkResponse;
+                    request.addMarker("parse-queue-add");
+                    mParseStage.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            parseAndDeliver(parsedRequest, parsedResponse);
+                        }
+                    });
+                } else {
+                    parseAndDeliver(request, networkResponse);
                 }
-
-                // Post the response back.
-                request.setIsFromNetwork();
-                request.markDelivered();
-
-                mDelivery.postResponse(request, response);
+            } catch (RetryLaterError retry) {
+                scheduleRetry(request, retry.getDelayMs());
             } catch (VolleyError volleyError) {
                 parseAndDeliverNetworkError(request, volleyError);
             } catch (Exception e) {
                 VolleyLog.e(e, "Unhandled exception %s", e.toString());
-                mDelivery.postError(request, new VolleyError(e));
+                VolleyError error = new VolleyError(e);
+                request.deliverErrorToDuplicates(error);
+                mDelivery.postError(request, error);
             }
         }
     }
 
+    /**
+     * Adds the request back to the queue after the given delay, without holding this thread.
+     */
+    private void scheduleRetry(final Request<?> request, long delayMs) {
+        request.addMarker("network-retry-scheduled");
+        getRetryScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                request.addMarker("network-retry-queued");
+                mQueue.add(request);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService getRetryScheduler() {
+        if (sRetryScheduler == null) {
+            sRetryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Volley-RetryScheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sRetryScheduler;
+    }
+
+    /**
+     * Waits for a request at most the keep-alive time of the pool.
+     * @return The request, or null if none came
+     */
+    private Request<?> pollFromPool() throws InterruptedException {
+        Request<?> request;
+        mPool.onDispatcherIdle();
+        try {
+            request = mQueue.poll(mPool.getKeepAliveMs(), TimeUnit.MILLISECONDS);
+        } finally {
+            mPool.onDispatcherBusy();
+        }
+        if (request != null) {
+            mPool.onRequestTaken(request);
+        }
+        return request;
+    }
+
+    /**
+     * Parses the response on the current thread, writes it to the cache if applicable and posts
+     * it back.
+     */
+    private void parseAndDeliver(Request<?> request, NetworkResponse networkResponse) {
+        try {
+            Response<?> response = request.parseNetworkResponse(networkResponse);
+            request.addMarker("network-parse-complete");
+
+            // Write to cache if applicable.
+            // TODO: Only update cache metadata instead of entire record for 304s.
+            if (request.shouldCache() && response.cacheEntry != null) {
+                mCache.put(request.getCacheKey(), response.cacheEntry);
+                request.addMarker("network-cache-written");
+            }
+
+            // Post the response back.
+            response.setCacheMetadata(response.cacheEntry, Response.Origin.NETWORK);
+            request.setIsFromNetwork();
+            request.markDelivered();
+
+            // Identical requests first: delivering this one finishes it.
+            request.deliverToDuplicates(response);
+            mDelivery.postResponse(request, response);
+        } catch (Exception e) {
+            VolleyLog.e(e, "Unhandled exception %s", e.toString());
+            VolleyError error = new VolleyError(e);
+            request.deliverErrorToDuplicates(error);
+            mDelivery.postError(request, error);
+        }
+    }
+
+    /**
+     * Performs a request whose response is parsed, and written to the cache, while it is read
+     * from the network. Parsing cannot be handed off to the parse stage as it reads from the
+     * connection.
+     */
+    private void performStreamingRequest(StreamingRequest<?> request) throws VolleyError {
+        Response<?> response = mNetwork.performStreamingRequest(request, mCache);
+        request.addMarker("network-http-complete");
+
+        if (response == null) {
+            // The server returned 304: same as above, but there is no data to fall back on.
+            if (request.hasHadResponseDelivered()) {
+                request.finish("not-modified");
+            } else if (!deliverCachedResponse(request)) {
+                throw new ServerError();
+            }
+            return;
+        }
+        request.addMarker("network-parse-complete");
+
+        // Post the response back.
+        response.setCacheMetadata(response.cacheEntry, Response.Origin.NETWORK);
+        request.setIsFromNetwork();
+        request.markDelivered();
+        request.deliverToDuplicates(response);
+        mDelivery.postResponse(request, response);
+    }
+
+    /**
+     * Delivers the cached response for a request the server answered with a 304.
+     * @return false if there is no cached response for the request
+     */
+    private boolean deliverCachedResponse(Request<?> request) {
+        Cache.Entry entry = mCache.get(request.getCacheKey());
+        if (entry == null) {
+            return false;
+        }
+        Response<?> response = request.parseCacheEntry(entry);
+        request.addMarker("cache-hit-parsed");
+        response.setCacheMetadata(entry, Response.Origin.NOT_MODIFIED);
+        mDelivery.postResponse(request, response);
+        return true;
+    }
+
+    /**
+     * Delivers the expired cached response of a request instead of a network error, if the
+     * error is transient and the entry is within its stale-if-error window: the window of the
+     * request after its hard TTL, or the <code>stale-if-error</code> directive after its soft
+     * TTL, whichever ends last.
+     * @return false if the error should be delivered
+     */
+    private boolean deliverStaleResponse(Request<?> request, VolleyError error) {
+        Cache.Entry entry = request.getCacheEntry();
+        if (entry == null || request.hasHadResponseDelivered() || !isTransient(error)) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        long requestWindow = request.getStaleIfErrorMs();
+        long headerWindow = HttpHeaderParser.parseStaleIfError(entry.responseHeaders) * 1000;
+        if ((requestWindow <= 0 || now - entry.ttl >= requestWindow)
+                && (headerWindow <= 0 || now - entry.softTtl >= headerWindow)) {
+            return false;
+        }
+        Response<?> response;
+        try {
+            response = request.parseCacheEntry(entry);
+        } catch (Exception e) {
+            VolleyLog.e(e, "Unhandled exception %s", e.toString());
+            return false;
+        }
+        if (response == null || !response.isSuccess()) {
+            return false;
+        }
+        request.addMarker("network-stale-on-error");
+        response.setCacheMetadata(entry, Response.Origin.CACHE);
+        response.stale = true;
+        request.markDelivered();
+        request.deliverToDuplicates(response);
+        mDelivery.postResponse(request, response);
+        return true;
+    }
+
+    /**
+     * Returns true for the errors a stale response may hide: timeouts, connection failures and
+     * server errors.
+     */
+    private static boolean isTransient(VolleyError error) {
+        if (error instanceof TimeoutError || error instanceof NetworkError) {
+            return true;
+        }
+        if (error instanceof ServerError) {
+            return error.networkResponse == null || error.networkResponse.statusCode >= 500;
+        }
+        return false;
+    }
+
     private void parseAndDeliverNetworkError(Request<?> request, VolleyError error) {
+        if (deliverStaleResponse(request, error)) {
+            return;
+        }
         error = request.parseNetworkError(error);
+        request.deliverErrorToDuplicates(error);
         mDelivery.postError(request, error);
     }
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.SystemClock;
+
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * The queue of requests going out to the network. Stamps requests with the time they are added,
+ * so that the time they wait for a dispatcher can be observed.
+ *
+ * <p>With a {@link HostScheduler}, requests are only added once admitted by the scheduler.</p>
+ *
+ * <p>With an image queue, the {@link Request.TrafficClass#IMAGE} requests are added to it
+ * instead, without going through the scheduler.</p>
+ */
+@SuppressWarnings("serial")
+class NetworkQueue extends PriorityBlockingQueue<Request<?>> {
+
+    /**
+     * Notified of the requests added to a {@link NetworkQueue}.
+     */
+    interface Listener {
+        public void onRequestQueued(NetworkQueue queue);
+    }
+
+    private volatile Listener mListener;
+
+    private volatile HostScheduler mScheduler;
+
+    private volatile NetworkQueue mImageQueue;
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void setScheduler(HostScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Sets the queue the image requests are routed to, or null to keep them in this queue.
+     */
+    public void setImageQueue(NetworkQueue imageQueue) {
+        mImageQueue = imageQueue;
+    }
+
+    /**
+     * Called when a request finishes, to add the requests its scheduler admits in its place.
+     */
+    public void onRequestFinished(Request<?> request) {
+        NetworkQueue imageQueue = mImageQueue;
+        if (imageQueue != null && request.getTrafficClass() == Request.TrafficClass.IMAGE) {
+            imageQueue.onRequestFinished(request);
+            return;
+        }
+        HostScheduler scheduler = mScheduler;
+        if (scheduler == null) {
+            return;
+        }
+        List<Request<?>> admitted = scheduler.release(request);
+        if (admitted != null) {
+            for (Request<?> next : admitted) {
+                enqueue(next);
+            }
+        }
+    }
+
+    /**
+     * Returns how long the request at the head of the queue has been waiting, in milliseconds,
+     * or 0 if the queue is empty.
+     */
+    public long getHeadWaitTime() {
+        Request<?> head = peek();
+        if (head == null) {
+            return 0;
+        }
+        return SystemClock.elapsedRealtime() - head.getNetworkQueueTime();
+    }
+
+    @Override
+    public boolean offer(Request<?> request) {
+        // add() and put() go through offer().
+        NetworkQueue imageQueue = mImageQueue;
+        if (imageQueue != null && request.getTrafficClass() == Request.TrafficClass.IMAGE) {
+            return imageQueue.offer(request);
+        }
+        HostScheduler scheduler = mScheduler;
+        if (scheduler != null && !scheduler.admit(request)) {
+            // Added later on, by onRequestFinished().
+            return true;
+        }
+        return enqueue(request);
+    }
+
+    private boolean enqueue(Request<?> request) {
+        request.setNetworkQueueTime(SystemClock.elapsedRealtime());
+        boolean added = super.offer(request);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onRequestQueued(this);
+        }
+        return added;
+    }
+}
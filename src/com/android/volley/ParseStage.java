@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parses network responses on its own pool of threads, so that network dispatchers go back to
+ * the network queue as soon as a response is read.
+ *
+ * <p>The queue of responses waiting to be parsed is bounded: when it is full, the network
+ * dispatcher parses the response itself, which slows down the network side instead of piling up
+ * responses in memory.</p>
+ *
+ * <p>The parsing threads run between {@link #start()} and {@link #stop()}, which the
+ * {@link RequestQueue} calls along with its own. Outside of these, and whenever a task is
+ * rejected, the response is parsed on the calling thread, so it is always delivered.</p>
+ */
+public class ParseStage {
+    /** Default number of parsing threads. */
+    private static final int DEFAULT_THREAD_POOL_SIZE = 2;
+
+    /** Default number of responses which may wait to be parsed. */
+    private static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+    private final int mThreadPoolSize;
+    private final int mQueueCapacity;
+
+    /** Executor running the parsing threads, null when stopped. */
+    private volatile ThreadPoolExecutor mExecutor;
+
+    /** Number of responses parsed so far. */
+    private final AtomicInteger mParseCount = new AtomicInteger();
+
+    /** Total time spent parsing, in milliseconds. */
+    private final AtomicLong mTotalParseTimeMs = new AtomicLong();
+
+    /** Longest time spent parsing a single response, in milliseconds. */
+    private final AtomicLong mMaxParseTimeMs = new AtomicLong();
+
+    /**
+     * Creates a parse stage with default sizes.
+     */
+    public ParseStage() {
+        this(DEFAULT_THREAD_POOL_SIZE, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param threadPoolSize Number of parsing threads
+     * @param queueCapacity Number of responses which may wait for a parsing thread
+     */
+    public ParseStage(int threadPoolSize, int queueCapacity) {
+        mThreadPoolSize = threadPoolSize;
+        mQueueCapacity = queueCapacity;
+    }
+
+    /**
+     * Starts the parsing threads, if they are not running already.
+     */
+    public synchronized void start() {
+        if (mExecutor == null) {
+            mExecutor = new ThreadPoolExecutor(mThreadPoolSize, mThreadPoolSize, 0L,
+                    TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(mQueueCapacity),
+                    new ParseThreadFactory(), new RunOnCallerPolicy());
+        }
+    }
+
+    /**
+     * Stops the parsing threads once the responses already queued are parsed. Responses handed
+     * over afterwards are parsed on the calling thread.
+     */
+    public synchronized void stop() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * Runs the given parse task on a parsing thread, or on the calling thread if the queue is
+     * full or the stage is stopped.
+     */
+    public void execute(final Runnable parseTask) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    parseTask.run();
+                } finally {
+                    recordParseTime(SystemClock.elapsedRealtime() - start);
+                }
+            }
+        };
+        ThreadPoolExecutor executor = mExecutor;
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    /** Returns the number of responses waiting for a parsing thread. */
+    public int getQueueDepth() {
+        ThreadPoolExecutor executor = mExecutor;
+        return executor != null ? executor.getQueue().size() : 0;
+    }
+
+    /** Returns the number of responses parsed so far. */
+    public int getParseCount() {
+        return mParseCount.get();
+    }
+
+    /** Returns the total time spent parsing, in milliseconds. */
+    public long getTotalParseTimeMs() {
+        return mTotalParseTimeMs.get();
+    }
+
+    /** Returns the longest time spent parsing a single response, in milliseconds. */
+    public long getMaxParseTimeMs() {
+        return mMaxParseTimeMs.get();
+    }
+
+    private void recordParseTime(long parseTimeMs) {
+        mParseCount.incrementAndGet();
+        mTotalParseTimeMs.addAndGet(parseTimeMs);
+        long max;
+        do {
+            max = mMaxParseTimeMs.get();
+        } while (parseTimeMs > max && !mMaxParseTimeMs.compareAndSet(max, parseTimeMs));
+    }
+
+    /**
+     * Runs rejected tasks on the calling thread, including once the executor is shut down, unlike
+     * {@link ThreadPoolExecutor.CallerRunsPolicy} which then discards them: a discarded task would
+     * never deliver its response nor finish its request.
+     */
+    private static class RunOnCallerPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            task.run();
+        }
+    }
+
+    private static class ParseThreadFactory implements ThreadFactory {
+        private final AtomicInteger mThreadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread("volley-parse-" + mThreadCount.incrementAndGet()) {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            };
+        }
+    }
+}
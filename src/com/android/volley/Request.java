@@ -28,6 +28,8 @@ import com.android.volley.VolleyLog.MarkerLog;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.Map;
 
@@ -115,6 +117,15 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** Whether or not responses to this request should be cached. */
     private boolean mShouldCache = true;
 
+    /** Whether or not identical uncached requests in flight should share one network call. */
+    private boolean mShouldDeduplicate = false;
+
+    /**
+     * Key under which identical requests wait for this one, while this request is in flight
+     * for them; null otherwise.
+     */
+    private String mInFlightDeduplicationKey;
+
     /** Whether or not this request has been canceled. */
     private boolean mCanceled = false;
 
@@ -124,6 +135,15 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     // A cheap variant of request tracing used to dump slow requests.
     private long mRequestBirthTime = 0;
 
+    /** Time this request was last added to the network queue, for dispatcher pool sizing. */
+    private volatile long mNetworkQueueTime = 0;
+
+    /** Time after which this request is given up, as elapsedRealtime(), or 0 for none. */
+    private volatile long mDeadline = 0;
+
+    /** How long after expiry the cached response may still be served on a network error. */
+    private long mStaleIfErrorMs = 0;
+
     /** Threshold at which we should log the request (even when debug logging is not enabled). */
     private static final long SLOW_REQUEST_THRESHOLD_MS = 3000;
 
@@ -246,6 +266,24 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         }
     }
 
+    /**
+     * Posts the response of this request to the identical requests which waited for it, if any.
+     */
+    void deliverToDuplicates(Response<?> response) {
+        if (mRequestQueue != null) {
+            mRequestQueue.deliverToDuplicates(this, response);
+        }
+    }
+
+    /**
+     * Posts the error of this request to the identical requests which waited for it, if any.
+     */
+    void deliverErrorToDuplicates(VolleyError error) {
+        if (mRequestQueue != null) {
+            mRequestQueue.deliverErrorToDuplicates(this, error);
+        }
+    }
+
     /**
      * Notifies the request queue that this request has finished (successfully or with error).
      *
@@ -312,6 +350,81 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mSequence;
     }
 
+    /**
+     * Sets the time this request was added to the network queue, as given by
+     * {@link android.os.SystemClock#elapsedRealtime()}.
+     */
+    void setNetworkQueueTime(long networkQueueTime) {
+        mNetworkQueueTime = networkQueueTime;
+    }
+
+    /**
+     * Returns the time this request was added to the network queue.
+     */
+    long getNetworkQueueTime() {
+        return mNetworkQueueTime;
+    }
+
+    /**
+     * Sets the time after which this request is given up, as given by
+     * {@link android.os.SystemClock#elapsedRealtime()}, or 0 for no deadline. Unlike the timeout
+     * of the retry policy, the deadline covers the time spent waiting in the queues and all the
+     * attempts: a request still waiting for a dispatcher when it passes is dropped with a
+     * {@link TimeoutError}, and the socket timeouts are cut down to the time remaining.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setDeadline(long deadline) {
+        mDeadline = deadline;
+        return this;
+    }
+
+    /**
+     * Returns the deadline of this request, or 0 if there is none.
+     */
+    public long getDeadline() {
+        return mDeadline;
+    }
+
+    /**
+     * Returns the time remaining before the deadline in milliseconds, 0 if it passed, or
+     * {@link Long#MAX_VALUE} if there is no deadline.
+     */
+    public long getRemainingTimeMs() {
+        long deadline = mDeadline;
+        if (deadline == 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, deadline - SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Returns true if this request has a deadline and it passed.
+     */
+    public boolean isPastDeadline() {
+        return getRemainingTimeMs() == 0;
+    }
+
+    /**
+     * Sets how long in milliseconds after it expired the cached response of this request may
+     * still be delivered when the network fails with a timeout, a connection failure or a 5xx
+     * status, instead of the error. 0, the default, only honours a
+     * <code>Cache-Control: stale-if-error</code> directive sent by the server.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setStaleIfErrorMs(long staleIfErrorMs) {
+        mStaleIfErrorMs = staleIfErrorMs;
+        return this;
+    }
+
+    /**
+     * Returns how long after expiry the cached response may be served on a network error.
+     */
+    public long getStaleIfErrorMs() {
+        return mStaleIfErrorMs;
+    }
+
     /**
      * Returns the URL of this request.
      */
@@ -515,6 +628,66 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mShouldCache;
     }
 
+    /**
+     * Set whether or not identical requests in flight at the same time should share a single
+     * network call. Only applies to requests which are not cached: cached requests already wait
+     * for each other through the cache. Identical requests have the same method, URL and body,
+     * and must parse responses to the same type.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public final Request<?> setShouldDeduplicate(boolean shouldDeduplicate) {
+        mShouldDeduplicate = shouldDeduplicate;
+        return this;
+    }
+
+    /**
+     * Returns true if identical requests in flight should share a single network call.
+     */
+    public final boolean shouldDeduplicate() {
+        return mShouldDeduplicate;
+    }
+
+    /**
+     * Returns the key identifying identical requests, made of the method, the URL and a SHA-256
+     * digest of the body, or null if the body cannot be built.
+     */
+    String getDeduplicationKey() {
+        byte[] body;
+        try {
+            body = getBody();
+        } catch (AuthFailureError e) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder();
+        key.append(mMethod).append(':').append(mUrl).append(':');
+        if (body != null) {
+            byte[] digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256").digest(body);
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16));
+                key.append(Character.forDigit(b & 0xf, 16));
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Sets the key identical requests wait under while this request is in flight for them, or
+     * null once their response is delivered.
+     */
+    void setInFlightDeduplicationKey(String deduplicationKey) {
+        mInFlightDeduplicationKey = deduplicationKey;
+    }
+
+    String getInFlightDeduplicationKey() {
+        return mInFlightDeduplicationKey;
+    }
+
     /**
      * Priority values.  Requests will be processed from higher priorities to
      * lower priorities, in FIFO order.
@@ -533,13 +706,37 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return Priority.NORMAL;
     }
 
+    /**
+     * Traffic classes. A {@link RequestQueue} can run separate network dispatchers for the
+     * {@link #IMAGE} requests, see {@link RequestQueue#setImageThreadPoolSize(int)}.
+     */
+    public enum TrafficClass {
+        API,
+        IMAGE
+    }
+
+    /**
+     * Returns the {@link TrafficClass} of this request; {@link TrafficClass#API} by default.
+     */
+    public TrafficClass getTrafficClass() {
+        return TrafficClass.API;
+    }
+
     /**
      * Returns the socket timeout in milliseconds per retry attempt. (This value can be changed
      * per retry attempt if a backoff is specified via backoffTimeout()). If there are no retry
      * attempts remaining, this will cause delivery of a {@link TimeoutError} error.
+     *
+     * <p>The timeout never goes past the deadline of the request, if any.</p>
      */
     public final int getTimeoutMs() {
-        return mRetryPolicy.getCurrentTimeout();
+        int timeout = mRetryPolicy.getCurrentTimeout();
+        long remaining = getRemainingTimeMs();
+        if (remaining < timeout) {
+            // A timeout of 0 means none to the stacks: keep at least 1ms.
+            return (int) Math.max(1, remaining);
+        }
+        return timeout;
     }
 
     /**
@@ -574,6 +771,18 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     abstract protected Response<T> parseNetworkResponse(NetworkResponse response);
 
+    /**
+     * Parses a cached response. The default implementation parses its data with
+     * {@link #parseNetworkResponse(NetworkResponse)}; subclasses storing a
+     * {@link Cache.Entry#snapshot} can read it instead. This method will be called from a
+     * worker thread.
+     * @param entry Cached response
+     * @return The parsed response, or null in the case of an error
+     */
+    protected Response<T> parseCacheEntry(Cache.Entry entry) {
+        return parseNetworkResponse(new NetworkResponse(entry.data, entry.responseHeaders));
+    }
+
     /**
      * Subclasses can override this method to parse 'networkError' and return a more specific error.
      *
@@ -595,6 +804,15 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     abstract protected void deliverResponse(T response);
 
+    /**
+     * Delivers a parsed response along with its metadata, such as its origin and cache TTLs.
+     * The default implementation delivers its result to {@link #deliverResponse(Object)}.
+     * @param response The parsed response, successful
+     */
+    protected void deliverResponse(Response<T> response) {
+        deliverResponse(response.result);
+    }
+
     /**
      * Delivers error message to the ErrorListener that the Request was
      * initialized with.
@@ -54,6 +54,19 @@ public class RequestQueue {
     private final Map<String, Queue<Request<?>>> mWaitingRequests =
             new HashMap<String, Queue<Request<?>>>();
 
+    /**
+     * Staging area for uncached requests identical to a request in flight, see
+     * {@link Request#setShouldDeduplicate(boolean)}.
+     *
+     * <ul>
+     *     <li>containsKey(key) indicates that there is a request in flight for the given
+     *          deduplication key; that request holds the key until its response is shared.</li>
+     *     <li>get(key) returns the requests waiting for its response.</li>
+     * </ul>
+     */
+    private final Map<String, Queue<Request<?>>> mDuplicateRequests =
+            new HashMap<String, Queue<Request<?>>>();
+
     /**
      * The set of all requests currently being processed by this RequestQueue. A Request
      * will be in this set if it is waiting in any queue or currently being processed by
@@ -66,12 +79,17 @@ public class RequestQueue {
         new PriorityBlockingQueue<Request<?>>();
 
     /** The queue of requests that are actually going out to the network. */
-    private final PriorityBlockingQueue<Request<?>> mNetworkQueue =
-        new PriorityBlockingQueue<Request<?>>();
+    private final NetworkQueue mNetworkQueue = new NetworkQueue();
 
     /** Number of network request dispatcher threads to start. */
     private static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
 
+    /** Default time a request may wait for a dispatcher before an elastic pool grows. */
+    private static final long DEFAULT_MAX_QUEUE_WAIT_MS = 200;
+
+    /** Default time an extra dispatcher of an elastic pool may stay idle. */
+    private static final long DEFAULT_DISPATCHER_KEEP_ALIVE_MS = 30 * 1000;
+
     /** Cache interface for retrieving and storing responses. */
     private final Cache mCache;
 
@@ -87,6 +105,27 @@ public class RequestQueue {
     /** The cache dispatcher. */
     private CacheDispatcher mCacheDispatcher;
 
+    /** The parse stage network responses are handed off to, or null to parse on dispatchers. */
+    private ParseStage mParseStage;
+
+    /** Elastic pool sizing, used instead of the fixed dispatchers when the max size is > 0. */
+    private int mElasticMinPoolSize;
+    private int mElasticMaxPoolSize;
+    private long mMaxQueueWaitMs;
+    private long mDispatcherKeepAliveMs;
+
+    /** The network dispatchers of the elastic mode. */
+    private ElasticDispatcherPool mElasticPool;
+
+    /** Admits requests to the network queue per host, or null to add them right away. */
+    private HostScheduler mHostScheduler;
+
+    /** The queue of the image requests, used when there are image dispatchers. */
+    private final NetworkQueue mImageNetworkQueue = new NetworkQueue();
+
+    /** The network dispatchers of the image requests, empty to share the other dispatchers. */
+    private NetworkDispatcher[] mImageDispatchers = new NetworkDispatcher[0];
+
     /**
      * Creates the worker pool. Processing will not begin until {@link #start()} is called.
      *
@@ -132,19 +171,155 @@ public class RequestQueue {
         return mNetwork.getCookieStore();
     }
 
+    /**
+     * Sets the stage parsing network responses off the network dispatchers, or null to parse them
+     * on the dispatchers. Takes effect on the next {@link #start()}, which also starts the stage,
+     * and {@link #stop()} stops it.
+     */
+    public void setParseStage(ParseStage parseStage) {
+        if (mParseStage != null && mParseStage != parseStage) {
+            mParseStage.stop();
+        }
+        mParseStage = parseStage;
+    }
+
+    /**
+     * Gets the {@link ParseStage} instance being used, or null.
+     */
+    public ParseStage getParseStage() {
+        return mParseStage;
+    }
+
+    /**
+     * Runs between the given numbers of network dispatchers instead of the fixed thread pool,
+     * with default thresholds. Takes effect on the next {@link #start()}.
+     *
+     * @param minPoolSize Number of network dispatchers always running
+     * @param maxPoolSize Maximum number of network dispatchers
+     */
+    public void setElasticPoolSize(int minPoolSize, int maxPoolSize) {
+        setElasticPoolSize(minPoolSize, maxPoolSize, DEFAULT_MAX_QUEUE_WAIT_MS,
+                DEFAULT_DISPATCHER_KEEP_ALIVE_MS);
+    }
+
+    /**
+     * Runs between the given numbers of network dispatchers instead of the fixed thread pool.
+     * A dispatcher is added when requests wait longer than maxQueueWaitMs for one, and extra
+     * dispatchers quit after being idle for keepAliveMs. Takes effect on the next
+     * {@link #start()}.
+     *
+     * @param minPoolSize Number of network dispatchers always running
+     * @param maxPoolSize Maximum number of network dispatchers
+     * @param maxQueueWaitMs Time a request may wait for a dispatcher before the pool grows
+     * @param keepAliveMs Time an extra dispatcher may stay idle before it quits
+     */
+    public void setElasticPoolSize(int minPoolSize, int maxPoolSize, long maxQueueWaitMs,
+            long keepAliveMs) {
+        if (minPoolSize < 1 || maxPoolSize < minPoolSize) {
+            throw new IllegalArgumentException("Invalid pool sizes " + minPoolSize + ", "
+                    + maxPoolSize);
+        }
+        mElasticMinPoolSize = minPoolSize;
+        mElasticMaxPoolSize = maxPoolSize;
+        mMaxQueueWaitMs = maxQueueWaitMs;
+        mDispatcherKeepAliveMs = keepAliveMs;
+    }
+
+    /**
+     * Sets the scheduler limiting the number of concurrent requests per host and keeping
+     * dispatchers for high priority requests, or null to send requests in priority order only.
+     * Takes effect on the next {@link #start()}.
+     */
+    public void setHostScheduler(HostScheduler hostScheduler) {
+        mHostScheduler = hostScheduler;
+    }
+
+    /**
+     * Gets the {@link HostScheduler} instance being used, or null.
+     */
+    public HostScheduler getHostScheduler() {
+        return mHostScheduler;
+    }
+
+    /**
+     * Runs the given number of network dispatchers for the {@link Request.TrafficClass#IMAGE}
+     * requests only, so that images never hold the dispatchers of the other requests. The image
+     * requests do not go through the {@link HostScheduler}. 0, the default, to send all the
+     * requests to the same dispatchers. The dispatchers are started by the next {@link #start()}.
+     *
+     * @param threadPoolSize Number of image network dispatcher threads to create
+     */
+    public void setImageThreadPoolSize(int threadPoolSize) {
+        if (threadPoolSize < 0) {
+            throw new IllegalArgumentException("Invalid pool size " + threadPoolSize);
+        }
+        for (int i = 0; i < mImageDispatchers.length; i++) {
+            if (mImageDispatchers[i] != null) {
+                mImageDispatchers[i].quit();
+            }
+        }
+        mImageDispatchers = new NetworkDispatcher[threadPoolSize];
+        mNetworkQueue.setImageQueue(threadPoolSize > 0 ? mImageNetworkQueue : null);
+        if (threadPoolSize == 0) {
+            // Requests already routed to the image queue go back to the other dispatchers.
+            mImageNetworkQueue.drainTo(mNetworkQueue);
+        }
+    }
+
+    /**
+     * Returns the number of running network dispatchers, image dispatchers excluded.
+     */
+    public int getNetworkDispatcherCount() {
+        if (mElasticPool != null) {
+            return mElasticPool.getPoolSize();
+        }
+        int count = 0;
+        for (int i = 0; i < mDispatchers.length; i++) {
+            if (mDispatchers[i] != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     /**
      * Starts the dispatchers in this queue.
      */
     public void start() {
         stop();  // Make sure any currently running dispatchers are stopped.
+        if (mHostScheduler != null) {
+            mHostScheduler.setCapacity(
+                    mElasticMaxPoolSize > 0 ? mElasticMaxPoolSize : mDispatchers.length);
+        }
+        mNetworkQueue.setScheduler(mHostScheduler);
+
         // Create the cache dispatcher and start it.
         mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
         mCacheDispatcher.start();
 
+        if (mParseStage != null) {
+            mParseStage.start();
+        }
+
+        for (int i = 0; i < mImageDispatchers.length; i++) {
+            NetworkDispatcher networkDispatcher = new NetworkDispatcher(mImageNetworkQueue,
+                    mNetwork, mCache, mDelivery, mParseStage);
+            mImageDispatchers[i] = networkDispatcher;
+            networkDispatcher.start();
+        }
+
+        if (mElasticMaxPoolSize > 0) {
+            mElasticPool = new ElasticDispatcherPool(mNetworkQueue, mNetwork, mCache, mDelivery,
+                    mParseStage, mElasticMinPoolSize, mElasticMaxPoolSize, mMaxQueueWaitMs,
+                    mDispatcherKeepAliveMs);
+            mElasticPool.start();
+            return;
+        }
+
         // Create network dispatchers (and corresponding threads) up to the pool size.
         for (int i = 0; i < mDispatchers.length; i++) {
             NetworkDispatcher networkDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork,
-                    mCache, mDelivery);
+                    mCache, mDelivery, mParseStage);
             mDispatchers[i] = networkDispatcher;
             networkDispatcher.start();
         }
@@ -160,8 +335,22 @@ public class RequestQueue {
         for (int i = 0; i < mDispatchers.length; i++) {
             if (mDispatchers[i] != null) {
                 mDispatchers[i].quit();
+                mDispatchers[i] = null;
             }
         }
+        for (int i = 0; i < mImageDispatchers.length; i++) {
+            if (mImageDispatchers[i] != null) {
+                mImageDispatchers[i].quit();
+                mImageDispatchers[i] = null;
+            }
+        }
+        if (mElasticPool != null) {
+            mElasticPool.stop();
+            mElasticPool = null;
+        }
+        if (mParseStage != null) {
+            mParseStage.stop();
+        }
     }
 
     /**
@@ -234,6 +423,9 @@ public class RequestQueue {
 
         // If the request is uncacheable, skip the cache queue and go straight to the network.
         if (!request.shouldCache()) {
+            if (request.shouldDeduplicate() && stageDuplicate(request)) {
+                return request;
+            }
             mNetworkQueue.add(request);
             return request;
         }
@@ -262,6 +454,80 @@ public class RequestQueue {
         }
     }
 
+    /**
+     * Puts the request on hold if an identical request is in flight, otherwise makes it the
+     * request in flight for its deduplication key.
+     * @return true if the request is on hold
+     */
+    private boolean stageDuplicate(Request<?> request) {
+        String key = request.getDeduplicationKey();
+        if (key == null) {
+            return false;
+        }
+        synchronized (mDuplicateRequests) {
+            Queue<Request<?>> duplicates = mDuplicateRequests.get(key);
+            if (duplicates != null) {
+                duplicates.add(request);
+                request.addMarker("dedup-on-hold");
+                if (VolleyLog.DEBUG) {
+                    VolleyLog.v("Identical request for key=%s is in flight, putting on hold.",
+                            key);
+                }
+                return true;
+            }
+            mDuplicateRequests.put(key, new LinkedList<Request<?>>());
+            request.setInFlightDeduplicationKey(key);
+            return false;
+        }
+    }
+
+    /**
+     * Removes and returns the requests waiting for the given request, or null if it is not in
+     * flight for other requests.
+     */
+    private Queue<Request<?>> takeDuplicates(Request<?> request) {
+        synchronized (mDuplicateRequests) {
+            String key = request.getInFlightDeduplicationKey();
+            if (key == null) {
+                return null;
+            }
+            request.setInFlightDeduplicationKey(null);
+            return mDuplicateRequests.remove(key);
+        }
+    }
+
+    /**
+     * Called from the network dispatcher before the response of a request is posted, to post it
+     * to the identical requests waiting for it.
+     */
+    void deliverToDuplicates(Request<?> request, Response<?> response) {
+        Queue<Request<?>> duplicates = takeDuplicates(request);
+        if (duplicates == null) {
+            return;
+        }
+        for (Request<?> duplicate : duplicates) {
+            duplicate.addMarker("dedup-response");
+            duplicate.setIsFromNetwork();
+            duplicate.markDelivered();
+            mDelivery.postResponse(duplicate, response);
+        }
+    }
+
+    /**
+     * Called from the network dispatcher before the error of a request is posted, to post it to
+     * the identical requests waiting for it.
+     */
+    void deliverErrorToDuplicates(Request<?> request, VolleyError error) {
+        Queue<Request<?>> duplicates = takeDuplicates(request);
+        if (duplicates == null) {
+            return;
+        }
+        for (Request<?> duplicate : duplicates) {
+            duplicate.addMarker("dedup-error");
+            mDelivery.postError(duplicate, error);
+        }
+    }
+
     /**
      * Called from {@link Request#finish(String)}, indicating that processing of the given request
      * has finished.
@@ -275,6 +541,22 @@ public class RequestQueue {
             mCurrentRequests.remove(request);
         }
 
+        // Let the next request of the host, or of another host, go to the network.
+        mNetworkQueue.onRequestFinished(request);
+
+        // A request finishing without sharing its response, e.g. cancelled, hands the identical
+        // requests waiting for it over to the first of them.
+        synchronized (mDuplicateRequests) {
+            String key = request.getInFlightDeduplicationKey();
+            Queue<Request<?>> duplicates = takeDuplicates(request);
+            Request<?> next = duplicates != null ? duplicates.poll() : null;
+            if (next != null) {
+                mDuplicateRequests.put(key, duplicates);
+                next.setInFlightDeduplicationKey(key);
+                mNetworkQueue.add(next);
+            }
+        }
+
         if (request.shouldCache()) {
             synchronized (mWaitingRequests) {
                 String cacheKey = request.getCacheKey();
@@ -38,6 +38,16 @@ public class Response<T> {
         public void onErrorResponse(VolleyError error);
     }
 
+    /** Where a response comes from. */
+    public enum Origin {
+        /** Parsed from a network response. */
+        NETWORK,
+        /** Parsed from a cache entry, without contacting the server. */
+        CACHE,
+        /** Parsed from a cache entry the server answered was not modified. */
+        NOT_MODIFIED
+    }
+
     /** Returns a successful response containing the parsed result. */
     public static <T> Response<T> success(T result, Cache.Entry cacheEntry) {
         return new Response<T>(result, cacheEntry);
@@ -63,6 +73,24 @@ public class Response<T> {
     /** True if this response was a soft-expired one and a second one MAY be coming. */
     public boolean intermediate = false;
 
+    /** True if this response was an expired cached one, delivered because the network failed. */
+    public boolean stale = false;
+
+    /** Where this response comes from, or null if unknown. */
+    public Origin origin;
+
+    /** True if the metadata below was set from a cache entry. */
+    public boolean hasCacheMetadata = false;
+
+    /** Date of the cached response as reported by the server. */
+    public long serverDate;
+
+    /** Soft TTL of the cached response. */
+    public long softTtl;
+
+    /** TTL of the cached response. */
+    public long ttl;
+
     /**
      * Returns whether this response is considered successful.
      */
@@ -70,6 +98,24 @@ public class Response<T> {
         return error == null;
     }
 
+    /**
+     * Sets where this response comes from and the metadata of its cache entry, so delivery does
+     * not need to read the cache.
+     * @param entry The entry this response was read from or written to, may be null
+     * @param origin Where this response comes from
+     * @return This Response object to allow for chaining.
+     */
+    public Response<T> setCacheMetadata(Cache.Entry entry, Origin origin) {
+        this.origin = origin;
+        if (entry != null) {
+            this.hasCacheMetadata = true;
+            this.serverDate = entry.serverDate;
+            this.softTtl = entry.softTtl;
+            this.ttl = entry.ttl;
+        }
+        return this;
+    }
+
 
     private Response(T result, Cache.Entry cacheEntry) {
         this.result = result;
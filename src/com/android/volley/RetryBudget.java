@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.SystemClock;
+
+/**
+ * A token bucket limiting the retries of all the requests of a network, see
+ * {@link com.android.volley.toolbox.BasicNetwork#setRetryBudget(RetryBudget)}. Each retry takes
+ * a token and the tokens come back at a fixed rate: during an outage, requests fail after their
+ * first attempt once the bucket is empty instead of multiplying the load on the server.
+ */
+public class RetryBudget {
+    private final int mMaxTokens;
+    private final double mTokensPerMs;
+
+    private double mTokens;
+    private long mLastRefillTime;
+
+    /**
+     * @param maxTokens Maximum number of retries in a burst
+     * @param tokensPerSecond Sustained number of retries per second
+     */
+    public RetryBudget(int maxTokens, float tokensPerSecond) {
+        if (maxTokens < 1 || tokensPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid budget " + maxTokens + ", "
+                    + tokensPerSecond);
+        }
+        mMaxTokens = maxTokens;
+        mTokensPerMs = tokensPerSecond / 1000d;
+        mTokens = maxTokens;
+        mLastRefillTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Takes a token for a retry.
+     * @return false if there is none left, the request must not be retried
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (mTokens < 1) {
+            return false;
+        }
+        mTokens--;
+        return true;
+    }
+
+    /**
+     * Returns the number of retries allowed right now.
+     */
+    public synchronized int getAvailableTokens() {
+        refill();
+        return (int) mTokens;
+    }
+
+    private void refill() {
+        long now = SystemClock.elapsedRealtime();
+        mTokens = Math.min(mMaxTokens, mTokens + (now - mLastRefillTime) * mTokensPerMs);
+        mLastRefillTime = now;
+    }
+}
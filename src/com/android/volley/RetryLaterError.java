@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * Thrown by a {@link Network} to have the request performed again after a delay, see
+ * {@link BackoffRetryPolicy}. The network dispatcher adds the request back to its queue once the
+ * delay is over instead of delivering an error.
+ */
+@SuppressWarnings("serial")
+public class RetryLaterError extends VolleyError {
+    private final long mDelayMs;
+
+    /**
+     * @param cause The error of the last attempt
+     * @param delayMs The delay before the next attempt
+     */
+    public RetryLaterError(VolleyError cause, long delayMs) {
+        super(cause);
+        mDelayMs = delayMs;
+    }
+
+    public long getDelayMs() {
+        return mDelayMs;
+    }
+}
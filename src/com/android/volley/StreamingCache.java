@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link Cache} which can store the data of an entry while it is being received, without
+ * holding it in memory.
+ */
+public interface StreamingCache extends Cache {
+    /**
+     * Starts writing an entry.
+     * @param key Cache key
+     * @return An {@link Editor} which must be either committed or aborted
+     * @throws IOException if the entry cannot be written
+     */
+    public Editor edit(String key) throws IOException;
+
+    /**
+     * Writes the data of an entry which becomes visible when it is committed.
+     */
+    public interface Editor {
+        /** Returns the stream to write the data of the entry to. */
+        public OutputStream getOutputStream();
+
+        /**
+         * Stores the data written so far with the metadata of the given entry, replacing any
+         * existing entry for the key.
+         * @param entry Metadata for cache coherency, TTL, etc.; its data is ignored
+         * @throws IOException if the entry could not be stored
+         */
+        public void commit(Cache.Entry entry) throws IOException;
+
+        /** Discards the data written so far. */
+        public void abort();
+    }
+}
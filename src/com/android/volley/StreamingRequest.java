@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A request whose response body is handed to the parser as an {@link InputStream} while it is
+ * read from the network, instead of being copied into a byte[] first.
+ *
+ * <p>The {@link NetworkResponse} given to {@link #parseNetworkStream(NetworkResponse,
+ * InputStream)} only carries the status code and the headers. The cache entry returned with the
+ * parsed response only needs its metadata: the body is written to the cache while it is read.</p>
+ *
+ * @param <T> The type of parsed response this request expects.
+ */
+public abstract class StreamingRequest<T> extends Request<T> {
+
+    public StreamingRequest(int method, String url, Response.ErrorListener listener) {
+        super(method, url, listener);
+    }
+
+    /**
+     * Returns true if the response should be streamed to
+     * {@link #parseNetworkStream(NetworkResponse, InputStream)}. When false, the request goes
+     * through the regular {@link #parseNetworkResponse(NetworkResponse)} path.
+     */
+    public boolean shouldStream() {
+        return true;
+    }
+
+    /**
+     * Parses the response body while it is read from the network; called from a worker thread.
+     * The stream does not need to be read until its end, nor closed.
+     *
+     * @param response Status code and headers of the response; its data is null
+     * @param body Response body
+     * @return The parsed response, or null in the case of an error
+     * @throws IOException if reading the body fails, in which case the request may be retried
+     */
+    public abstract Response<T> parseNetworkStream(NetworkResponse response, InputStream body)
+            throws IOException;
+
+    /**
+     * Parses responses which are already in memory, such as cache hits, through
+     * {@link #parseNetworkStream(NetworkResponse, InputStream)}.
+     */
+    @Override
+    protected Response<T> parseNetworkResponse(NetworkResponse response) {
+        NetworkResponse headers = new NetworkResponse(response.statusCode, null,
+                response.headers, response.notModified);
+        try {
+            return parseNetworkStream(headers, new ByteArrayInputStream(response.data));
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        }
+    }
+}
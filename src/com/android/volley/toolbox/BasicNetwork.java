@@ -17,17 +17,26 @@
 
 package com.android.volley.toolbox;
 
+import android.net.Uri;
 import android.os.SystemClock;
 
 import com.android.volley.AuthFailureError;
+import com.android.volley.BackoffRetryPolicy;
 import com.android.volley.Cache;
+import com.android.volley.CircuitOpenError;
 import com.android.volley.Network;
 import com.android.volley.NetworkError;
 import com.android.volley.NetworkResponse;
 import com.android.volley.NoConnectionError;
+import com.android.volley.ParseError;
 import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.RetryBudget;
+import com.android.volley.RetryLaterError;
 import com.android.volley.RetryPolicy;
 import com.android.volley.ServerError;
+import com.android.volley.StreamingCache;
+import com.android.volley.StreamingRequest;
 import com.android.volley.TimeoutError;
 import com.android.volley.VolleyError;
 import com.android.volley.VolleyLog;
@@ -40,8 +49,10 @@ import org.apache.http.StatusLine;
 import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.impl.cookie.DateUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.CookieStore;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
@@ -70,6 +81,12 @@ public class BasicNetwork implements Network {
 
     protected final ByteArrayPool mPool;
 
+    /** Limits the retries of all requests, or null for no limit. */
+    private volatile RetryBudget mRetryBudget;
+
+    /** Stops sending requests to failing hosts, or null. */
+    private volatile CircuitBreaker mCircuitBreaker;
+
     /**
      * @param httpStack HTTP stack to be used
      */
@@ -88,6 +105,32 @@ public class BasicNetwork implements Network {
         mPool = pool;
     }
 
+    /**
+     * Sets the budget shared by the retries of all the requests performed by this network, or
+     * null to only apply their retry policies.
+     */
+    public void setRetryBudget(RetryBudget retryBudget) {
+        mRetryBudget = retryBudget;
+    }
+
+    public RetryBudget getRetryBudget() {
+        return mRetryBudget;
+    }
+
+    /**
+     * Sets the circuit breaker failing requests fast when their host failed too often recently,
+     * or null to always send them. Such requests fail with a {@link CircuitOpenError}, a
+     * connection failure, so a cache entry is only delivered instead within its stale-if-error
+     * window.
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        mCircuitBreaker = circuitBreaker;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return mCircuitBreaker;
+    }
+
     @Override
     public NetworkResponse performRequest(Request<?> request) throws VolleyError {
         long requestStart = SystemClock.elapsedRealtime();
@@ -95,6 +138,7 @@ public class BasicNetwork implements Network {
             HttpResponse httpResponse = null;
             byte[] responseContents = null;
             Map<String, String> responseHeaders = new HashMap<String, String>();
+            checkCircuit(request);
             try {
                 // Gather headers.
                 Map<String, String> headers = new HashMap<String, String>();
@@ -102,8 +146,10 @@ public class BasicNetwork implements Network {
                 httpResponse = mHttpStack.performRequest(request, headers);
                 StatusLine statusLine = httpResponse.getStatusLine();
                 int statusCode = statusLine.getStatusCode();
+                recordOutcome(request, statusCode < 500);
 
                 responseHeaders = convertHeaders(request.getUrl(), httpResponse.getAllHeaders());
+                addVaryKey(request, responseHeaders);
                 // Handle cache validation.
                 if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
                     return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED,
@@ -128,36 +174,220 @@ public class BasicNetwork implements Network {
                     throw new IOException();
                 }
                 return new NetworkResponse(statusCode, responseContents, responseHeaders, false);
-            } catch (SocketTimeoutException e) {
-                attemptRetryOnException("socket", request, new TimeoutError());
-            } catch (ConnectTimeoutException e) {
-                attemptRetryOnException("connection", request, new TimeoutError());
-            } catch (MalformedURLException e) {
-                throw new RuntimeException("Bad URL " + request.getUrl(), e);
             } catch (IOException e) {
-                int statusCode = 0;
-                NetworkResponse networkResponse = null;
-                if (httpResponse != null) {
-                    statusCode = httpResponse.getStatusLine().getStatusCode();
-                } else {
-                    throw new NoConnectionError(e);
+                if (httpResponse == null) {
+                    // No connection or a timeout: the host did not answer.
+                    recordOutcome(request, false);
                 }
-                VolleyLog.e("Unexpected response code %d for %s", statusCode, request.getUrl());
-                if (responseContents != null) {
-                    networkResponse = new NetworkResponse(statusCode, responseContents,
-                            responseHeaders, false);
-                    if (statusCode == HttpStatus.SC_UNAUTHORIZED ||
-                            statusCode == HttpStatus.SC_FORBIDDEN) {
-                        attemptRetryOnException("auth",
-                                request, new AuthFailureError(networkResponse));
+                handleException(e, request, httpResponse, responseContents, responseHeaders);
+            }
+        }
+    }
+
+    @Override
+    public Response<?> performStreamingRequest(StreamingRequest<?> request, Cache cache)
+            throws VolleyError {
+        long requestStart = SystemClock.elapsedRealtime();
+        while (true) {
+            HttpResponse httpResponse = null;
+            byte[] responseContents = null;
+            Map<String, String> responseHeaders = new HashMap<String, String>();
+            checkCircuit(request);
+            try {
+                // Gather headers.
+                Map<String, String> headers = new HashMap<String, String>();
+                addCacheHeaders(headers, request.getCacheEntry());
+                httpResponse = mHttpStack.performRequest(request, headers);
+                StatusLine statusLine = httpResponse.getStatusLine();
+                int statusCode = statusLine.getStatusCode();
+                recordOutcome(request, statusCode < 500);
+
+                responseHeaders = convertHeaders(request.getUrl(), httpResponse.getAllHeaders());
+                addVaryKey(request, responseHeaders);
+                // Handle cache validation.
+                if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+                    return null;
+                }
+
+                // Error bodies are small and parsed by parseNetworkError(), read them as usual.
+                if (statusCode < 200 || statusCode > 299) {
+                    if (httpResponse.getEntity() != null) {
+                        responseContents = entityToBytes(httpResponse.getEntity());
                     } else {
-                        // TODO: Only throw ServerError for 5xx status codes.
-                        throw new ServerError(networkResponse);
+                        responseContents = new byte[0];
+                    }
+                    throw new IOException();
+                }
+
+                Response<?> response = parseStream(request, cache,
+                        new NetworkResponse(statusCode, null, responseHeaders, false),
+                        httpResponse.getEntity());
+
+                // if the request is slow, log it.
+                long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
+                logSlowRequests(requestLifetime, request, null, statusLine);
+                return response;
+            } catch (IOException e) {
+                if (httpResponse == null) {
+                    // No connection or a timeout: the host did not answer.
+                    recordOutcome(request, false);
+                }
+                handleException(e, request, httpResponse, responseContents, responseHeaders);
+            }
+        }
+    }
+
+    /**
+     * Checks the circuit of the host of the request before an attempt. Being a connection
+     * failure, the error lets the dispatcher deliver the cache entry as a stale response within
+     * its stale-if-error window.
+     * @throws CircuitOpenError if the circuit is open
+     */
+    private void checkCircuit(Request<?> request) throws CircuitOpenError {
+        CircuitBreaker circuitBreaker = mCircuitBreaker;
+        if (circuitBreaker == null || circuitBreaker.allowRequest(getHost(request))) {
+            return;
+        }
+        request.addMarker("circuit-open");
+        throw new CircuitOpenError();
+    }
+
+    private void recordOutcome(Request<?> request, boolean success) {
+        CircuitBreaker circuitBreaker = mCircuitBreaker;
+        if (circuitBreaker == null) {
+            return;
+        }
+        if (success) {
+            circuitBreaker.onSuccess(getHost(request));
+        } else {
+            circuitBreaker.onFailure(getHost(request));
+        }
+    }
+
+    private static String getHost(Request<?> request) {
+        Uri uri = Uri.parse(request.getUrl());
+        String host = uri != null ? uri.getHost() : null;
+        return host != null ? host : "";
+    }
+
+    /**
+     * Hands the body of a successful response to the request parser, writing it to the cache on
+     * the way. The cache entry is only committed once the whole body has been read and parsed.
+     */
+    private Response<?> parseStream(StreamingRequest<?> request, Cache cache,
+            NetworkResponse networkResponse, HttpEntity entity) throws IOException {
+        StreamingCache.Editor editor = null;
+        if (cache != null && request.shouldCache()) {
+            editor = openEditor(cache, request.getCacheKey());
+        }
+        InputStream in = entity != null ? entity.getContent() : null;
+        if (in == null) {
+            // Some responses such as 204s do not have content.
+            in = new ByteArrayInputStream(new byte[0]);
+        }
+        TeeInputStream tee = null;
+        if (editor != null) {
+            tee = new TeeInputStream(in, editor.getOutputStream());
+            in = tee;
+        }
+
+        byte[] buffer = null;
+        boolean committed = false;
+        try {
+            Response<?> response = request.parseNetworkStream(networkResponse, in);
+            if (response == null) {
+                return Response.error(new ParseError(networkResponse));
+            }
+            if (editor != null && response.isSuccess() && response.cacheEntry != null) {
+                // The parser may stop before the end of the body, e.g. after a JSON document.
+                buffer = mPool.getBuf(1024);
+                tee.drain(buffer);
+                if (!tee.hasOutputFailed()) {
+                    try {
+                        editor.commit(response.cacheEntry);
+                        committed = true;
+                        request.addMarker("network-cache-written");
+                    } catch (IOException e) {
+                        VolleyLog.d("Could not write cache entry for %s", request.getCacheKey());
                     }
-                } else {
-                    throw new NetworkError(networkResponse);
                 }
             }
+            return response;
+        } finally {
+            if (editor != null && !committed) {
+                editor.abort();
+            }
+            if (entity != null) {
+                try {
+                    // Close the InputStream and release the resources by "consuming the content".
+                    entity.consumeContent();
+                } catch (IOException e) {
+                    VolleyLog.v("Error occured when calling consumingContent");
+                }
+            }
+            mPool.returnBuf(buffer);
+        }
+    }
+
+    /**
+     * Opens an editor writing straight to disk for a {@link StreamingCache}, or buffering the
+     * entry in memory for other caches.
+     */
+    private StreamingCache.Editor openEditor(Cache cache, String key) {
+        if (cache instanceof StreamingCache) {
+            try {
+                return ((StreamingCache) cache).edit(key);
+            } catch (IOException e) {
+                VolleyLog.d("Could not open cache entry for %s", key);
+                return null;
+            }
+        }
+        return new BufferingEditor(cache, key, mPool);
+    }
+
+    /**
+     * Handles a failure of the request: either prepares the request for a retry or throws the
+     * matching {@link VolleyError}.
+     */
+    private void handleException(IOException e, Request<?> request, HttpResponse httpResponse,
+            byte[] responseContents, Map<String, String> responseHeaders) throws VolleyError {
+        if (e instanceof SocketTimeoutException) {
+            attemptRetryOnException("socket", request, new TimeoutError());
+            return;
+        }
+        if (e instanceof ConnectTimeoutException) {
+            attemptRetryOnException("connection", request, new TimeoutError());
+            return;
+        }
+        if (e instanceof MalformedURLException) {
+            throw new RuntimeException("Bad URL " + request.getUrl(), e);
+        }
+        int statusCode = 0;
+        NetworkResponse networkResponse = null;
+        if (httpResponse != null) {
+            statusCode = httpResponse.getStatusLine().getStatusCode();
+        } else if (retriesServerErrors(request)) {
+            attemptRetryOnException("connection", request, new NoConnectionError(e));
+            return;
+        } else {
+            throw new NoConnectionError(e);
+        }
+        VolleyLog.e("Unexpected response code %d for %s", statusCode, request.getUrl());
+        if (responseContents != null) {
+            networkResponse = new NetworkResponse(statusCode, responseContents,
+                    responseHeaders, false);
+            if (statusCode == HttpStatus.SC_UNAUTHORIZED ||
+                    statusCode == HttpStatus.SC_FORBIDDEN) {
+                attemptRetryOnException("auth",
+                        request, new AuthFailureError(networkResponse));
+            } else if (statusCode >= 500 && retriesServerErrors(request)) {
+                attemptRetryOnException("server", request, new ServerError(networkResponse));
+            } else {
+                // TODO: Only throw ServerError for 5xx status codes.
+                throw new ServerError(networkResponse);
+            }
+        } else {
+            throw new NetworkError(networkResponse);
         }
     }
 
@@ -184,14 +414,23 @@ public class BasicNetwork implements Network {
 
     /**
      * Attempts to prepare the request for a retry. If there are no more attempts remaining in the
-     * request's retry policy, a timeout exception is thrown.
+     * request's retry policy, the deadline of the request passed or the retry budget is spent,
+     * the exception is thrown. A {@link RetryLaterError} is thrown if the policy waits before the
+     * next attempt.
      * @param request The request to use.
      */
-    private static void attemptRetryOnException(String logPrefix, Request<?> request,
+    private void attemptRetryOnException(String logPrefix, Request<?> request,
             VolleyError exception) throws VolleyError {
         RetryPolicy retryPolicy = request.getRetryPolicy();
         int oldTimeout = request.getTimeoutMs();
 
+        if (request.isPastDeadline()) {
+            // No time left for another attempt, whatever the retry policy allows.
+            request.addMarker(
+                    String.format("%s-deadline-giveup [timeout=%s]", logPrefix, oldTimeout));
+            throw exception;
+        }
+
         try {
             retryPolicy.retry(exception);
         } catch (VolleyError e) {
@@ -199,7 +438,36 @@ public class BasicNetwork implements Network {
                     String.format("%s-timeout-giveup [timeout=%s]", logPrefix, oldTimeout));
             throw e;
         }
+
+        long delayMs = 0;
+        if (retryPolicy instanceof BackoffRetryPolicy) {
+            delayMs = ((BackoffRetryPolicy) retryPolicy).getRetryDelayMs();
+            if (delayMs >= request.getRemainingTimeMs()) {
+                request.addMarker(
+                        String.format("%s-deadline-giveup [timeout=%s]", logPrefix, oldTimeout));
+                throw exception;
+            }
+        }
+
+        RetryBudget retryBudget = mRetryBudget;
+        if (retryBudget != null && !retryBudget.tryAcquire()) {
+            request.addMarker(
+                    String.format("%s-budget-giveup [timeout=%s]", logPrefix, oldTimeout));
+            throw exception;
+        }
         request.addMarker(String.format("%s-retry [timeout=%s]", logPrefix, oldTimeout));
+
+        if (delayMs > 0) {
+            // Let the dispatcher serve other requests meanwhile.
+            throw new RetryLaterError(exception, delayMs);
+        }
+    }
+
+    /**
+     * Returns true if server errors and connection failures are retried, not only timeouts.
+     */
+    private static boolean retriesServerErrors(Request<?> request) {
+        return request.getRetryPolicy() instanceof BackoffRetryPolicy;
     }
 
     private void addCacheHeaders(Map<String, String> headers, Cache.Entry entry) {
@@ -253,6 +521,18 @@ public class BasicNetwork implements Network {
         }
     }
 
+    /**
+     * Stores the values of the request headers the response varies on with its headers, for the
+     * cache to check them before answering another request with it.
+     */
+    private static void addVaryKey(Request<?> request, Map<String, String> responseHeaders)
+            throws AuthFailureError {
+        String varyKey = HttpHeaderParser.getVaryKey(responseHeaders, request.getHeaders());
+        if (varyKey != null) {
+            responseHeaders.put(HttpHeaderParser.HEADER_VARY_KEY, varyKey);
+        }
+    }
+
     /**
      * Converts Headers[] to Map<String, String>.
      */
@@ -268,4 +548,39 @@ public class BasicNetwork implements Network {
     public HttpStack getmHttpStack() {
         return mHttpStack;
     }
+
+    /**
+     * Collects the data of an entry in memory and puts it to a {@link Cache} which cannot store
+     * streams when committed.
+     */
+    private static class BufferingEditor implements StreamingCache.Editor {
+        private final Cache mCache;
+        private final String mKey;
+        private final PoolingByteArrayOutputStream mBytes;
+
+        public BufferingEditor(Cache cache, String key, ByteArrayPool pool) {
+            mCache = cache;
+            mKey = key;
+            mBytes = new PoolingByteArrayOutputStream(pool);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mBytes;
+        }
+
+        @Override
+        public void commit(Cache.Entry entry) throws IOException {
+            entry.data = mBytes.toByteArray();
+            mBytes.close();
+            mCache.put(mKey, entry);
+        }
+
+        @Override
+        public void abort() {
+            try {
+                mBytes.close();
+            } catch (IOException ignored) { }
+        }
+    }
 }
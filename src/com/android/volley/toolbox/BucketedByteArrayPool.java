@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ByteArrayPool} which does not lock: buffers are kept in lock-free queues, one per
+ * power-of-two size class.
+ * <p>
+ * A buffer of length L is kept in the class of the largest power of two not above L, so it can
+ * serve any request of that size. Requests are served from the class of the smallest power of two
+ * not below the requested size, or from a larger class when it is empty. New buffers are allocated
+ * with a power-of-two length, so that they fit their class exactly when returned.
+ * <p>
+ * The total size of the buffers in the pool is bounded the same way. When a returned buffer makes
+ * it exceed the limit, the oldest buffers of the largest classes are discarded first, instead of
+ * the least-recently-used buffers of the whole pool.
+ */
+public class BucketedByteArrayPool extends ByteArrayPool {
+    /** Number of size classes, the largest holds buffers of 2^30 bytes. */
+    private static final int CLASS_COUNT = 31;
+
+    /** The buffers of each size class, oldest first. */
+    private final ConcurrentLinkedQueue<byte[]>[] mBuckets;
+
+    /** The total size of the buffers in the pool */
+    private final AtomicInteger mCurrentSize = new AtomicInteger();
+
+    /** The maximum aggregate size of the buffers in the pool. */
+    private final int mSizeLimit;
+
+    /**
+     * @param sizeLimit the maximum size of the pool, in bytes
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BucketedByteArrayPool(int sizeLimit) {
+        super(sizeLimit);
+        mSizeLimit = sizeLimit;
+        mBuckets = new ConcurrentLinkedQueue[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            mBuckets[i] = new ConcurrentLinkedQueue<byte[]>();
+        }
+    }
+
+    @Override
+    public byte[] getBuf(int len) {
+        int sizeClass = ceilClass(len);
+        if (sizeClass >= CLASS_COUNT) {
+            // Too large to ever be pooled.
+            return new byte[len];
+        }
+        for (int i = sizeClass; i < CLASS_COUNT; i++) {
+            byte[] buf = mBuckets[i].poll();
+            if (buf != null) {
+                mCurrentSize.addAndGet(-buf.length);
+                return buf;
+            }
+        }
+        return new byte[1 << sizeClass];
+    }
+
+    @Override
+    public void returnBuf(byte[] buf) {
+        if (buf == null || buf.length == 0 || buf.length > mSizeLimit) {
+            return;
+        }
+        mBuckets[floorClass(buf.length)].offer(buf);
+        if (mCurrentSize.addAndGet(buf.length) > mSizeLimit) {
+            trim();
+        }
+    }
+
+    /**
+     * Returns the total size of the buffers in the pool.
+     */
+    public int getCurrentSize() {
+        return mCurrentSize.get();
+    }
+
+    /**
+     * Removes buffers from the pool until it is under its size limit.
+     */
+    private void trim() {
+        for (int i = CLASS_COUNT - 1; i >= 0 && mCurrentSize.get() > mSizeLimit; i--) {
+            byte[] buf;
+            while (mCurrentSize.get() > mSizeLimit && (buf = mBuckets[i].poll()) != null) {
+                mCurrentSize.addAndGet(-buf.length);
+            }
+        }
+    }
+
+    /** Returns the class of the smallest power of two not below len. */
+    private static int ceilClass(int len) {
+        if (len <= 1) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(len - 1);
+    }
+
+    /** Returns the class of the largest power of two not above len, which must be positive. */
+    private static int floorClass(int len) {
+        return 31 - Integer.numberOfLeadingZeros(len);
+    }
+}
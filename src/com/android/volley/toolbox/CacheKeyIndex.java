@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An inverted index of cache keys by their segments, used to find the keys containing a string
+ * without testing all of them.
+ * <p>
+ * Keys are split into segments on every character which is not a letter or a digit, so the
+ * segments of a URL are its host labels, path segments, parameter names and values. In a string
+ * such as "/users/", a segment delimited on both sides must be a whole segment of every key
+ * containing the string, and a segment delimited on its left only must be the start of one. The
+ * keys having that segment are the only candidates, and they are then checked with
+ * {@link String#contains(CharSequence)}. Strings without delimited segments, such as "users",
+ * are checked against every key.
+ * <p>
+ * This class is not thread-safe, it is guarded by the lock of its cache.
+ */
+class CacheKeyIndex {
+
+    /** Keys by segment, sorted to look up segments by prefix */
+    private final TreeMap<String, Set<String>> mKeysBySegment = new TreeMap<String, Set<String>>();
+
+    /**
+     * Indexes a key. Adding a key already indexed has no effect.
+     */
+    public void add(String key) {
+        for (Segment segment : split(key)) {
+            Set<String> keys = mKeysBySegment.get(segment.value);
+            if (keys == null) {
+                keys = new HashSet<String>();
+                mKeysBySegment.put(segment.value, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    /**
+     * Removes a key from the index.
+     */
+    public void remove(String key) {
+        for (Segment segment : split(key)) {
+            Set<String> keys = mKeysBySegment.get(segment.value);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                mKeysBySegment.remove(segment.value);
+            }
+        }
+    }
+
+    public void clear() {
+        mKeysBySegment.clear();
+    }
+
+    /**
+     * Returns the keys containing one of the criteria.
+     * @param criteria The strings to look for.
+     * @param allKeys All the keys of the cache, checked for criteria which cannot be looked up.
+     */
+    public Set<String> findKeysContaining(String[] criteria, Collection<String> allKeys) {
+        Set<String> found = new HashSet<String>();
+        for (String criterion : criteria) {
+            for (String key : candidatesFor(criterion, allKeys)) {
+                if (key.contains(criterion)) {
+                    found.add(key);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the keys which may contain the criterion: the keys of its most selective segment.
+     */
+    private Collection<String> candidatesFor(String criterion, Collection<String> allKeys) {
+        Collection<String> best = null;
+        for (Segment segment : split(criterion)) {
+            Collection<String> keys;
+            if (segment.start > 0 && segment.end < criterion.length()) {
+                keys = mKeysBySegment.get(segment.value);
+                if (keys == null) {
+                    // No key has this segment.
+                    return new ArrayList<String>(0);
+                }
+            } else if (segment.start > 0) {
+                keys = keysWithSegmentPrefix(segment.value);
+            } else {
+                continue;
+            }
+            if (best == null || keys.size() < best.size()) {
+                best = keys;
+            }
+        }
+        return best != null ? best : allKeys;
+    }
+
+    private Collection<String> keysWithSegmentPrefix(String prefix) {
+        Set<String> keys = new HashSet<String>();
+        for (Map.Entry<String, Set<String>> entry
+                : mKeysBySegment.subMap(prefix, prefix + Character.MAX_VALUE).entrySet()) {
+            keys.addAll(entry.getValue());
+        }
+        return keys;
+    }
+
+    /**
+     * Splits a string into its maximal runs of letters and digits.
+     */
+    static List<Segment> split(String s) {
+        List<Segment> segments = new ArrayList<Segment>();
+        int start = -1;
+        for (int i = 0; i <= s.length(); i++) {
+            boolean inSegment = i < s.length() && Character.isLetterOrDigit(s.charAt(i));
+            if (inSegment && start < 0) {
+                start = i;
+            } else if (!inSegment && start >= 0) {
+                segments.add(new Segment(s.substring(start, i), start, i));
+                start = -1;
+            }
+        }
+        return segments;
+    }
+
+    static class Segment {
+        final String value;
+        final int start;
+        final int end;
+
+        Segment(String value, int start, int end) {
+            this.value = value;
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An inverted index of cache keys by their tags, see {@link com.android.volley.Cache.Entry#tags}.
+ * <p>
+ * This class is not thread-safe, it is guarded by the lock of its cache.
+ */
+class CacheTagIndex {
+
+    private final Map<String, Set<String>> mKeysByTag = new HashMap<String, Set<String>>();
+
+    public void add(String key, Set<String> tags) {
+        for (String tag : tags) {
+            Set<String> keys = mKeysByTag.get(tag);
+            if (keys == null) {
+                keys = new HashSet<String>();
+                mKeysByTag.put(tag, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    public void remove(String key, Set<String> tags) {
+        for (String tag : tags) {
+            Set<String> keys = mKeysByTag.get(tag);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                mKeysByTag.remove(tag);
+            }
+        }
+    }
+
+    public void clear() {
+        mKeysByTag.clear();
+    }
+
+    /**
+     * Returns the keys having one of the given tags.
+     */
+    public Set<String> getKeys(String... tags) {
+        Set<String> result = new HashSet<String>();
+        for (String tag : tags) {
+            Set<String> keys = mKeysByTag.get(tag);
+            if (keys != null) {
+                result.addAll(keys);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A circuit breaker per host, see {@link BasicNetwork#setCircuitBreaker(CircuitBreaker)}.
+ *
+ * <p>A host starts closed: requests go through and their outcomes are recorded over a window
+ * of the last requests. Once the failure rate over the window reaches the threshold, the
+ * circuit opens and requests to the host fail fast. After the open duration the circuit is
+ * half-open: a single request is let through to probe the host, closing the circuit if it
+ * succeeds and opening it again if it fails. Another probe is let through if the outcome of the
+ * previous one is not known after the open duration.</p>
+ */
+public class CircuitBreaker {
+    public static final float DEFAULT_FAILURE_RATE_THRESHOLD = 0.5f;
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+    public static final int DEFAULT_MINIMUM_REQUESTS = 10;
+    public static final long DEFAULT_OPEN_DURATION_MS = 30 * 1000;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final float mFailureRateThreshold;
+    private final int mWindowSize;
+    private final int mMinimumRequests;
+    private final long mOpenDurationMs;
+
+    private final Map<String, Circuit> mCircuits = new HashMap<String, Circuit>();
+
+    /** The state and the recent outcomes of a host. */
+    private static class Circuit {
+        State state = State.CLOSED;
+        /** Outcomes of the last requests, true for a failure. */
+        final boolean[] outcomes;
+        int count;
+        int next;
+        int failures;
+        /** Time the next request may probe the host, when not closed. */
+        long probeTime;
+
+        Circuit(int windowSize) {
+            outcomes = new boolean[windowSize];
+        }
+
+        void record(boolean failure) {
+            if (count == outcomes.length) {
+                if (outcomes[next]) {
+                    failures--;
+                }
+            } else {
+                count++;
+            }
+            outcomes[next] = failure;
+            if (failure) {
+                failures++;
+            }
+            next = (next + 1) % outcomes.length;
+        }
+
+        void reset() {
+            count = 0;
+            next = 0;
+            failures = 0;
+        }
+    }
+
+    /**
+     * Constructs a circuit breaker with the default thresholds.
+     */
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_RATE_THRESHOLD, DEFAULT_WINDOW_SIZE, DEFAULT_MINIMUM_REQUESTS,
+                DEFAULT_OPEN_DURATION_MS);
+    }
+
+    /**
+     * @param failureRateThreshold Failure rate, from 0 to 1, opening the circuit
+     * @param windowSize Number of recent requests the failure rate is computed over
+     * @param minimumRequests Number of requests in the window before the circuit may open
+     * @param openDurationMs Time the circuit stays open before probing the host
+     */
+    public CircuitBreaker(float failureRateThreshold, int windowSize, int minimumRequests,
+            long openDurationMs) {
+        if (failureRateThreshold <= 0 || failureRateThreshold > 1 || windowSize < 1
+                || minimumRequests < 1 || minimumRequests > windowSize) {
+            throw new IllegalArgumentException("Invalid thresholds");
+        }
+        mFailureRateThreshold = failureRateThreshold;
+        mWindowSize = windowSize;
+        mMinimumRequests = minimumRequests;
+        mOpenDurationMs = openDurationMs;
+    }
+
+    /**
+     * Returns true if a request may be sent to the host now.
+     */
+    public synchronized boolean allowRequest(String host) {
+        Circuit circuit = mCircuits.get(host);
+        if (circuit == null || circuit.state == State.CLOSED) {
+            return true;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (now < circuit.probeTime) {
+            return false;
+        }
+        circuit.state = State.HALF_OPEN;
+        circuit.probeTime = now + mOpenDurationMs;
+        return true;
+    }
+
+    /**
+     * Records a request the host answered.
+     */
+    public synchronized void onSuccess(String host) {
+        Circuit circuit = mCircuits.get(host);
+        if (circuit == null) {
+            circuit = new Circuit(mWindowSize);
+            mCircuits.put(host, circuit);
+        }
+        switch (circuit.state) {
+            case HALF_OPEN:
+                circuit.state = State.CLOSED;
+                circuit.reset();
+                circuit.record(false);
+                break;
+            case CLOSED:
+                circuit.record(false);
+                break;
+            default:
+                // A request sent before the circuit opened.
+                break;
+        }
+    }
+
+    /**
+     * Records a request the host failed to answer, or answered with a server error.
+     */
+    public synchronized void onFailure(String host) {
+        Circuit circuit = mCircuits.get(host);
+        if (circuit == null) {
+            circuit = new Circuit(mWindowSize);
+            mCircuits.put(host, circuit);
+        }
+        switch (circuit.state) {
+            case HALF_OPEN:
+                open(circuit);
+                break;
+            case CLOSED:
+                circuit.record(true);
+                if (circuit.count >= mMinimumRequests
+                        && circuit.failures >= mFailureRateThreshold * circuit.count) {
+                    open(circuit);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Returns the state of the circuit of the host.
+     */
+    public synchronized State getState(String host) {
+        Circuit circuit = mCircuits.get(host);
+        return circuit != null ? circuit.state : State.CLOSED;
+    }
+
+    private void open(Circuit circuit) {
+        circuit.state = State.OPEN;
+        circuit.probeTime = SystemClock.elapsedRealtime() + mOpenDurationMs;
+        circuit.reset();
+    }
+}
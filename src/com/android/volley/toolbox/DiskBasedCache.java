@@ -17,11 +17,15 @@
 
 package com.android.volley.toolbox;
 
+import android.os.Process;
 import android.os.SystemClock;
 
-import com.android.volley.Cache;
+import com.android.volley.StreamingCache;
 import com.android.volley.VolleyLog;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -30,30 +34,51 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Cache implementation that caches files directly onto the hard disk in the specified
  * directory. The default disk usage size is 5MB, but is configurable.
  */
-public class DiskBasedCache implements Cache {
+public class DiskBasedCache implements StreamingCache {
 
     /** Map of the Key, CacheHeader pairs */
     private final Map<String, CacheHeader> mEntries =
             new LinkedHashMap<String, CacheHeader>(16, .75f, true);
 
+    /** Index of the keys of mEntries, for removeByCriteria */
+    private final CacheKeyIndex mKeyIndex = new CacheKeyIndex();
+
+    /** Index of the keys of mEntries by tag, for invalidateTags */
+    private final CacheTagIndex mTagIndex = new CacheTagIndex();
+
     /** Total amount of space currently used by the cache in bytes. */
     private long mTotalSize = 0;
 
     /** The root directory to use for the cache. */
     private final File mRootDirectory;
 
-    /** The maximum size of the cache in bytes. */
-    private final int mMaxCacheSizeInBytes;
+    /** Size and maximum size of the entries having no budgeted tag. */
+    private final Budget mDefaultBudget;
+
+    /** Budgets of the entries having a tag, see {@link #setTagBudget(String, int)}. */
+    private final Map<String, Budget> mTagBudgets = new HashMap<String, Budget>();
 
     /** Default maximum disk usage in bytes. */
     private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
@@ -62,16 +87,77 @@ public class DiskBasedCache implements Cache {
     private static final float HYSTERESIS_FACTOR = 0.9f;
 
     /** Magic number for current version of cache file format. */
-    private static final int CACHE_MAGIC = 0x20140623;
+    private static final int CACHE_MAGIC = 0x20141122;
+
+    /** Offset of the TTLs in a cache file, right after the magic number. */
+    static final int TTL_OFFSET = 4;
+
+    /** Magic number for current version of the manifest file format. */
+    private static final int MANIFEST_MAGIC = 0x20141120;
+
+    /** Space left for the header at the start of the files written by an {@link Editor}. */
+    private static final int RESERVED_HEADER_BYTES = 4096;
+
+    /** Suffix of the files holding entries being written by an {@link Editor}. */
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /** Name of the file listing the keys and sizes of the entries, used by the lazy mode. */
+    static final String MANIFEST_FILE_NAME = ".manifest";
+
+    /** True to load the manifest in initialize() and scan the files in the background. */
+    private final boolean mLazyInitialization;
+
+    /** The thread scanning the files in the lazy mode, or null. */
+    private Thread mScanThread;
+
+    /** False until all the files of the directory are known to the index. */
+    private volatile boolean mScanComplete = true;
+
+    /** Delay before the manifest is written after a change, to write it once for many. */
+    private static final long MANIFEST_WRITE_DELAY_MS = 1000;
+
+    /** Writes the manifests of the caches in the lazy mode, see {@link #scheduleManifestWrite}. */
+    private static final ScheduledExecutorService sManifestWriter =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "volley-cache-manifest");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** True while a write of the manifest is scheduled and did not take its snapshot yet. */
+    private boolean mManifestWritePending;
+
+    /** The last write of the manifest scheduled, or null. */
+    private ScheduledFuture<?> mManifestWrite;
+
+    /** Held while writing the manifest, taken before the cache lock. */
+    private final Object mManifestLock = new Object();
 
     /**
      * Constructs an instance of the DiskBasedCache at the specified directory.
      * @param rootDirectory The root directory of the cache.
      * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     * @param lazyInitialization True to only load the manifest of the cache in
+     * {@link #initialize()} and to scan the files on a background thread. Entries requested
+     * before the scan reaches them are read directly.
      */
-    public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
+    public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes,
+            boolean lazyInitialization) {
         mRootDirectory = rootDirectory;
-        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mDefaultBudget = new Budget(maxCacheSizeInBytes);
+        mLazyInitialization = lazyInitialization;
+    }
+
+    /**
+     * Constructs an instance of the DiskBasedCache at the specified directory.
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     */
+    public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
+        this(rootDirectory, maxCacheSizeInBytes, false);
     }
 
     /**
@@ -83,6 +169,27 @@ public class DiskBasedCache implements Cache {
         this(rootDirectory, DEFAULT_DISK_USAGE_BYTES);
     }
 
+    /**
+     * Gives the entries having the tag a budget of their own, pruned separately from the other
+     * entries: they never evict the other entries and are never evicted by them. The maximum
+     * size given to the constructor is the budget of the entries having no budgeted tag. Entries
+     * are expected to have at most one budgeted tag.
+     *
+     * @param tag Tag of the entries, see {@link Entry#tags}
+     * @param maxBytes Maximum size in bytes of the entries having the tag
+     */
+    public synchronized void setTagBudget(String tag, int maxBytes) {
+        mTagBudgets.put(tag, new Budget(maxBytes));
+        // Entries already loaded move to the new budget: recount every budget.
+        mDefaultBudget.size = 0;
+        for (Budget budget : mTagBudgets.values()) {
+            budget.size = 0;
+        }
+        for (CacheHeader entry : mEntries.values()) {
+            getBudget(entry.tags).size += entry.size;
+        }
+    }
+
     /**
      * Clears the cache. Deletes all cached files from disk.
      */
@@ -95,7 +202,14 @@ public class DiskBasedCache implements Cache {
             }
         }
         mEntries.clear();
+        mKeyIndex.clear();
+        mTagIndex.clear();
         mTotalSize = 0;
+        mDefaultBudget.size = 0;
+        for (Budget budget : mTagBudgets.values()) {
+            budget.size = 0;
+        }
+        scheduleManifestWrite();
         VolleyLog.d("Cache cleared.");
     }
 
@@ -106,17 +220,31 @@ public class DiskBasedCache implements Cache {
     public synchronized Entry get(String key) {
         CacheHeader entry = mEntries.get(key);
         // if the entry does not exist, return.
-        if (entry == null) {
+        if (entry == null && mScanComplete) {
             return null;
         }
 
         File file = getFileForKey(key);
+        if (entry == null && !file.exists()) {
+            return null;
+        }
         CountingInputStream cis = null;
         try {
             cis = new CountingInputStream(new FileInputStream(file));
-            CacheHeader.readHeader(cis); // eat header
-            byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
-            return entry.toCacheEntry(data);
+            CacheHeader header = CacheHeader.readHeader(cis);
+            if (entry == null || !entry.loaded) {
+                // The background scan did not reach this entry yet: resolve it now.
+                if (!key.equals(header.key)) {
+                    return null;
+                }
+                header.size = file.length();
+                if (entry != null) {
+                    header.alwaysKeep = entry.alwaysKeep;
+                }
+                putEntry(key, header);
+                entry = header;
+            }
+            return entry.readCacheEntry(cis, (int) (file.length() - cis.bytesRead));
         } catch (IOException e) {
             VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
             remove(key);
@@ -135,6 +263,10 @@ public class DiskBasedCache implements Cache {
     /**
      * Initializes the DiskBasedCache by scanning for all files currently in the
      * specified root directory. Creates the root directory if necessary.
+     *
+     * <p>In the lazy mode, only the manifest is loaded here, and the files are scanned on a
+     * background thread. The manifest is written at the end of the scan, then shortly after
+     * each change of the index.</p>
      */
     @Override
     public synchronized void initialize() {
@@ -145,11 +277,33 @@ public class DiskBasedCache implements Cache {
             return;
         }
 
+        if (mLazyInitialization) {
+            if (mScanThread == null) {
+                deleteTempFiles(mRootDirectory.listFiles());
+                readManifest();
+                mScanComplete = false;
+                mScanThread = new Thread("volley-cache-scan") {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        scanFiles();
+                    }
+                };
+                mScanThread.start();
+            }
+            return;
+        }
+
         File[] files = mRootDirectory.listFiles();
         if (files == null) {
             return;
         }
+        deleteTempFiles(files);
         for (File file : files) {
+            if (file.getName().equals(MANIFEST_FILE_NAME)
+                    || file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                continue;
+            }
             FileInputStream fis = null;
             try {
                 fis = new FileInputStream(file);
@@ -170,6 +324,241 @@ public class DiskBasedCache implements Cache {
         }
     }
 
+    /**
+     * Deletes the files left over by puts and editors that did not complete. Only called
+     * before any editor of this instance exists.
+     */
+    private static void deleteTempFiles(File[] files) {
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Waits for the background scan of the lazy mode to complete.
+     */
+    // Visible for testing.
+    void awaitScan() throws InterruptedException {
+        Thread scanThread;
+        synchronized (this) {
+            scanThread = mScanThread;
+        }
+        if (scanThread != null) {
+            scanThread.join();
+        }
+    }
+
+    /**
+     * Loads the keys, sizes and tags listed in the manifest, without opening the cache files.
+     */
+    private void readManifest() {
+        File manifest = new File(mRootDirectory, MANIFEST_FILE_NAME);
+        if (!manifest.exists()) {
+            return;
+        }
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(manifest);
+            InputStream is = new ByteArrayInputStream(streamToBytes(fis, (int) manifest.length()));
+            if (readInt(is) != MANIFEST_MAGIC) {
+                throw new IOException("Unknown manifest version");
+            }
+            int count = readInt(is);
+            for (int i = 0; i < count; i++) {
+                CacheHeader entry = new CacheHeader();
+                entry.key = readString(is);
+                entry.size = readLong(is);
+                entry.tags = readStringSet(is);
+                entry.loaded = false;
+                putEntry(entry.key, entry);
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Ignoring cache manifest: %s", e.toString());
+            manifest.delete();
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    /**
+     * Reconciles the index loaded from the manifest with the files of the directory, then
+     * writes an up to date manifest. Headers are only read for the files the manifest did not
+     * know about or lists with another size, and always outside of the cache lock.
+     */
+    private void scanFiles() {
+        String[] names = mRootDirectory.list();
+        if (names == null) {
+            names = new String[0];
+        }
+        Set<String> fileNames = new HashSet<String>(Arrays.asList(names));
+        Set<String> indexedFileNames = new HashSet<String>();
+
+        List<String> keys;
+        synchronized (this) {
+            keys = new ArrayList<String>(mEntries.keySet());
+        }
+        for (String key : keys) {
+            String fileName = getFilenameForKey(key);
+            if (!fileNames.contains(fileName)) {
+                // Removed after the manifest was written.
+                synchronized (this) {
+                    CacheHeader entry = mEntries.get(key);
+                    if (entry != null && !entry.loaded) {
+                        removeEntry(key);
+                    }
+                }
+                continue;
+            }
+            long size;
+            synchronized (this) {
+                CacheHeader entry = mEntries.get(key);
+                size = entry != null && !entry.loaded ? entry.size : -1;
+            }
+            if (size != -1 && size != new File(mRootDirectory, fileName).length()) {
+                // Overwritten after the manifest was written: read its header below.
+                continue;
+            }
+            indexedFileNames.add(fileName);
+        }
+
+        for (String name : names) {
+            if (name.equals(MANIFEST_FILE_NAME) || name.endsWith(TEMP_FILE_SUFFIX)
+                    || indexedFileNames.contains(name)) {
+                continue;
+            }
+            File file = new File(mRootDirectory, name);
+            FileInputStream fis = null;
+            try {
+                fis = new FileInputStream(file);
+                CacheHeader entry = CacheHeader.readHeader(fis);
+                entry.size = file.length();
+                synchronized (this) {
+                    CacheHeader indexed = mEntries.get(entry.key);
+                    if (indexed == null || !indexed.loaded) {
+                        if (indexed != null) {
+                            entry.alwaysKeep = indexed.alwaysKeep;
+                        }
+                        putEntry(entry.key, entry);
+                    }
+                }
+            } catch (IOException e) {
+                file.delete();
+            } finally {
+                try {
+                    if (fis != null) {
+                        fis.close();
+                    }
+                } catch (IOException ignored) { }
+            }
+        }
+
+        synchronized (this) {
+            mScanComplete = true;
+        }
+        writeManifest();
+    }
+
+    /**
+     * Schedules a write of the manifest, unless one is already pending, so that the changes made
+     * to the index until it runs are written at once. Only used in the lazy mode once the scan
+     * is complete, as the scan writes the manifest when it ends.
+     */
+    private void scheduleManifestWrite() {
+        if (!mLazyInitialization || !mScanComplete || mManifestWritePending) {
+            return;
+        }
+        mManifestWritePending = true;
+        mManifestWrite = sManifestWriter.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DiskBasedCache.this) {
+                    mManifestWritePending = false;
+                }
+                writeManifest();
+            }
+        }, MANIFEST_WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits for the last write of the manifest scheduled, if any.
+     */
+    // Visible for testing.
+    void awaitManifestWrite() throws InterruptedException, ExecutionException {
+        ScheduledFuture<?> manifestWrite;
+        synchronized (this) {
+            manifestWrite = mManifestWrite;
+        }
+        if (manifestWrite != null) {
+            manifestWrite.get();
+        }
+    }
+
+    /**
+     * Returns the size of the entries counted against the budget of the tag, or against the
+     * default budget for a null tag.
+     */
+    // Visible for testing.
+    synchronized long getBudgetSize(String tag) {
+        Budget budget = tag != null ? mTagBudgets.get(tag) : mDefaultBudget;
+        return budget != null ? budget.size : 0;
+    }
+
+    /**
+     * Writes the keys, sizes and tags of the index, in LRU order, to the manifest.
+     */
+    private void writeManifest() {
+        // Also called by the scan thread: the snapshot and the file are written by one at a time.
+        synchronized (mManifestLock) {
+            List<String> keys = new ArrayList<String>();
+            List<Long> sizes = new ArrayList<Long>();
+            List<Set<String>> tags = new ArrayList<Set<String>>();
+            synchronized (this) {
+                for (CacheHeader entry : mEntries.values()) {
+                    keys.add(entry.key);
+                    sizes.add(entry.size);
+                    tags.add(entry.tags);
+                }
+            }
+
+            File manifest = new File(mRootDirectory, MANIFEST_FILE_NAME);
+            File tempFile = new File(mRootDirectory, MANIFEST_FILE_NAME + TEMP_FILE_SUFFIX);
+            OutputStream os = null;
+            try {
+                os = new BufferedOutputStream(new FileOutputStream(tempFile));
+                writeInt(os, MANIFEST_MAGIC);
+                writeInt(os, keys.size());
+                for (int i = 0; i < keys.size(); i++) {
+                    writeString(os, keys.get(i));
+                    writeLong(os, sizes.get(i));
+                    writeStringSet(tags.get(i), os);
+                }
+                os.close();
+                os = null;
+                if (!tempFile.renameTo(manifest)) {
+                    throw new IOException("Could not rename " + tempFile.getAbsolutePath());
+                }
+            } catch (IOException e) {
+                VolleyLog.d("Could not write cache manifest: %s", e.toString());
+                tempFile.delete();
+            } finally {
+                if (os != null) {
+                    try {
+                        os.close();
+                    } catch (IOException ignored) { }
+                }
+            }
+        }
+    }
+
     /**
      * Invalidates an entry in the cache.
      * @param key Cache key
@@ -177,15 +566,51 @@ public class DiskBasedCache implements Cache {
      */
     @Override
     public synchronized void invalidate(String key, boolean fullExpire) {
-        Entry entry = get(key);
-        if (entry != null) {
-            entry.softTtl = 0;
-            if (fullExpire) {
-                entry.ttl = 0;
+        CacheHeader entry = mEntries.get(key);
+        if (entry == null || !entry.loaded) {
+            // Let get() resolve the entries the lazy scan did not reach yet.
+            if (get(key) == null) {
+                return;
             }
-            put(key, entry);
+            entry = mEntries.get(key);
+        }
+        long ttl = fullExpire ? 0 : entry.ttl;
+        try {
+            writeTtls(getFileForKey(key), ttl, 0);
+            entry.ttl = ttl;
+            entry.softTtl = 0;
+        } catch (IOException e) {
+            VolleyLog.d("Could not invalidate %s: %s", key, e.toString());
+            remove(key);
+        }
+    }
+
+    /**
+     * Invalidates every entry having one of the given tags, looked up in an index of the tags.
+     * @param fullExpire True to fully expire the entries, false to soft expire
+     * @param tags Tags of the entries
+     */
+    @Override
+    public synchronized void invalidateTags(boolean fullExpire, String... tags) {
+        for (String key : mTagIndex.getKeys(tags)) {
+            invalidate(key, fullExpire);
         }
+    }
 
+    /**
+     * Overwrites the TTLs in the header of a cache file, without rewriting the rest of it.
+     */
+    private static void writeTtls(File file, long ttl, long softTtl) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+        writeLong(bytes, ttl);
+        writeLong(bytes, softTtl);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(TTL_OFFSET);
+            raf.write(bytes.toByteArray());
+        } finally {
+            raf.close();
+        }
     }
 
     /**
@@ -193,20 +618,21 @@ public class DiskBasedCache implements Cache {
      */
     @Override
     public synchronized void put(String key, Entry entry) {
-        pruneIfNeeded(entry.data.length);
+        CacheHeader header = new CacheHeader(key, entry);
+        pruneIfNeeded(header.tags, (int) header.size);
         File file = getFileForKey(key);
         try {
             FileOutputStream fos = new FileOutputStream(file);
-            CacheHeader e = new CacheHeader(key, entry);
-            boolean success = e.writeHeader(fos);
+            boolean success = header.writeHeader(fos);
             if (!success) {
                 fos.close();
                 VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
                 throw new IOException();
             }
             fos.write(entry.data);
+            CacheHeader.writeSnapshot(fos, entry);
             fos.close();
-            putEntry(key, e);
+            putEntry(key, header);
             return;
         } catch (IOException e) {
         }
@@ -216,6 +642,35 @@ public class DiskBasedCache implements Cache {
         }
     }
 
+    /**
+     * Starts writing the entry with the specified key. Its data goes to a temporary file after
+     * some space reserved for the header, and the file is renamed into the cache when the
+     * editor is committed.
+     */
+    @Override
+    public Editor edit(String key) throws IOException {
+        if (!mRootDirectory.exists() && !mRootDirectory.mkdirs()) {
+            throw new IOException("Unable to create cache dir " + mRootDirectory);
+        }
+        File tempFile = File.createTempFile(getFilenameForKey(key), TEMP_FILE_SUFFIX,
+                mRootDirectory);
+        return new DiskEditor(key, tempFile);
+    }
+
+    /**
+     * Moves a complete cache file written by a {@link DiskEditor} into the cache, as the entry
+     * with the specified key.
+     */
+    private synchronized void commit(String key, CacheHeader header, File entryFile)
+            throws IOException {
+        pruneIfNeeded(header.tags, (int) header.size);
+        File file = getFileForKey(key);
+        if (!entryFile.renameTo(file)) {
+            throw new IOException("Could not rename " + entryFile.getAbsolutePath());
+        }
+        putEntry(key, header);
+    }
+
     /**
      * Removes the specified key from the cache if it exists.
      */
@@ -229,26 +684,15 @@ public class DiskBasedCache implements Cache {
         }
     }
 
+    /**
+     * Removes the entries whose key contains one of the criteria, and deletes their files. The
+     * keys are looked up in an index of their segments, see {@link CacheKeyIndex}.
+     */
     @Override
-    public synchronized void removeByCriteria(String... criteria){
-        Object[] entries = mEntries.entrySet().toArray();
-        for(int i=0; i< entries.length; i++){
-            Map.Entry<String, CacheHeader> entry = (Map.Entry<String, CacheHeader>) entries[i];
-
-            for(String c: criteria) {
-                if (entry.getKey().contains(c)) {
-                    removeEntry(entry.getKey());
-                }
-            }
+    public synchronized void removeByCriteria(String... criteria) {
+        for (String key : mKeyIndex.findKeysContaining(criteria, mEntries.keySet())) {
+            remove(key);
         }
-//        for(Iterator<Map.Entry<String, CacheHeader>> it = mEntries.entrySet().iterator(); it.hasNext(); ) {
-//            Map.Entry<String, CacheHeader> entry = it.next();
-//            for(String c: criteria) {
-//                if (entry.getKey().contains(c)) {
-//                    it.remove();
-//                }
-//            }
-//        }
     }
 
     /**
@@ -256,7 +700,7 @@ public class DiskBasedCache implements Cache {
      * @param key The key to generate a file name for.
      * @return A pseudo-unique filename.
      */
-    private String getFilenameForKey(String key) {
+    static String getFilenameForKey(String key) {
         int firstHalfLength = key.length() / 2;
         String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
         localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
@@ -271,11 +715,13 @@ public class DiskBasedCache implements Cache {
     }
 
     /**
-     * Prunes the cache to fit the amount of bytes specified.
+     * Prunes the entries of the budget of the tags to fit the amount of bytes specified.
+     * @param tags The tags of the entry we are trying to fit into the cache.
      * @param neededSpace The amount of bytes we are trying to fit into the cache.
      */
-    private void pruneIfNeeded(int neededSpace) {
-        if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes) {
+    private void pruneIfNeeded(Set<String> tags, int neededSpace) {
+        Budget budget = getBudget(tags);
+        if ((budget.size + neededSpace) < budget.maxBytes) {
             return;
         }
         if (VolleyLog.DEBUG) {
@@ -290,21 +736,24 @@ public class DiskBasedCache implements Cache {
         while (iterator.hasNext()) {
             Map.Entry<String, CacheHeader> entry = iterator.next();
             CacheHeader e = entry.getValue();
-            if(e.alwaysKeep){
+            if(e.alwaysKeep || getBudget(e.tags) != budget){
                 continue;
             }
 
             boolean deleted = getFileForKey(e.key).delete();
             if (deleted) {
                 mTotalSize -= e.size;
+                budget.size -= e.size;
             } else {
                VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
                        e.key, getFilenameForKey(e.key));
             }
             iterator.remove();
+            mKeyIndex.remove(e.key);
+            mTagIndex.remove(e.key, e.tags);
             prunedFiles++;
 
-            if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+            if ((budget.size + neededSpace) < budget.maxBytes * HYSTERESIS_FACTOR) {
                 break;
             }
         }
@@ -323,11 +772,17 @@ public class DiskBasedCache implements Cache {
     private void putEntry(String key, CacheHeader entry) {
         if (!mEntries.containsKey(key)) {
             mTotalSize += entry.size;
+            mKeyIndex.add(key);
         } else {
             CacheHeader oldEntry = mEntries.get(key);
             mTotalSize += (entry.size - oldEntry.size);
+            getBudget(oldEntry.tags).size -= oldEntry.size;
+            mTagIndex.remove(key, oldEntry.tags);
         }
+        getBudget(entry.tags).size += entry.size;
         mEntries.put(key, entry);
+        mTagIndex.add(key, entry.tags);
+        scheduleManifestWrite();
     }
 
     /**
@@ -337,14 +792,45 @@ public class DiskBasedCache implements Cache {
         CacheHeader entry = mEntries.get(key);
         if (entry != null) {
             mTotalSize -= entry.size;
+            getBudget(entry.tags).size -= entry.size;
             mEntries.remove(key);
+            mKeyIndex.remove(key);
+            mTagIndex.remove(key, entry.tags);
+            scheduleManifestWrite();
+        }
+    }
+
+    /**
+     * Returns the budget the entries having the tags count against.
+     */
+    private Budget getBudget(Set<String> tags) {
+        if (!mTagBudgets.isEmpty() && tags != null) {
+            for (String tag : tags) {
+                Budget budget = mTagBudgets.get(tag);
+                if (budget != null) {
+                    return budget;
+                }
+            }
+        }
+        return mDefaultBudget;
+    }
+
+    /**
+     * The maximum size of some of the entries, and their current size.
+     */
+    private static class Budget {
+        final long maxBytes;
+        long size;
+
+        Budget(long maxBytes) {
+            this.maxBytes = maxBytes;
         }
     }
 
     /**
      * Reads the contents of an InputStream into a byte[].
      * */
-    private static byte[] streamToBytes(InputStream in, int length) throws IOException {
+    static byte[] streamToBytes(InputStream in, int length) throws IOException {
         byte[] bytes = new byte[length];
         int count;
         int pos = 0;
@@ -386,6 +872,24 @@ public class DiskBasedCache implements Cache {
         /** Headers from the response resulting in this cache entry. */
         public Map<String, String> responseHeaders;
 
+        /** Tags to invalidate this entry with. */
+        public Set<String> tags = Collections.emptySet();
+
+        /** Length of the snapshot stored after the data. */
+        public int snapshotLength;
+
+        /** Format of the snapshot, or null. */
+        public String snapshotVersion;
+
+        /** Number of unused bytes ending the header, see {@link DiskEditor}. */
+        int padding;
+
+        /**
+         * False while only the key and size of the entry are known, loaded from the manifest.
+         * (This is not serialized to disk.)
+         */
+        boolean loaded = true;
+
         private CacheHeader() { }
 
         /**
@@ -395,13 +899,18 @@ public class DiskBasedCache implements Cache {
          */
         public CacheHeader(String key, Entry entry) {
             this.key = key;
-            this.size = entry.data.length;
+            this.snapshotLength = entry.snapshot != null ? entry.snapshot.length : 0;
+            this.snapshotVersion = entry.snapshotVersion;
+            this.size = (entry.data != null ? entry.data.length : 0) + snapshotLength;
             this.etag = entry.etag;
             this.serverDate = entry.serverDate;
             this.ttl = entry.ttl;
             this.softTtl = entry.softTtl;
             this.responseHeaders = entry.responseHeaders;
             this.alwaysKeep = entry.alwaysKeep;
+            if (entry.tags != null) {
+                this.tags = entry.tags;
+            }
         }
 
         /**
@@ -416,15 +925,27 @@ public class DiskBasedCache implements Cache {
                 // don't bother deleting, it'll get pruned eventually
                 throw new IOException();
             }
+            // The TTLs come first, at a fixed offset, so that they can be updated in place.
+            entry.ttl = readLong(is);
+            entry.softTtl = readLong(is);
             entry.key = readString(is);
             entry.etag = readString(is);
             if (entry.etag.equals("")) {
                 entry.etag = null;
             }
             entry.serverDate = readLong(is);
-            entry.ttl = readLong(is);
-            entry.softTtl = readLong(is);
             entry.responseHeaders = readStringStringMap(is);
+            entry.tags = readStringSet(is);
+            entry.snapshotLength = readInt(is);
+            entry.snapshotVersion = readString(is);
+            if (entry.snapshotVersion.equals("")) {
+                entry.snapshotVersion = null;
+            }
+            entry.padding = readInt(is);
+            if (entry.padding < 0 || entry.padding > RESERVED_HEADER_BYTES) {
+                throw new IOException("Invalid header padding " + entry.padding);
+            }
+            streamToBytes(is, entry.padding);
             return entry;
         }
 
@@ -439,9 +960,36 @@ public class DiskBasedCache implements Cache {
             e.ttl = ttl;
             e.softTtl = softTtl;
             e.responseHeaders = responseHeaders;
+            e.tags = tags;
             return e;
         }
 
+        /**
+         * Reads the data and the snapshot following this header and creates a cache entry.
+         * @param is The InputStream positioned after the header
+         * @param length Length of the data and the snapshot
+         */
+        public Entry readCacheEntry(InputStream is, int length) throws IOException {
+            if (snapshotLength < 0 || snapshotLength > length) {
+                throw new IOException("Invalid snapshot length " + snapshotLength);
+            }
+            Entry e = toCacheEntry(streamToBytes(is, length - snapshotLength));
+            if (snapshotLength > 0) {
+                e.snapshot = streamToBytes(is, snapshotLength);
+                e.snapshotVersion = snapshotVersion;
+            }
+            return e;
+        }
+
+        /**
+         * Writes the snapshot of an entry, to follow its data.
+         */
+        public static void writeSnapshot(OutputStream os, Entry entry) throws IOException {
+            if (entry.snapshot != null) {
+                os.write(entry.snapshot);
+            }
+        }
+
 
         /**
          * Writes the contents of this CacheHeader to the specified OutputStream.
@@ -449,12 +997,17 @@ public class DiskBasedCache implements Cache {
         public boolean writeHeader(OutputStream os) {
             try {
                 writeInt(os, CACHE_MAGIC);
+                writeLong(os, ttl);
+                writeLong(os, softTtl);
                 writeString(os, key);
                 writeString(os, etag == null ? "" : etag);
                 writeLong(os, serverDate);
-                writeLong(os, ttl);
-                writeLong(os, softTtl);
                 writeStringStringMap(responseHeaders, os);
+                writeStringSet(tags, os);
+                writeInt(os, snapshotLength);
+                writeString(os, snapshotVersion == null ? "" : snapshotVersion);
+                writeInt(os, padding);
+                os.write(new byte[padding]);
                 os.flush();
                 return true;
             } catch (IOException e) {
@@ -465,10 +1018,133 @@ public class DiskBasedCache implements Cache {
 
     }
 
-    private static class CountingInputStream extends FilterInputStream {
-        private int bytesRead = 0;
+    /**
+     * Writes the data of an entry to a temporary file until it is committed. The file starts with
+     * {@link #RESERVED_HEADER_BYTES} bytes, overwritten by the header on commit, so that the file
+     * can then be renamed into the cache as is.
+     */
+    private class DiskEditor implements Editor {
+        private final String mKey;
+        private final File mTempFile;
+        private final OutputStream mOutputStream;
+        private boolean mDone;
+
+        private DiskEditor(String key, File tempFile) throws IOException {
+            mKey = key;
+            mTempFile = tempFile;
+            mOutputStream = new BufferedOutputStream(new FileOutputStream(tempFile));
+            try {
+                mOutputStream.write(new byte[RESERVED_HEADER_BYTES]);
+            } catch (IOException e) {
+                mOutputStream.close();
+                tempFile.delete();
+                throw e;
+            }
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOutputStream;
+        }
+
+        @Override
+        public void commit(Entry entry) throws IOException {
+            if (mDone) {
+                throw new IllegalStateException("Editor already committed or aborted");
+            }
+            mDone = true;
+            File entryFile = null;
+            try {
+                mOutputStream.close();
+                CacheHeader header = new CacheHeader(mKey, entry);
+                entryFile = writeHeader(header, entry);
+                header.size = entryFile.length();
+                DiskBasedCache.this.commit(mKey, header, entryFile);
+            } finally {
+                // Both are gone once the entry file has been renamed.
+                mTempFile.delete();
+                if (entryFile != null) {
+                    entryFile.delete();
+                }
+            }
+        }
 
-        private CountingInputStream(InputStream in) {
+        /**
+         * Writes the header in the reserved space of the temporary file and appends the snapshot,
+         * without holding the cache lock. A header too large for the reserved space is written
+         * to a new file instead, followed by a copy of the data.
+         * @return The complete cache file
+         */
+        private File writeHeader(CacheHeader header, Entry entry) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(RESERVED_HEADER_BYTES);
+            if (!header.writeHeader(bytes)) {
+                throw new IOException("Failed to write header for " + mKey);
+            }
+            if (bytes.size() <= RESERVED_HEADER_BYTES) {
+                header.padding = RESERVED_HEADER_BYTES - bytes.size();
+                bytes.reset();
+                header.writeHeader(bytes);
+                RandomAccessFile raf = new RandomAccessFile(mTempFile, "rw");
+                try {
+                    raf.write(bytes.toByteArray());
+                    if (entry.snapshot != null) {
+                        raf.seek(raf.length());
+                        raf.write(entry.snapshot);
+                    }
+                } finally {
+                    raf.close();
+                }
+                return mTempFile;
+            }
+
+            File file = File.createTempFile(getFilenameForKey(mKey), TEMP_FILE_SUFFIX,
+                    mRootDirectory);
+            byte[] buffer = new byte[4096];
+            OutputStream os = null;
+            InputStream is = null;
+            try {
+                os = new BufferedOutputStream(new FileOutputStream(file));
+                os.write(bytes.toByteArray());
+                is = new FileInputStream(mTempFile);
+                streamToBytes(is, RESERVED_HEADER_BYTES);
+                int count;
+                while ((count = is.read(buffer)) != -1) {
+                    os.write(buffer, 0, count);
+                }
+                CacheHeader.writeSnapshot(os, entry);
+                os.close();
+                os = null;
+                return file;
+            } catch (IOException e) {
+                if (os != null) {
+                    os.close();
+                }
+                file.delete();
+                throw e;
+            } finally {
+                if (is != null) {
+                    is.close();
+                }
+            }
+        }
+
+        @Override
+        public void abort() {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            try {
+                mOutputStream.close();
+            } catch (IOException ignored) { }
+            mTempFile.delete();
+        }
+    }
+
+    static class CountingInputStream extends FilterInputStream {
+        int bytesRead = 0;
+
+        CountingInputStream(InputStream in) {
             super(in);
         }
 
@@ -587,5 +1263,27 @@ public class DiskBasedCache implements Cache {
         return result;
     }
 
+    static void writeStringSet(Set<String> set, OutputStream os) throws IOException {
+        if (set != null) {
+            writeInt(os, set.size());
+            for (String s : set) {
+                writeString(os, s);
+            }
+        } else {
+            writeInt(os, 0);
+        }
+    }
+
+    static Set<String> readStringSet(InputStream is) throws IOException {
+        int size = readInt(is);
+        Set<String> result = (size == 0)
+                ? Collections.<String>emptySet()
+                : new HashSet<String>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(readString(is).intern());
+        }
+        return result;
+    }
+
 
 }
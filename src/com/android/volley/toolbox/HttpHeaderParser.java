@@ -30,9 +30,23 @@ import java.util.Map;
  */
 public class HttpHeaderParser {
 
+    /**
+     * Name of the pseudo response header storing the values of the request headers listed in
+     * the Vary header of the response, see {@link #getVaryKey(Map, Map)}.
+     */
+    public static final String HEADER_VARY_KEY = "X-Volley-Vary-Key";
+
     /**
      * Extracts a {@link Cache.Entry} from a {@link NetworkResponse}.
      *
+     * <p>The soft TTL is the freshness lifetime given by <code>max-age</code>, or by Expires
+     * relative to Date, minus the Age of the response. The hard TTL adds the
+     * <code>stale-while-revalidate</code> window to it, during which the entry is delivered and
+     * refreshed in the background. <code>stale-if-error</code> applies when the network fails,
+     * within a window counted from the soft TTL as in RFC 5861, see
+     * {@link #parseStaleIfError(Map)}. <code>s-maxage</code> only applies to shared caches and is
+     * ignored.
+     *
      * @param response The network response to parse headers from
      * @return a cache entry for the given response, or null if the response is not cacheable.
      */
@@ -44,8 +58,12 @@ public class HttpHeaderParser {
         long serverDate = 0;
         long serverExpires = 0;
         long softExpire = 0;
+        long finalExpire = 0;
         long maxAge = 0;
+        long staleWhileRevalidate = 0;
+        long age = 0;
         boolean hasCacheControl = false;
+        boolean mustRevalidate = false;
 
         String serverEtag = null;
         String headerValue;
@@ -68,39 +86,145 @@ public class HttpHeaderParser {
                         maxAge = Long.parseLong(token.substring(8));
                     } catch (Exception e) {
                     }
+                } else if (token.startsWith("stale-while-revalidate=")) {
+                    try {
+                        staleWhileRevalidate = Long.parseLong(token.substring(23));
+                    } catch (Exception e) {
+                    }
                 } else if (token.equals("must-revalidate") || token.equals("proxy-revalidate")) {
-                    maxAge = 0;
+                    mustRevalidate = true;
                 }
             }
         }
 
+        // A response varying on anything cannot be matched to a request.
+        headerValue = headers.get("Vary");
+        if (headerValue != null && headerValue.trim().equals("*")) {
+            return null;
+        }
+
         headerValue = headers.get("Expires");
         if (headerValue != null) {
             serverExpires = parseDateAsEpoch(headerValue);
         }
 
+        // Time the response already spent in caches on the way.
+        headerValue = headers.get("Age");
+        if (headerValue != null) {
+            try {
+                age = Math.max(0, Long.parseLong(headerValue.trim()));
+            } catch (Exception e) {
+            }
+        }
+
         serverEtag = headers.get("ETag");
 
+        if (mustRevalidate) {
+            maxAge = 0;
+            staleWhileRevalidate = 0;
+        }
+
         // Cache-Control takes precedence over an Expires header, even if both exist and Expires
         // is more restrictive.
         if (hasCacheControl) {
-            softExpire = now + maxAge * 1000;
+            softExpire = now + (maxAge - age) * 1000;
+            finalExpire = softExpire + Math.max(0, staleWhileRevalidate) * 1000;
         } else if (serverDate > 0 && serverExpires >= serverDate) {
             // Default semantic for Expire header in HTTP specification is softExpire.
-            softExpire = now + (serverExpires - serverDate);
+            softExpire = now + (serverExpires - serverDate) - age * 1000;
+            finalExpire = softExpire;
         }
 
         Cache.Entry entry = new Cache.Entry();
         entry.data = response.data;
         entry.etag = serverEtag;
         entry.softTtl = softExpire;
-        entry.ttl = entry.softTtl;
+        entry.ttl = finalExpire;
         entry.serverDate = serverDate;
         entry.responseHeaders = headers;
 
         return entry;
     }
 
+    /**
+     * Returns the values of the request headers listed in the Vary header of a response, as a
+     * secondary key telling whether a cached response may answer another request.
+     *
+     * @param responseHeaders Headers of the response
+     * @param requestHeaders Headers of the request, may be null
+     * @return the key, or null if the response does not vary
+     */
+    public static String getVaryKey(Map<String, String> responseHeaders,
+            Map<String, String> requestHeaders) {
+        String vary = responseHeaders != null ? responseHeaders.get("Vary") : null;
+        if (vary == null) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder();
+        String[] names = vary.split(",");
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].trim();
+            if (name.length() == 0) {
+                continue;
+            }
+            String value = getHeaderIgnoreCase(requestHeaders, name);
+            key.append(name.toLowerCase()).append('=')
+                    .append(value != null ? value : "").append('\n');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns true if a cached response may answer a request having the given headers: either
+     * it does not vary, or it was fetched with the same values for the headers it varies on.
+     */
+    public static boolean matchesVary(Map<String, String> responseHeaders,
+            Map<String, String> requestHeaders) {
+        String key = getVaryKey(responseHeaders, requestHeaders);
+        return key == null || key.equals(responseHeaders.get(HEADER_VARY_KEY));
+    }
+
+    private static String getHeaderIgnoreCase(Map<String, String> headers, String name) {
+        if (headers == null) {
+            return null;
+        }
+        String value = headers.get(name);
+        if (value != null) {
+            return value;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the <code>stale-if-error</code> directive of the Cache-Control header, in seconds:
+     * how long after it expired the response may still be used when the origin fails.
+     *
+     * @param headers Response headers, may be null
+     * @return the directive value, or 0 if it is absent or invalid
+     */
+    public static long parseStaleIfError(Map<String, String> headers) {
+        String headerValue = headers != null ? headers.get("Cache-Control") : null;
+        if (headerValue == null) {
+            return 0;
+        }
+        String[] tokens = headerValue.split(",");
+        for (int i = 0; i < tokens.length; i++) {
+            String token = tokens[i].trim();
+            if (token.startsWith("stale-if-error=")) {
+                try {
+                    return Math.max(0, Long.parseLong(token.substring(15)));
+                } catch (Exception e) {
+                }
+            }
+        }
+        return 0;
+    }
+
     /**
      * Parse date in RFC1123 format, and return its value as epoch
      */
@@ -119,7 +243,15 @@ public class HttpHeaderParser {
      * or the HTTP default (ISO-8859-1) if none can be found.
      */
     public static String parseCharset(Map<String, String> headers) {
-        String contentType = headers.get(HTTP.CONTENT_TYPE);
+        return parseCharset(headers, HTTP.DEFAULT_CONTENT_CHARSET);
+    }
+
+    /**
+     * Returns the charset specified in the Content-Type of this header,
+     * or the given default if none can be found.
+     */
+    public static String parseCharset(Map<String, String> headers, String defaultCharset) {
+        String contentType = headers != null ? headers.get(HTTP.CONTENT_TYPE) : null;
         if (contentType != null) {
             String[] params = contentType.split(";");
             for (int i = 1; i < params.length; i++) {
@@ -132,6 +264,6 @@ public class HttpHeaderParser {
             }
         }
 
-        return HTTP.DEFAULT_CONTENT_CHARSET;
+        return defaultCharset;
     }
 }
@@ -20,10 +20,13 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Process;
 import android.widget.ImageView;
 
+import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
+import com.android.volley.Response;
 import com.android.volley.Response.ErrorListener;
 import com.android.volley.Response.Listener;
 import com.android.volley.VolleyError;
@@ -32,6 +35,9 @@ import com.android.volley.toolbox.ImageRequest;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Helper that handles loading and caching images from remote URLs.
@@ -52,6 +58,15 @@ public class ImageLoader {
     /** The cache implementation to be used as an L1 cache before calling into volley. */
     private final ImageCache mCache;
 
+    /** The disk tier storing the images as received from the network, or null. */
+    private final ImageDiskCache mDiskCache;
+
+    /** Executor of the disk tier lookups, or null without a disk tier. */
+    private final Executor mDiskExecutor;
+
+    /** Executor shared by the loaders not given one, see {@link #getDefaultDiskExecutor()}. */
+    private static Executor sDefaultDiskExecutor;
+
     /**
      * HashMap of Cache keys -> BatchedImageRequest used to track in-flight requests so
      * that we can coalesce multiple requests to the same URL into a single network request.
@@ -79,14 +94,89 @@ public class ImageLoader {
         public void putBitmap(String url, Bitmap bitmap);
     }
 
+    /**
+     * Disk tier of the images, storing each image once per URL as received from the network,
+     * without encoding the bitmaps again, and decoding it to the size requested. The images of
+     * a URL with such a tier are not stored in the cache of the {@link RequestQueue}.
+     *
+     * <p>Unlike the {@link ImageCache}, the disk tier is only called off the main thread: the
+     * lookups run on the disk executor of the loader, and their results are delivered along
+     * with the network responses.</p>
+     */
+    public interface ImageDiskCache {
+        /**
+         * Decodes the image stored for the url, or returns null if there is none. Called on the
+         * disk executor.
+         * @param url The url of the image
+         * @param maxWidth Maximum width to decode the image to, or zero for none
+         * @param maxHeight Maximum height to decode the image to, or zero for none
+         */
+        public Bitmap getBitmap(String url, int maxWidth, int maxHeight);
+
+        /**
+         * Stores the image of the url as received from the network. Called on a network thread.
+         * @param url The url of the image
+         * @param data The encoded image
+         */
+        public void putEncoded(String url, byte[] data);
+    }
+
     /**
      * Constructs a new ImageLoader.
      * @param queue The RequestQueue to use for making image requests.
      * @param imageCache The cache to use as an L1 cache.
      */
     public ImageLoader(RequestQueue queue, ImageCache imageCache) {
+        this(queue, imageCache, null);
+    }
+
+    /**
+     * Constructs a new ImageLoader.
+     * @param queue The RequestQueue to use for making image requests.
+     * @param imageCache The cache to use as an L1 cache.
+     * @param diskCache The disk tier looked up on L1 cache misses, or null for none.
+     */
+    public ImageLoader(RequestQueue queue, ImageCache imageCache, ImageDiskCache diskCache) {
+        this(queue, imageCache, diskCache, diskCache != null ? getDefaultDiskExecutor() : null);
+    }
+
+    /**
+     * Constructs a new ImageLoader.
+     * @param queue The RequestQueue to use for making image requests.
+     * @param imageCache The cache to use as an L1 cache.
+     * @param diskCache The disk tier looked up on L1 cache misses, or null for none.
+     * @param diskExecutor The executor to run the disk tier lookups on.
+     */
+    public ImageLoader(RequestQueue queue, ImageCache imageCache, ImageDiskCache diskCache,
+            Executor diskExecutor) {
         mRequestQueue = queue;
         mCache = imageCache;
+        mDiskCache = diskCache;
+        mDiskExecutor = diskExecutor;
+    }
+
+    /**
+     * Returns the executor running the disk tier lookups of the loaders not given one: a single
+     * background thread, so that a single image is decoded at a time.
+     */
+    public static synchronized Executor getDefaultDiskExecutor() {
+        if (sDefaultDiskExecutor == null) {
+            sDefaultDiskExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread("volley-image-disk") {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    };
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sDefaultDiskExecutor;
     }
 
     /**
@@ -223,21 +313,19 @@ public class ImageLoader {
             return imageContainer;
         }
 
+        if (mDiskCache != null) {
+            // Look the image up on disk first, off the main thread, and track the lookup as the
+            // in-flight request.
+            BatchedImageRequest lookup = new BatchedImageRequest(null, imageContainer);
+            mInFlightRequests.put(cacheKey, lookup);
+            lookUpDisk(requestUrl, maxWidth, maxHeight, cacheKey, httpHeaders, lookup);
+            return imageContainer;
+        }
+
         // The request is not already in flight. Send the new request to the network and
         // track it.
-        Request<?> newRequest =
-            new ImageRequest(requestUrl, new Listener<Bitmap>() {
-                @Override
-                public void onResponse(Bitmap response) {
-                    onGetImageSuccess(cacheKey, response);
-                }
-            }, maxWidth, maxHeight,
-            Config.ARGB_8888, new ErrorListener() {
-                @Override
-                public void onErrorResponse(VolleyError error) {
-                    onGetImageError(cacheKey, error);
-                }
-            }, httpHeaders);
+        Request<?> newRequest = makeImageRequest(requestUrl, maxWidth, maxHeight, cacheKey,
+                httpHeaders);
 
         mRequestQueue.add(newRequest);
         mInFlightRequests.put(cacheKey,
@@ -245,6 +333,81 @@ public class ImageLoader {
         return imageContainer;
     }
 
+    /**
+     * Decodes the image from the disk tier on the disk executor. A hit is delivered like a
+     * network response; a miss sends the request to the network, unless all the callers have
+     * cancelled it meanwhile.
+     */
+    private void lookUpDisk(final String requestUrl, final int maxWidth, final int maxHeight,
+            final String cacheKey, final Map<String, String> httpHeaders,
+            final BatchedImageRequest lookup) {
+        mDiskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (lookup.mCanceled) {
+                    return;
+                }
+                final Bitmap bitmap = mDiskCache.getBitmap(requestUrl, maxWidth, maxHeight);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mInFlightRequests.get(cacheKey) != lookup) {
+                            // Cancelled while looking up the disk.
+                            return;
+                        }
+                        if (bitmap != null) {
+                            onGetImageSuccess(cacheKey, bitmap);
+                            return;
+                        }
+                        Request<?> newRequest = makeImageRequest(requestUrl, maxWidth, maxHeight,
+                                cacheKey, httpHeaders);
+                        lookup.mRequest = newRequest;
+                        mRequestQueue.add(newRequest);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Creates the request of an image missing from the caches. With a disk tier, the image is
+     * stored in it as received, instead of in the cache of the {@link RequestQueue}.
+     */
+    private Request<Bitmap> makeImageRequest(final String requestUrl, int maxWidth,
+            int maxHeight, final String cacheKey, Map<String, String> httpHeaders) {
+        Listener<Bitmap> listener = new Listener<Bitmap>() {
+            @Override
+            public void onResponse(Bitmap response) {
+                onGetImageSuccess(cacheKey, response);
+            }
+        };
+        ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                onGetImageError(cacheKey, error);
+            }
+        };
+        if (mDiskCache == null) {
+            return new ImageRequest(requestUrl, listener, maxWidth, maxHeight, Config.ARGB_8888,
+                    errorListener, httpHeaders);
+        }
+
+        final ImageDiskCache diskCache = mDiskCache;
+        Request<Bitmap> request = new ImageRequest(requestUrl, listener, maxWidth, maxHeight,
+                Config.ARGB_8888, errorListener, httpHeaders) {
+            @Override
+            protected Response<Bitmap> parseNetworkResponse(NetworkResponse response) {
+                Response<Bitmap> parsed = super.parseNetworkResponse(response);
+                if (parsed.isSuccess()) {
+                    diskCache.putEncoded(requestUrl, response.data);
+                }
+                return parsed;
+            }
+        };
+        request.setShouldCache(false);
+        return request;
+    }
+
     /**
      * Sets the amount of time to wait after the first response arrives before delivering all
      * responses. Batching can be disabled entirely by passing in 0.
@@ -371,8 +534,11 @@ public class ImageLoader {
      * interested in its results.
      */
     private class BatchedImageRequest {
-        /** The request being tracked */
-        private final Request<?> mRequest;
+        /** The request being tracked, or null while looking up the disk tier */
+        private Request<?> mRequest;
+
+        /** True once no one is listening, read by the disk tier lookups */
+        private volatile boolean mCanceled;
 
         /** The result of the request being tracked by this item */
         private Bitmap mResponseBitmap;
@@ -424,7 +590,10 @@ public class ImageLoader {
         public boolean removeContainerAndCancelIfNecessary(ImageContainer container) {
             mContainers.remove(container);
             if (mContainers.size() == 0) {
-                mRequest.cancel();
+                mCanceled = true;
+                if (mRequest != null) {
+                    mRequest.cancel();
+                }
                 return true;
             }
             return false;
@@ -482,7 +651,7 @@ public class ImageLoader {
      * @param maxWidth The max-width of the output.
      * @param maxHeight The max-height of the output.
      */
-    private static String getCacheKey(String url, int maxWidth, int maxHeight) {
+    static String getCacheKey(String url, int maxWidth, int maxHeight) {
         return new StringBuilder(url.length() + 12).append("#W").append(maxWidth)
                 .append("#H").append(maxHeight).append(url).toString();
     }
@@ -22,6 +22,7 @@ import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 
 import com.android.volley.AuthFailureError;
+import com.android.volley.Cache;
 import com.android.volley.DefaultRetryPolicy;
 import com.android.volley.NetworkResponse;
 import com.android.volley.ParseError;
@@ -29,6 +30,7 @@ import com.android.volley.Request;
 import com.android.volley.Response;
 import com.android.volley.VolleyLog;
 
+import java.util.Collections;
 import java.util.Map;
 
 /**
@@ -45,6 +47,12 @@ public class ImageRequest extends Request<Bitmap> {
     /** Default backoff multiplier for image requests */
     private static final float IMAGE_BACKOFF_MULT = 2f;
 
+    /**
+     * Tag of the cached images, to give them their own budget in a {@link DiskBasedCache}, see
+     * {@link DiskBasedCache#setTagBudget(String, int)}.
+     */
+    public static final String CACHE_TAG = "volley-image";
+
     private final Response.Listener<Bitmap> mListener;
     private final Config mDecodeConfig;
     private final int mMaxWidth;
@@ -88,6 +96,11 @@ public class ImageRequest extends Request<Bitmap> {
         return Priority.LOW;
     }
 
+    @Override
+    public TrafficClass getTrafficClass() {
+        return TrafficClass.IMAGE;
+    }
+
     @Override
     public Map<String, String> getHeaders() throws AuthFailureError {
         if(mhttpHeaders == null){
@@ -149,11 +162,34 @@ public class ImageRequest extends Request<Bitmap> {
      * The real guts of parseNetworkResponse. Broken out for readability.
      */
     private Response<Bitmap> doParse(NetworkResponse response) {
-        byte[] data = response.data;
+        Bitmap bitmap = decodeBitmap(response.data, mDecodeConfig, mMaxWidth, mMaxHeight);
+        if (bitmap == null) {
+            return Response.error(new ParseError(response));
+        } else {
+            Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(response);
+            if (entry != null) {
+                entry.tags = Collections.singleton(CACHE_TAG);
+            }
+            return Response.success(bitmap, entry);
+        }
+    }
+
+    /**
+     * Decodes an encoded image the way the image requests do, see the constructor for the
+     * sizing rules.
+     *
+     * @param data The encoded image
+     * @param decodeConfig Format to decode the bitmap to
+     * @param maxWidth Maximum width to decode this bitmap to, or zero for none
+     * @param maxHeight Maximum height to decode this bitmap to, or zero for none
+     * @return The bitmap, or null if the data could not be decoded
+     */
+    public static Bitmap decodeBitmap(byte[] data, Config decodeConfig, int maxWidth,
+            int maxHeight) {
         BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
         Bitmap bitmap = null;
-        if (mMaxWidth == 0 && mMaxHeight == 0) {
-            decodeOptions.inPreferredConfig = mDecodeConfig;
+        if (maxWidth == 0 && maxHeight == 0) {
+            decodeOptions.inPreferredConfig = decodeConfig;
             bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
         } else {
             // If we have to resize this image, first get the natural bounds.
@@ -163,9 +199,9 @@ public class ImageRequest extends Request<Bitmap> {
             int actualHeight = decodeOptions.outHeight;
 
             // Then compute the dimensions we would ideally like to decode to.
-            int desiredWidth = getResizedDimension(mMaxWidth, mMaxHeight,
+            int desiredWidth = getResizedDimension(maxWidth, maxHeight,
                     actualWidth, actualHeight);
-            int desiredHeight = getResizedDimension(mMaxHeight, mMaxWidth,
+            int desiredHeight = getResizedDimension(maxHeight, maxWidth,
                     actualHeight, actualWidth);
 
             // Decode to the nearest power of two scaling factor.
@@ -187,12 +223,7 @@ public class ImageRequest extends Request<Bitmap> {
                 bitmap = tempBitmap;
             }
         }
-
-        if (bitmap == null) {
-            return Response.error(new ParseError(response));
-        } else {
-            return Response.success(bitmap, HttpHeaderParser.parseCacheHeaders(response));
-        }
+        return bitmap;
     }
 
     @Override
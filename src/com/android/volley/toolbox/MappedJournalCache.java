@@ -0,0 +1,829 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+
+import com.android.volley.Cache;
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache implementation that appends its entries to a few large memory-mapped segment files
+ * instead of writing one file per key.
+ *
+ * <p>The location of every entry is kept in a compact index file, which is an append-only log
+ * of puts and removals. {@link #initialize()} rebuilds the in-memory index with one sequential
+ * read of that file and never opens the entries themselves, so the startup cost does not depend
+ * on the number of cached responses.</p>
+ *
+ * <p>Removed, replaced and evicted entries leave dead bytes in their segment. When less than
+ * half of a sealed segment is still live, its remaining entries are copied to the active segment
+ * (dropping the expired ones) and the segment file is deleted.</p>
+ *
+ * <p>Each record is stored in the same format as a {@link DiskBasedCache} file: the
+ * {@link CacheHeader} followed by the data and the snapshot.</p>
+ */
+public class MappedJournalCache implements Cache {
+
+    /** Default maximum disk usage in bytes. */
+    private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
+
+    /** Default size of a segment file in bytes. */
+    private static final int DEFAULT_SEGMENT_SIZE_BYTES = 512 * 1024;
+
+    /** High water mark percentage for the cache */
+    private static final float HYSTERESIS_FACTOR = 0.9f;
+
+    /** A sealed segment is compacted when its live ratio falls under this value. */
+    private static final float COMPACTION_THRESHOLD = 0.5f;
+
+    /** Magic number for current version of the index file format. */
+    private static final int INDEX_MAGIC = 0x20141120;
+
+    /** Index operation: an entry was written at a location. */
+    private static final int OP_PUT = 1;
+
+    /** Index operation: an entry was removed. */
+    private static final int OP_REMOVE = 2;
+
+    /** Index flag: the entry must never be pruned. */
+    private static final int FLAG_ALWAYS_KEEP = 1;
+
+    private static final String INDEX_FILE_NAME = "journal.idx";
+    private static final String INDEX_TEMP_FILE_NAME = "journal.idx.tmp";
+    private static final String SEGMENT_FILE_PREFIX = "segment.";
+
+    /** Map of the Key, Record pairs, in access order. */
+    private final Map<String, Record> mEntries =
+            new LinkedHashMap<String, Record>(16, .75f, true);
+
+    /** Index of the keys of mEntries by tag, for invalidateTags. */
+    private final CacheTagIndex mTagIndex = new CacheTagIndex();
+
+    /** Segments by id. */
+    private final Map<Integer, Segment> mSegments = new HashMap<Integer, Segment>();
+
+    /** The segment new records are appended to, or null if none is open yet. */
+    private Segment mActiveSegment;
+
+    /** Id of the next segment to create. */
+    private int mNextSegmentId = 0;
+
+    /** Total amount of live bytes in the segments. */
+    private long mTotalSize = 0;
+
+    /** Appends operations to the index file. */
+    private OutputStream mIndexWriter;
+
+    /** Number of operations in the index file, used to decide when to rewrite it. */
+    private int mIndexOperations = 0;
+
+    /** The root directory to use for the cache. */
+    private final File mRootDirectory;
+
+    /** The maximum size of the cache in bytes. */
+    private final int mMaxCacheSizeInBytes;
+
+    /** The size of a new segment file in bytes. */
+    private final int mSegmentSizeInBytes;
+
+    /**
+     * Constructs an instance of the MappedJournalCache at the specified directory.
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the live entries in bytes.
+     * @param segmentSizeInBytes The size of each segment file in bytes.
+     */
+    public MappedJournalCache(File rootDirectory, int maxCacheSizeInBytes,
+            int segmentSizeInBytes) {
+        mRootDirectory = rootDirectory;
+        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mSegmentSizeInBytes = segmentSizeInBytes;
+    }
+
+    /**
+     * Constructs an instance of the MappedJournalCache at the specified directory using the
+     * default segment size of 512KB.
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the live entries in bytes.
+     */
+    public MappedJournalCache(File rootDirectory, int maxCacheSizeInBytes) {
+        this(rootDirectory, maxCacheSizeInBytes, DEFAULT_SEGMENT_SIZE_BYTES);
+    }
+
+    /**
+     * Constructs an instance of the MappedJournalCache at the specified directory using
+     * the default maximum cache size of 5MB.
+     * @param rootDirectory The root directory of the cache.
+     */
+    public MappedJournalCache(File rootDirectory) {
+        this(rootDirectory, DEFAULT_DISK_USAGE_BYTES);
+    }
+
+    /**
+     * Clears the cache. Deletes all segments and the index from disk.
+     */
+    @Override
+    public synchronized void clear() {
+        closeIndexWriter();
+        mEntries.clear();
+        mTagIndex.clear();
+        mSegments.clear();
+        mActiveSegment = null;
+        mTotalSize = 0;
+        File[] files = mRootDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        rewriteIndex();
+        VolleyLog.d("Cache cleared.");
+    }
+
+    /**
+     * Returns the cache entry with the specified key if it exists, null otherwise.
+     */
+    @Override
+    public synchronized Entry get(String key) {
+        ensureInitialized();
+        Record record = mEntries.get(key);
+        if (record == null) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = record.slice();
+            CacheHeader header = CacheHeader.readHeader(new ByteBufferInputStream(buffer));
+            if (!key.equals(header.key)) {
+                throw new IOException("Record does not belong to " + key);
+            }
+            return header.readCacheEntry(new ByteBufferInputStream(buffer), buffer.remaining());
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", key, e.toString());
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Initializes the MappedJournalCache by replaying the index file and mapping the segments
+     * it references. Creates the root directory if necessary.
+     */
+    @Override
+    public synchronized void initialize() {
+        if (mIndexWriter != null) {
+            return;
+        }
+        if (!mRootDirectory.exists()) {
+            if (!mRootDirectory.mkdirs()) {
+                VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+            }
+            rewriteIndex();
+            return;
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        boolean clean = readIndex();
+
+        // Map the segments that still hold live records and drop the records whose segment is
+        // gone or too short.
+        Iterator<Map.Entry<String, Record>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Record> entry = iterator.next();
+            Record record = entry.getValue();
+            Segment segment = mSegments.get(record.segmentId);
+            if (segment == null) {
+                segment = openSegment(record.segmentId);
+            }
+            if (segment == null || record.offset + record.length > segment.capacity) {
+                iterator.remove();
+                clean = false;
+                continue;
+            }
+            record.segment = segment;
+            segment.records.put(entry.getKey(), record);
+            segment.liveBytes += record.length;
+            mTotalSize += record.length;
+            mTagIndex.add(entry.getKey(), record.tags);
+        }
+
+        // Delete whatever is not referenced anymore.
+        File[] files = mRootDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.startsWith(SEGMENT_FILE_PREFIX)) {
+                    if (!name.equals(INDEX_FILE_NAME)) {
+                        file.delete();
+                    }
+                    continue;
+                }
+                try {
+                    int id = Integer.parseInt(name.substring(SEGMENT_FILE_PREFIX.length()));
+                    mNextSegmentId = Math.max(mNextSegmentId, id + 1);
+                    if (!mSegments.containsKey(id)) {
+                        file.delete();
+                    }
+                } catch (NumberFormatException e) {
+                    file.delete();
+                }
+            }
+        }
+
+        if (clean) {
+            openIndexWriter();
+        } else {
+            rewriteIndex();
+        }
+        pruneIfNeeded(0);
+
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("loaded %d entries in %d segments, %d ms", mEntries.size(),
+                    mSegments.size(), SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    /**
+     * Invalidates an entry in the cache.
+     * @param key Cache key
+     * @param fullExpire True to fully expire the entry, false to soft expire
+     */
+    @Override
+    public synchronized void invalidate(String key, boolean fullExpire) {
+        ensureInitialized();
+        Record record = mEntries.get(key);
+        if (record == null) {
+            return;
+        }
+        // The TTLs are at a fixed offset of the header: update them in the mapped segment.
+        ByteBuffer buffer = record.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (fullExpire) {
+            buffer.putLong(DiskBasedCache.TTL_OFFSET, 0);
+        }
+        buffer.putLong(DiskBasedCache.TTL_OFFSET + 8, 0);
+    }
+
+    /**
+     * Invalidates every entry having one of the given tags, looked up in an index of the tags.
+     * @param fullExpire True to fully expire the entries, false to soft expire
+     * @param tags Tags of the entries
+     */
+    @Override
+    public synchronized void invalidateTags(boolean fullExpire, String... tags) {
+        ensureInitialized();
+        for (String key : mTagIndex.getKeys(tags)) {
+            invalidate(key, fullExpire);
+        }
+    }
+
+    /**
+     * Appends the entry with the specified key to the active segment.
+     */
+    @Override
+    public synchronized void put(String key, Entry entry) {
+        ensureInitialized();
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        if (!new CacheHeader(key, entry).writeHeader(header)) {
+            VolleyLog.d("Failed to write header for %s", key);
+            return;
+        }
+        byte[] snapshot = entry.snapshot != null ? entry.snapshot : new byte[0];
+        int length = header.size() + entry.data.length + snapshot.length;
+
+        Record previous = mEntries.remove(key);
+        if (previous != null) {
+            mTagIndex.remove(key, previous.tags);
+        }
+        removeRecord(key, previous);
+        pruneIfNeeded(length);
+
+        Record record;
+        try {
+            record = append(key, length, header.toByteArray(), entry.data, snapshot);
+        } catch (IOException e) {
+            VolleyLog.e("Could not append %s: %s", key, e.toString());
+            return;
+        }
+        record.alwaysKeep = entry.alwaysKeep;
+        if (entry.tags != null) {
+            record.tags = entry.tags;
+        }
+        mEntries.put(key, record);
+        mTagIndex.add(key, record.tags);
+        writeIndexPut(key, record);
+        compactIfNeeded();
+    }
+
+    /**
+     * Removes the specified key from the cache if it exists.
+     */
+    @Override
+    public synchronized void remove(String key) {
+        ensureInitialized();
+        Record record = mEntries.remove(key);
+        if (record != null) {
+            mTagIndex.remove(key, record.tags);
+            removeRecord(key, record);
+            writeIndexRemove(key);
+            compactIfNeeded();
+        }
+    }
+
+    @Override
+    public synchronized void removeByCriteria(String... criteria) {
+        ensureInitialized();
+        List<String> removed = new ArrayList<String>();
+        for (String key : mEntries.keySet()) {
+            for (String c : criteria) {
+                if (key.contains(c)) {
+                    removed.add(key);
+                    break;
+                }
+            }
+        }
+        for (String key : removed) {
+            Record record = mEntries.remove(key);
+            mTagIndex.remove(key, record.tags);
+            removeRecord(key, record);
+            writeIndexRemove(key);
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Compacts every sealed segment whose live ratio is under the threshold.
+     */
+    public synchronized void compact() {
+        ensureInitialized();
+        compactIfNeeded();
+    }
+
+    /**
+     * Returns the total amount of live bytes currently stored by the cache.
+     */
+    public synchronized long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * Returns the number of segment files currently in use.
+     */
+    public synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    private void ensureInitialized() {
+        if (mIndexWriter == null) {
+            initialize();
+        }
+    }
+
+    /**
+     * Writes a record at the end of the active segment, rolling to a new segment if needed.
+     */
+    private Record append(String key, int length, byte[] header, byte[] data, byte[] snapshot)
+            throws IOException {
+        Segment segment = mActiveSegment;
+        if (segment == null || segment.capacity - segment.writePosition < length) {
+            segment = createSegment(Math.max(mSegmentSizeInBytes, length));
+            mActiveSegment = segment;
+        }
+        Record record = new Record(segment, segment.writePosition, length);
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(segment.writePosition);
+        buffer.put(header);
+        buffer.put(data);
+        buffer.put(snapshot);
+        segment.writePosition += length;
+        segment.records.put(key, record);
+        segment.liveBytes += length;
+        mTotalSize += length;
+        return record;
+    }
+
+    /**
+     * Releases the space accounted to a record that was removed from the index.
+     */
+    private void removeRecord(String key, Record record) {
+        if (record == null) {
+            return;
+        }
+        record.segment.records.remove(key);
+        record.segment.liveBytes -= record.length;
+        mTotalSize -= record.length;
+    }
+
+    /**
+     * Prunes the cache to fit the amount of bytes specified.
+     * @param neededSpace The amount of bytes we are trying to fit into the cache.
+     */
+    private void pruneIfNeeded(int neededSpace) {
+        if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes) {
+            return;
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Pruning old cache entries.");
+        }
+
+        long before = mTotalSize;
+        int prunedEntries = 0;
+        long startTime = SystemClock.elapsedRealtime();
+
+        Iterator<Map.Entry<String, Record>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Record> entry = iterator.next();
+            if (entry.getValue().alwaysKeep) {
+                continue;
+            }
+            iterator.remove();
+            mTagIndex.remove(entry.getKey(), entry.getValue().tags);
+            removeRecord(entry.getKey(), entry.getValue());
+            writeIndexRemove(entry.getKey());
+            prunedEntries++;
+
+            if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+                break;
+            }
+        }
+
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("pruned %d entries, %d bytes, %d ms",
+                    prunedEntries, (mTotalSize - before), SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    /**
+     * Moves the live records of sparse sealed segments to the active segment and deletes them.
+     */
+    private void compactIfNeeded() {
+        List<Segment> sparse = new ArrayList<Segment>();
+        for (Segment segment : mSegments.values()) {
+            if (segment != mActiveSegment
+                    && segment.liveBytes < segment.capacity * COMPACTION_THRESHOLD) {
+                sparse.add(segment);
+            }
+        }
+        if (sparse.isEmpty()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (Segment segment : sparse) {
+            // Records are updated in place so the LRU order of mEntries is not disturbed.
+            List<Map.Entry<String, Record>> records =
+                    new ArrayList<Map.Entry<String, Record>>(segment.records.entrySet());
+            for (Map.Entry<String, Record> entry : records) {
+                String key = entry.getKey();
+                Record record = entry.getValue();
+                ByteBuffer buffer = record.slice();
+                try {
+                    CacheHeader header = CacheHeader.readHeader(new ByteBufferInputStream(buffer));
+                    if (!record.alwaysKeep && header.ttl < now) {
+                        throw new IOException("expired");
+                    }
+                    byte[] bytes = new byte[record.length];
+                    buffer.position(0);
+                    buffer.get(bytes);
+                    removeRecord(key, record);
+                    Record moved = append(key, record.length, bytes, new byte[0], new byte[0]);
+                    record.segment = moved.segment;
+                    record.offset = moved.offset;
+                    moved.segment.records.put(key, record);
+                    writeIndexPut(key, record);
+                } catch (IOException e) {
+                    mEntries.remove(key);
+                    mTagIndex.remove(key, record.tags);
+                    removeRecord(key, record);
+                    writeIndexRemove(key);
+                }
+            }
+            mSegments.remove(segment.id);
+            if (!segment.file.delete()) {
+                VolleyLog.d("Could not delete segment %s", segment.file.getAbsolutePath());
+            }
+        }
+
+        if (mIndexOperations > 2 * mEntries.size() + 64) {
+            rewriteIndex();
+        }
+    }
+
+    private File getSegmentFile(int id) {
+        return new File(mRootDirectory, SEGMENT_FILE_PREFIX + id);
+    }
+
+    /**
+     * Creates and maps a new, empty segment file.
+     */
+    private Segment createSegment(int capacity) throws IOException {
+        int id = mNextSegmentId++;
+        File file = getSegmentFile(id);
+        Segment segment = new Segment(id, file, map(file, capacity), capacity);
+        mSegments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Maps an existing segment file. Existing segments are sealed: nothing is appended to them.
+     * @return The segment, or null if the file cannot be mapped.
+     */
+    private Segment openSegment(int id) {
+        File file = getSegmentFile(id);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            int capacity = (int) file.length();
+            Segment segment = new Segment(id, file, map(file, capacity), capacity);
+            segment.writePosition = capacity;
+            mSegments.put(id, segment);
+            return segment;
+        } catch (IOException e) {
+            VolleyLog.d("Could not map segment %s: %s", file.getAbsolutePath(), e.toString());
+            return null;
+        }
+    }
+
+    private static MappedByteBuffer map(File file, int capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // The mapping stays valid once the channel is closed.
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Replays the index file in mEntries.
+     * @return False if the index is missing, corrupted or holds superseded operations, in which
+     * case it should be rewritten.
+     */
+    private boolean readIndex() {
+        File indexFile = new File(mRootDirectory, INDEX_FILE_NAME);
+        if (!indexFile.exists()) {
+            return false;
+        }
+        byte[] bytes;
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(indexFile);
+            bytes = DiskBasedCache.streamToBytes(fis, (int) indexFile.length());
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException ignored) { }
+            }
+        }
+
+        InputStream is = new ByteArrayInputStream(bytes);
+        int operations = 0;
+        try {
+            if (DiskBasedCache.readInt(is) != INDEX_MAGIC) {
+                return false;
+            }
+            while (is.available() > 0) {
+                int op = is.read();
+                String key = DiskBasedCache.readString(is);
+                if (op == OP_PUT) {
+                    int segmentId = DiskBasedCache.readInt(is);
+                    int offset = DiskBasedCache.readInt(is);
+                    int length = DiskBasedCache.readInt(is);
+                    int flags = is.read();
+                    if (flags == -1) {
+                        throw new EOFException();
+                    }
+                    Record record = new Record(null, offset, length);
+                    record.segmentId = segmentId;
+                    record.alwaysKeep = (flags & FLAG_ALWAYS_KEEP) != 0;
+                    record.tags = DiskBasedCache.readStringSet(is);
+                    mEntries.put(key, record);
+                } else if (op == OP_REMOVE) {
+                    mEntries.remove(key);
+                } else {
+                    throw new IOException("Unknown index operation " + op);
+                }
+                operations++;
+            }
+        } catch (IOException e) {
+            // A partially written operation at the end of the log: keep what was read.
+            VolleyLog.d("Index truncated after %d operations: %s", operations, e.toString());
+            return false;
+        }
+        mIndexOperations = operations;
+        return operations == mEntries.size();
+    }
+
+    /**
+     * Replaces the index file with a snapshot of mEntries, in LRU order.
+     */
+    private void rewriteIndex() {
+        closeIndexWriter();
+        File indexFile = new File(mRootDirectory, INDEX_FILE_NAME);
+        File tempFile = new File(mRootDirectory, INDEX_TEMP_FILE_NAME);
+        OutputStream os = null;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(tempFile));
+            DiskBasedCache.writeInt(os, INDEX_MAGIC);
+            for (Map.Entry<String, Record> entry : mEntries.entrySet()) {
+                writePut(os, entry.getKey(), entry.getValue());
+            }
+            os.close();
+            os = null;
+            if (!tempFile.renameTo(indexFile)) {
+                throw new IOException("Could not rename " + tempFile.getAbsolutePath());
+            }
+            mIndexOperations = mEntries.size();
+        } catch (IOException e) {
+            VolleyLog.e("Could not write cache index: %s", e.toString());
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException ignored) { }
+            }
+            indexFile.delete();
+        }
+        openIndexWriter();
+    }
+
+    private void openIndexWriter() {
+        File indexFile = new File(mRootDirectory, INDEX_FILE_NAME);
+        try {
+            boolean exists = indexFile.exists();
+            mIndexWriter = new BufferedOutputStream(new FileOutputStream(indexFile, true));
+            if (!exists) {
+                DiskBasedCache.writeInt(mIndexWriter, INDEX_MAGIC);
+                mIndexWriter.flush();
+                mIndexOperations = 0;
+            }
+        } catch (IOException e) {
+            VolleyLog.e("Could not open cache index: %s", e.toString());
+            // Keep working in memory, the index will be rebuilt on the next start.
+            mIndexWriter = new ByteArrayOutputStream();
+        }
+    }
+
+    private void closeIndexWriter() {
+        if (mIndexWriter != null) {
+            try {
+                mIndexWriter.close();
+            } catch (IOException ignored) { }
+            mIndexWriter = null;
+        }
+    }
+
+    private void writeIndexPut(String key, Record record) {
+        try {
+            writePut(mIndexWriter, key, record);
+            mIndexWriter.flush();
+            mIndexOperations++;
+        } catch (IOException e) {
+            VolleyLog.d("Could not write index for %s: %s", key, e.toString());
+        }
+    }
+
+    private void writeIndexRemove(String key) {
+        try {
+            mIndexWriter.write(OP_REMOVE);
+            DiskBasedCache.writeString(mIndexWriter, key);
+            mIndexWriter.flush();
+            mIndexOperations++;
+        } catch (IOException e) {
+            VolleyLog.d("Could not write index for %s: %s", key, e.toString());
+        }
+    }
+
+    private static void writePut(OutputStream os, String key, Record record) throws IOException {
+        os.write(OP_PUT);
+        DiskBasedCache.writeString(os, key);
+        int segmentId = record.segment != null ? record.segment.id : record.segmentId;
+        DiskBasedCache.writeInt(os, segmentId);
+        DiskBasedCache.writeInt(os, record.offset);
+        DiskBasedCache.writeInt(os, record.length);
+        os.write(record.alwaysKeep ? FLAG_ALWAYS_KEEP : 0);
+        DiskBasedCache.writeStringSet(record.tags, os);
+    }
+
+    /**
+     * A memory-mapped segment file.
+     */
+    private static class Segment {
+        final int id;
+        final File file;
+        final MappedByteBuffer buffer;
+        final int capacity;
+
+        /** Offset at which the next record is appended. */
+        int writePosition = 0;
+
+        /** Number of bytes still referenced by the index. */
+        long liveBytes = 0;
+
+        /** The live records of this segment. */
+        final Map<String, Record> records = new HashMap<String, Record>();
+
+        Segment(int id, File file, MappedByteBuffer buffer, int capacity) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+            this.capacity = capacity;
+        }
+    }
+
+    /**
+     * Location of an entry in a segment.
+     */
+    private static class Record {
+        Segment segment;
+        /** Only used while the index is replayed, before the segments are mapped. */
+        int segmentId;
+        int offset;
+        final int length;
+        boolean alwaysKeep;
+        /** Tags of the entry, also kept in the index file so they are known without reading it. */
+        Set<String> tags = Collections.emptySet();
+
+        Record(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Returns a buffer over the bytes of this record, positioned at its start.
+         */
+        ByteBuffer slice() {
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.limit(offset + length);
+            buffer.position(offset);
+            return buffer.slice();
+        }
+    }
+
+    /**
+     * Reads a {@link ByteBuffer} as an {@link InputStream}.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            count = Math.min(count, mBuffer.remaining());
+            mBuffer.get(buffer, offset, count);
+            return count;
+        }
+    }
+}
@@ -40,6 +40,10 @@ public class NoCache implements Cache {
     public void invalidate(String key, boolean fullExpire) {
     }
 
+    @Override
+    public void invalidateTags(boolean fullExpire, String... tags) {
+    }
+
     @Override
     public void remove(String key) {
     }
@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+
+import com.android.volley.Cache;
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+import com.android.volley.toolbox.DiskBasedCache.CountingInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache implementation that stores its entries on disk like {@link DiskBasedCache}, but
+ * partitions the keys across several independently locked shards.
+ *
+ * <p>Each shard keeps its own LRU index of {@link CacheHeader}s, and the size budget is shared
+ * by all of them: when it is exceeded, the least recently used entry of each shard is evicted in
+ * turn. The index locks are only held while the in-memory maps are read or updated and while
+ * files are renamed or deleted: file reads and writes happen outside of them, so the cache
+ * dispatcher and the network dispatchers do not queue up behind a single monitor. Files are
+ * written to a temporary file first and then renamed over the previous version, so a concurrent
+ * reader always sees a complete entry.</p>
+ *
+ * <p>The on-disk format is the same as the one of {@link DiskBasedCache}.</p>
+ */
+public class ShardedDiskBasedCache implements Cache {
+
+    /** Default maximum disk usage in bytes. */
+    private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
+
+    /** Default number of shards. */
+    private static final int DEFAULT_SHARD_COUNT = 8;
+
+    /** High water mark percentage for the cache */
+    private static final float HYSTERESIS_FACTOR = 0.9f;
+
+    /** Suffix of the files being written and not renamed yet. */
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /** Size of the buffers used to read and write the cache files. */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /** The root directory to use for the cache. */
+    private final File mRootDirectory;
+
+    /** The shards, a key always goes to the same one. */
+    private final Shard[] mShards;
+
+    /** The maximum size of the cache in bytes. */
+    private final long mMaxCacheSizeInBytes;
+
+    /** Total amount of space currently used by all the shards in bytes. */
+    private final AtomicLong mTotalSize = new AtomicLong();
+
+    /**
+     * Constructs an instance of the ShardedDiskBasedCache at the specified directory.
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes, shared by all the shards.
+     * @param shardCount The number of independently locked shards.
+     */
+    public ShardedDiskBasedCache(File rootDirectory, int maxCacheSizeInBytes, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be at least 1");
+        }
+        mRootDirectory = rootDirectory;
+        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mShards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            mShards[i] = new Shard(mTotalSize);
+        }
+    }
+
+    /**
+     * Constructs an instance of the ShardedDiskBasedCache at the specified directory using
+     * the default number of shards.
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     */
+    public ShardedDiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
+        this(rootDirectory, maxCacheSizeInBytes, DEFAULT_SHARD_COUNT);
+    }
+
+    /**
+     * Constructs an instance of the ShardedDiskBasedCache at the specified directory using
+     * the default maximum cache size of 5MB and the default number of shards.
+     * @param rootDirectory The root directory of the cache.
+     */
+    public ShardedDiskBasedCache(File rootDirectory) {
+        this(rootDirectory, DEFAULT_DISK_USAGE_BYTES);
+    }
+
+    /**
+     * Clears the cache. Deletes all cached files from disk.
+     */
+    @Override
+    public void clear() {
+        for (Shard shard : mShards) {
+            synchronized (shard) {
+                shard.entries.clear();
+                shard.tagIndex.clear();
+                mTotalSize.addAndGet(-shard.totalSize);
+                shard.totalSize = 0;
+            }
+        }
+        File[] files = mRootDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        VolleyLog.d("Cache cleared.");
+    }
+
+    /**
+     * Returns the cache entry with the specified key if it exists, null otherwise.
+     */
+    @Override
+    public Entry get(String key) {
+        Shard shard = shardFor(key);
+        CacheHeader entry;
+        synchronized (shard) {
+            entry = shard.entries.get(key);
+        }
+        // if the entry does not exist, return.
+        if (entry == null) {
+            return null;
+        }
+
+        File file = getFileForKey(key);
+        CountingInputStream cis = null;
+        try {
+            FileInputStream fis = new FileInputStream(file);
+            cis = new CountingInputStream(new BufferedInputStream(fis, BUFFER_SIZE));
+            // The size of the opened file: a concurrent put may rename another file in its place.
+            long length = fis.getChannel().size();
+            CacheHeader header = CacheHeader.readHeader(cis);
+            if (!key.equals(header.key)) {
+                // Another key with the same file name replaced this one.
+                removeEntryIfSame(shard, key, entry, false);
+                return null;
+            }
+            // The header and the data are read from the same opened file, even if a concurrent
+            // put replaced the file after the index was read.
+            return header.readCacheEntry(cis, (int) (length - cis.bytesRead));
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            removeEntryIfSame(shard, key, entry, true);
+            return null;
+        } finally {
+            closeQuietly(cis);
+        }
+    }
+
+    /**
+     * Initializes the ShardedDiskBasedCache by scanning for all files currently in the
+     * specified root directory. Creates the root directory if necessary.
+     *
+     * <p>Entries put while the scan is running are kept: the scan never replaces them with the
+     * header it read from the disk.</p>
+     */
+    @Override
+    public void initialize() {
+        if (!mRootDirectory.exists()) {
+            if (!mRootDirectory.mkdirs()) {
+                VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+            }
+            return;
+        }
+
+        File[] files = mRootDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                // Left over by a put that did not complete.
+                file.delete();
+                continue;
+            }
+            InputStream is = null;
+            try {
+                is = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+                CacheHeader entry = CacheHeader.readHeader(is);
+                entry.size = file.length();
+                Shard shard = shardFor(entry.key);
+                synchronized (shard) {
+                    if (!shard.entries.containsKey(entry.key)) {
+                        shard.putEntry(entry.key, entry);
+                    }
+                }
+            } catch (IOException e) {
+                file.delete();
+            } finally {
+                closeQuietly(is);
+            }
+        }
+
+        pruneIfNeeded(null);
+    }
+
+    /**
+     * Invalidates an entry in the cache.
+     * @param key Cache key
+     * @param fullExpire True to fully expire the entry, false to soft expire
+     */
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        Entry entry = get(key);
+        if (entry != null) {
+            entry.softTtl = 0;
+            if (fullExpire) {
+                entry.ttl = 0;
+            }
+            put(key, entry);
+        }
+    }
+
+    /**
+     * Invalidates every entry having one of the given tags, looked up in the index of each shard.
+     * @param fullExpire True to fully expire the entries, false to soft expire
+     * @param tags Tags of the entries
+     */
+    @Override
+    public void invalidateTags(boolean fullExpire, String... tags) {
+        for (Shard shard : mShards) {
+            Set<String> keys;
+            synchronized (shard) {
+                keys = shard.tagIndex.getKeys(tags);
+            }
+            for (String key : keys) {
+                invalidate(key, fullExpire);
+            }
+        }
+    }
+
+    /**
+     * Puts the entry with the specified key into the cache.
+     */
+    @Override
+    public void put(String key, Entry entry) {
+        File file = getFileForKey(key);
+        File tempFile = new File(mRootDirectory,
+                file.getName() + "." + Thread.currentThread().getId() + TEMP_FILE_SUFFIX);
+        CacheHeader header = new CacheHeader(key, entry);
+        OutputStream os = null;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE);
+            boolean success = header.writeHeader(os);
+            if (!success) {
+                VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
+                throw new IOException();
+            }
+            os.write(entry.data);
+            CacheHeader.writeSnapshot(os, entry);
+            os.close();
+            os = null;
+            header.size = tempFile.length();
+            Shard shard = shardFor(key);
+            synchronized (shard) {
+                // Renamed under the lock, so that pruning never deletes it before it is indexed.
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("Could not rename " + tempFile.getAbsolutePath());
+                }
+                shard.putEntry(key, header);
+            }
+        } catch (IOException e) {
+            closeQuietly(os);
+            if (!tempFile.delete()) {
+                VolleyLog.d("Could not clean up file %s", tempFile.getAbsolutePath());
+            }
+            return;
+        }
+        pruneIfNeeded(key);
+    }
+
+    /**
+     * Removes the specified key from the cache if it exists.
+     */
+    @Override
+    public void remove(String key) {
+        Shard shard = shardFor(key);
+        synchronized (shard) {
+            shard.removeEntry(key);
+            deleteFile(key);
+        }
+    }
+
+    @Override
+    public void removeByCriteria(String... criteria) {
+        for (Shard shard : mShards) {
+            List<String> removed = new ArrayList<String>();
+            synchronized (shard) {
+                Iterator<Map.Entry<String, CacheHeader>> iterator =
+                        shard.entries.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Map.Entry<String, CacheHeader> entry = iterator.next();
+                    for (String c : criteria) {
+                        if (entry.getKey().contains(c)) {
+                            removed.add(entry.getKey());
+                            break;
+                        }
+                    }
+                }
+                for (String key : removed) {
+                    shard.removeEntry(key);
+                    deleteFile(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a file object for the given cache key.
+     */
+    public File getFileForKey(String key) {
+        return new File(mRootDirectory, DiskBasedCache.getFilenameForKey(key));
+    }
+
+    /**
+     * Returns the total amount of space currently used by the cache in bytes.
+     */
+    public long getTotalSize() {
+        return mTotalSize.get();
+    }
+
+    /**
+     * Evicts least recently used entries, taking one from each shard in turn, until the cache
+     * fits its size budget again.
+     * @param insertedKey The key just put, never evicted, or null.
+     */
+    private void pruneIfNeeded(String insertedKey) {
+        if (mTotalSize.get() < mMaxCacheSizeInBytes) {
+            return;
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Pruning old cache entries.");
+        }
+        long before = mTotalSize.get();
+        int prunedFiles = 0;
+        long startTime = SystemClock.elapsedRealtime();
+        long target = (long) (mMaxCacheSizeInBytes * HYSTERESIS_FACTOR);
+
+        boolean evicted = true;
+        while (evicted && mTotalSize.get() >= target) {
+            evicted = false;
+            for (int i = 0; i < mShards.length && mTotalSize.get() >= target; i++) {
+                Shard shard = mShards[i];
+                synchronized (shard) {
+                    String key = shard.evictEldest(insertedKey);
+                    if (key != null) {
+                        deleteFile(key);
+                        prunedFiles++;
+                        evicted = true;
+                    }
+                }
+            }
+        }
+
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("pruned %d files, %d bytes, %d ms", prunedFiles,
+                    (mTotalSize.get() - before), SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    /**
+     * Returns the shard responsible for the given key.
+     */
+    private Shard shardFor(String key) {
+        // Spread the bits of the hash so that keys sharing a long prefix still spread out.
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return mShards[(h & 0x7fffffff) % mShards.length];
+    }
+
+    /**
+     * Removes the index entry of key if it is still the given header.
+     * @param deleteFile True to delete the file of the entry as well.
+     */
+    private void removeEntryIfSame(Shard shard, String key, CacheHeader header,
+            boolean deleteFile) {
+        synchronized (shard) {
+            if (shard.entries.get(key) == header) {
+                shard.removeEntry(key);
+                if (deleteFile) {
+                    deleteFile(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the file of a key just removed from the index. Must be called while holding the
+     * lock of the shard of the key, so that a concurrent put cannot rename a new file in place
+     * in between.
+     */
+    private void deleteFile(String key) {
+        if (!getFileForKey(key).delete()) {
+            VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
+                    key, DiskBasedCache.getFilenameForKey(key));
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * A partition of the index, guarded by its own monitor.
+     */
+    private static class Shard {
+        /** Map of the Key, CacheHeader pairs, in access order. */
+        final Map<String, CacheHeader> entries =
+                new LinkedHashMap<String, CacheHeader>(16, .75f, true);
+
+        /** Keys of the entries by tag. */
+        final CacheTagIndex tagIndex = new CacheTagIndex();
+
+        /** Total amount of space currently used by this shard in bytes. */
+        long totalSize = 0;
+
+        /** Total amount of space used by all the shards, updated along with totalSize. */
+        private final AtomicLong cacheSize;
+
+        Shard(AtomicLong cacheSize) {
+            this.cacheSize = cacheSize;
+        }
+
+        void putEntry(String key, CacheHeader entry) {
+            CacheHeader oldEntry = entries.put(key, entry);
+            if (oldEntry != null) {
+                addSize(-oldEntry.size);
+                tagIndex.remove(key, oldEntry.tags);
+            }
+            addSize(entry.size);
+            tagIndex.add(key, entry.tags);
+        }
+
+        void removeEntry(String key) {
+            CacheHeader entry = entries.remove(key);
+            if (entry != null) {
+                addSize(-entry.size);
+                tagIndex.remove(key, entry.tags);
+            }
+        }
+
+        /**
+         * Removes the least recently used entry from the index.
+         * @param keptKey A key never evicted, or null.
+         * @return The key of the evicted entry, whose file must be deleted, or null if none.
+         */
+        String evictEldest(String keptKey) {
+            for (CacheHeader e : entries.values()) {
+                if (e.alwaysKeep || e.key.equals(keptKey)) {
+                    continue;
+                }
+                removeEntry(e.key);
+                return e.key;
+            }
+            return null;
+        }
+
+        private void addSize(long delta) {
+            totalSize += delta;
+            cacheSize.addAndGet(delta);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An {@link InputStream} copying every byte read from it to an {@link OutputStream}.
+ *
+ * <p>Failures of the output stream do not interrupt the reader: the copy stops and
+ * {@link #hasOutputFailed()} returns true.</p>
+ */
+public class TeeInputStream extends FilterInputStream {
+    private final OutputStream mOut;
+    private boolean mOutputFailed;
+
+    public TeeInputStream(InputStream in, OutputStream out) {
+        super(in);
+        mOut = out;
+    }
+
+    /** Returns true if writing to the output stream failed, leaving the copy incomplete. */
+    public boolean hasOutputFailed() {
+        return mOutputFailed;
+    }
+
+    /**
+     * Reads the rest of the input, so that the copy holds the whole stream.
+     * @param buffer Buffer to read with
+     */
+    public void drain(byte[] buffer) throws IOException {
+        while (read(buffer, 0, buffer.length) != -1) {
+            // Everything is copied by read().
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1 && !mOutputFailed) {
+            try {
+                mOut.write(b);
+            } catch (IOException e) {
+                mOutputFailed = true;
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int read = super.read(buffer, offset, count);
+        if (read > 0 && !mOutputFailed) {
+            try {
+                mOut.write(buffer, offset, read);
+            } catch (IOException e) {
+                mOutputFailed = true;
+            }
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        // Skipped bytes still have to reach the copy.
+        byte[] buffer = new byte[(int) Math.min(count, 1024)];
+        long skipped = 0;
+        while (skipped < count) {
+            int read = read(buffer, 0, (int) Math.min(count - skipped, buffer.length));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+}
@@ -24,6 +24,7 @@ import android.os.Build;
 import android.util.Log;
 
 import com.android.volley.BuildConfig;
+import com.android.volley.Cache;
 import com.android.volley.Network;
 import com.android.volley.RequestQueue;
 import com.android.volley.VolleyLog;
@@ -43,8 +44,35 @@ public class Volley {
      * @return A started {@link RequestQueue} instance.
      */
     public static RequestQueue newRequestQueue(Context context, HttpStack stack) {
-        File cacheDir = new File(context.getCacheDir(), DEFAULT_CACHE_DIR);
+        return newRequestQueue(context, stack, new DiskBasedCache(getCacheDir(context)), 0);
+    }
+
+    /**
+     * Creates an instance of the worker pool shared by the API and the image requests, and calls
+     * {@link RequestQueue#start()} on it. The image requests have their own network dispatchers
+     * and their own budget in the cache, so that they neither hold the dispatchers of the other
+     * requests nor evict their cached responses.
+     *
+     * @param context A {@link Context} to use for creating the cache dir.
+     * @param stack An {@link HttpStack} to use for the network, or null for default.
+     * @param apiCacheSizeInBytes Maximum size of the cached responses other than images.
+     * @param imageCacheSizeInBytes Maximum size of the cached images.
+     * @param imageThreadPoolSize Number of network dispatchers of the image requests.
+     * @return A started {@link RequestQueue} instance.
+     */
+    public static RequestQueue newRequestQueue(Context context, HttpStack stack,
+            int apiCacheSizeInBytes, int imageCacheSizeInBytes, int imageThreadPoolSize) {
+        DiskBasedCache cache = new DiskBasedCache(getCacheDir(context), apiCacheSizeInBytes);
+        cache.setTagBudget(ImageRequest.CACHE_TAG, imageCacheSizeInBytes);
+        return newRequestQueue(context, stack, cache, imageThreadPoolSize);
+    }
+
+    private static File getCacheDir(Context context) {
+        return new File(context.getCacheDir(), DEFAULT_CACHE_DIR);
+    }
 
+    private static RequestQueue newRequestQueue(Context context, HttpStack stack, Cache cache,
+            int imageThreadPoolSize) {
         String userAgent = "volley/0";
         try {
             String packageName = context.getPackageName();
@@ -65,7 +93,8 @@ public class Volley {
 
         Network network = new BasicNetwork(stack);
 
-        RequestQueue queue = new RequestQueue(new DiskBasedCache(cacheDir), network);
+        RequestQueue queue = new RequestQueue(cache, network);
+        queue.setImageThreadPoolSize(imageThreadPoolSize);
         queue.start();
 
         return queue;
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.sedona.volley.manager;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Combine compatible requests into a single request and split its response, used by
+ * {@link RequestBatcher}.
+ * <p>
+ * For example, requests to http://host/items/1 and http://host/items/2 can share the batch key
+ * "http://host/items/" and be encoded as http://host/items?ids=1,2, the decoder then extracts the
+ * part of the response body of each item.
+ */
+public interface BatchCodec {
+
+    /**
+     * @param request
+     * @return the key shared by the requests which can be sent together, or null if the request
+     * must be sent alone
+     */
+    public String getBatchKey(RequestBuilder<?, ?> request);
+
+    /**
+     * Called on a background thread
+     *
+     * @param requests at least 2 requests having the same batch key
+     * @return the combined request
+     */
+    public Batch encode(List<RequestBuilder<?, ?>> requests);
+
+    /**
+     * Called on a network thread
+     *
+     * @param requests the requests given to {@link #encode(List)}
+     * @param response the response of the combined request
+     * @return the response of each request, in the same order, null for a request without
+     * response. Each response is parsed and cached as if it was received by its request.
+     * @throws IOException if the response can't be decoded, all the requests then fail
+     */
+    public List<NetworkResponse> decode(List<RequestBuilder<?, ?>> requests,
+            NetworkResponse response) throws IOException;
+
+    /**
+     * The combined request. The headers and the priority are the ones of the first request.
+     */
+    public static class Batch {
+        /** One of {@link Request.Method} */
+        public int method = Request.Method.GET;
+
+        public String url;
+
+        /** Body of the request, or null */
+        public byte[] body;
+
+        /** Content type of the body, or null for the default one */
+        public String bodyContentType;
+    }
+}
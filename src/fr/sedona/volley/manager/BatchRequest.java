@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.sedona.volley.manager;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Cache;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Request sending a batch encoded by a {@link BatchCodec}. Its response is split, parsed and
+ * cached on the network thread for each of the original requests, then delivered to them.
+ */
+class BatchRequest extends Request<List<Response<?>>> {
+
+    private final BatchCodec codec;
+    private final List<RequestBuilder<?, ?>> requests;
+    private final BatchCodec.Batch batch;
+
+    BatchRequest(BatchCodec codec, List<RequestBuilder<?, ?>> requests, BatchCodec.Batch batch) {
+        super(batch.method, batch.url, null);
+        this.codec = codec;
+        this.requests = requests;
+        this.batch = batch;
+        //Each request is cached under its own key
+        setShouldCache(false);
+        setRetryPolicy(new DefaultRetryPolicy(RequestBuilder.DEFAULT_REQUEST_TIMEOUT,
+                RequestBuilder.NO_REQUEST_RETRY_COUNT, 1f));
+        setDeadline(getLatestDeadline(requests));
+    }
+
+    /**
+     * The batch is given up once no request waits for it anymore
+     */
+    private static long getLatestDeadline(List<RequestBuilder<?, ?>> requests) {
+        long latest = 0;
+        for (RequestBuilder<?, ?> request : requests) {
+            if (request.getDeadline() == 0) {
+                return 0;
+            }
+            latest = Math.max(latest, request.getDeadline());
+        }
+        return latest;
+    }
+
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        return requests.get(0).getHeaders();
+    }
+
+    @Override
+    public Priority getPriority() {
+        return requests.get(0).getPriority();
+    }
+
+    @Override
+    public byte[] getBody() throws AuthFailureError {
+        return batch.body;
+    }
+
+    @Override
+    public String getBodyContentType() {
+        return batch.bodyContentType != null ? batch.bodyContentType : super.getBodyContentType();
+    }
+
+    @Override
+    protected Response<List<Response<?>>> parseNetworkResponse(NetworkResponse response) {
+        List<NetworkResponse> parts;
+        try {
+            parts = codec.decode(requests, response);
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        }
+        if (parts == null || parts.size() != requests.size()) {
+            return Response.error(new ParseError(response));
+        }
+
+        Cache cache = RequestBuilder.getQueue().getCache();
+        List<Response<?>> results = new ArrayList<Response<?>>(parts.size());
+        for (int i = 0; i < parts.size(); i++) {
+            RequestBuilder<?, ?> request = requests.get(i);
+            NetworkResponse part = parts.get(i);
+            Response<?> result;
+            if (part == null || part.statusCode < 200 || part.statusCode > 299) {
+                result = Response.error(new ServerError(part != null ? part : response));
+            } else {
+                try {
+                    result = request.parseNetworkResponse(part);
+                } catch (RuntimeException e) {
+                    result = Response.error(new ParseError(e));
+                }
+                if (result.isSuccess() && result.cacheEntry != null && cache != null) {
+                    cache.put(request.getCacheKey(), result.cacheEntry);
+                }
+                result.setCacheMetadata(result.cacheEntry, Response.Origin.NETWORK);
+            }
+            results.add(result);
+        }
+        return Response.success(results, null);
+    }
+
+    @Override
+    protected void deliverResponse(List<Response<?>> results) {
+        for (int i = 0; i < results.size(); i++) {
+            deliver(requests.get(i), results.get(i));
+        }
+    }
+
+    @Override
+    public void deliverError(VolleyError error) {
+        for (RequestBuilder<?, ?> request : requests) {
+            if (!request.isCanceled()) {
+                request.deliverError(error);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void deliver(RequestBuilder<T, ?> request, Response<?> result) {
+        if (request.isCanceled()) {
+            return;
+        }
+        if (result.isSuccess()) {
+            request.deliverResponse((Response<T>) result);
+        } else {
+            request.deliverError(result.error);
+        }
+    }
+}
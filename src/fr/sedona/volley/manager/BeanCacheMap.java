@@ -16,34 +16,194 @@
 
 package fr.sedona.volley.manager;
 
+import android.os.SystemClock;
+
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Cache des Bean en RAM, déjà parsé, pour un accès synchrone et rapide
+ * <p>
+ * Thread-safe, least-recently-used beans are evicted first. The cache is bounded by the total
+ * weight of the beans, an estimate of their memory size given by the caller (the size of the
+ * data they were parsed from for {@link RequestBuilder}), and optionally by their number. Beans
+ * put with a time to live expire after it.
  */
-public class BeanCacheMap extends LinkedHashMap<String, Object> {
+public class BeanCacheMap {
+
+    /** Default maximum total weight of the beans, in bytes */
+    public static final int DEFAULT_MAX_WEIGHT = 2 * 1024 * 1024;
 
-    private static int MAX_ENTRIES = 15;
     private static BeanCacheMap instance;
 
-    private BeanCacheMap(){
-        super(MAX_ENTRIES, 1);
+    /** Beans by key, in access order */
+    private final LinkedHashMap<String, Bean> beans =
+            new LinkedHashMap<String, Bean>(16, .75f, true);
+
+    private int maxWeight = DEFAULT_MAX_WEIGHT;
+    /** Maximum number of beans, 0 for no limit */
+    private int maxEntries;
+    private int weight;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    private BeanCacheMap() {
     }
 
-    public static BeanCacheMap get(){
-        if(instance == null){
+    public static synchronized BeanCacheMap get() {
+        if (instance == null) {
             instance = new BeanCacheMap();
         }
         return instance;
     }
 
-    public static void setMaxEntriesCount(int value){
-        MAX_ENTRIES = value;
+    /**
+     * @param value maximum number of beans of the shared instance, 0 for no limit (the default)
+     * @see #setMaxEntries(int)
+     */
+    public static void setMaxEntriesCount(int value) {
+        get().setMaxEntries(value);
+    }
+
+    /**
+     * @param value maximum number of beans, 0 for no limit (the default): the weight limits them
+     */
+    public synchronized void setMaxEntries(int value) {
+        maxEntries = value;
+        trim();
+    }
+
+    /**
+     * @param value maximum total weight of the beans
+     */
+    public synchronized void setMaxWeight(int value) {
+        maxWeight = value;
+        trim();
+    }
+
+    /**
+     * @param key
+     * @return the bean, or null if it is not cached or expired
+     */
+    public synchronized Object get(String key) {
+        Bean bean = beans.get(key);
+        if (bean != null && bean.isExpired()) {
+            removeBean(key, bean);
+            bean = null;
+        }
+        if (bean == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return bean.value;
+    }
+
+    /**
+     * Put a bean which never expires
+     *
+     * @param key
+     * @param value
+     * @param weight estimated memory size of the bean
+     */
+    public void put(String key, Object value, int weight) {
+        put(key, value, weight, 0);
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @param weight     estimated memory size of the bean
+     * @param timeToLive time after which the bean expires, in ms, or 0 to keep it until evicted
+     */
+    public synchronized void put(String key, Object value, int weight, long timeToLive) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
+        Bean bean = new Bean(value, Math.max(weight, 0),
+                timeToLive > 0 ? SystemClock.elapsedRealtime() + timeToLive : 0);
+        Bean previous = beans.put(key, bean);
+        if (previous != null) {
+            this.weight -= previous.weight;
+        }
+        this.weight += bean.weight;
+        trim();
+    }
+
+    public synchronized void remove(String key) {
+        Bean bean = beans.get(key);
+        if (bean != null) {
+            removeBean(key, bean);
+        }
+    }
+
+    public synchronized void clear() {
+        beans.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return beans.size();
+    }
+
+    /**
+     * @return total weight of the beans
+     */
+    public synchronized int getWeight() {
+        return weight;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
     }
 
-    @Override
-    protected boolean removeEldestEntry(Entry eldest) {
-        return size() > MAX_ENTRIES;
+    /**
+     * @return number of beans removed to stay within the limits
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
     }
 
+    /**
+     * Evict least-recently-used beans until the cache is within its limits
+     */
+    private synchronized void trim() {
+        Iterator<Map.Entry<String, Bean>> iterator = beans.entrySet().iterator();
+        while (((maxEntries > 0 && beans.size() > maxEntries) || weight > maxWeight)
+                && iterator.hasNext()) {
+            weight -= iterator.next().getValue().weight;
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+
+    private void removeBean(String key, Bean bean) {
+        beans.remove(key);
+        weight -= bean.weight;
+    }
+
+    private static class Bean {
+        final Object value;
+        final int weight;
+        /** Time at which the bean expires, 0 if it doesn't */
+        final long expiration;
+
+        Bean(Object value, int weight, long expiration) {
+            this.value = value;
+            this.weight = weight;
+            this.expiration = expiration;
+        }
+
+        boolean isExpired() {
+            return expiration > 0 && SystemClock.elapsedRealtime() >= expiration;
+        }
+    }
 }
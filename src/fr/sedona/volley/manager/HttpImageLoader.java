@@ -19,7 +19,6 @@ package fr.sedona.volley.manager;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Build;
 import android.os.StatFs;
 import android.util.Log;
@@ -27,11 +26,11 @@ import android.support.v4.util.LruCache;
 import com.android.volley.RequestQueue;
 import com.android.volley.VolleyLog;
 import com.android.volley.toolbox.ImageLoader;
+import com.android.volley.toolbox.ImageRequest;
 import com.android.volley.toolbox.Volley;
 import com.jakewharton.disklrucache.DiskLruCache;
 
 import java.io.BufferedOutputStream;
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -103,6 +102,21 @@ public class HttpImageLoader {
      * @param ratioTransparency part of disk cache reserved for transparent images - 0 mean no transparent images
      */
     public void initImageLoader(Context ctx, float ratioTransparency, boolean hasPermanentImages) {
+        //Share the queue of RequestBuilder if already initialized: one set of threads and one cache index
+        RequestQueue queue = RequestBuilder.getQueue();
+        if (queue == null) {
+            queue = Volley.newRequestQueue(ctx);
+        }
+        initImageLoader(ctx, ratioTransparency, hasPermanentImages, queue);
+    }
+
+    /**
+     * Must be called once at app startup
+     * @param ctx
+     * @param ratioTransparency part of disk cache reserved for transparent images - 0 mean no transparent images
+     * @param queue queue shared with {@link RequestBuilder}, see {@link RequestBuilder#init(Context, RequestQueue)}
+     */
+    public void initImageLoader(Context ctx, float ratioTransparency, boolean hasPermanentImages, RequestQueue queue) {
         ramCache = new RamImageCache();
         weakCache = new WeakRamCache();
 
@@ -120,12 +134,13 @@ public class HttpImageLoader {
             diskCachePermanent = new DiskImageCache(ctx, Bitmap.CompressFormat.JPEG, 1024 * 3);
         }
 
-        mRequestQueue = Volley.newRequestQueue(ctx);
+        mRequestQueue = queue;
 
-        //"Null" and not "this" as second argument: We do not provide cache for Volley - implement it ourself instead, this is faster and synchrone
-        imgLoader = new ImageLoader(mRequestQueue, volleyCacheProxy);
-        imgLoaderPNG = new ImageLoader(mRequestQueue, volleyCachePNGProxy);
-        imgLoaderPermanent = new ImageLoader(mRequestQueue, volleyCachePermanentProxy);
+        //The disk caches store the images as downloaded, instead of the Volley cache
+        //They are read on the disk thread of the ImageLoader, never on the UI thread
+        imgLoader = new ImageLoader(mRequestQueue, volleyCacheProxy, diskCache);
+        imgLoaderPNG = new ImageLoader(mRequestQueue, volleyCacheProxy, diskCachePNG);
+        imgLoaderPermanent = new ImageLoader(mRequestQueue, volleyCacheProxy, diskCachePermanent);
     }
 
     public void initImageLoader(Context ctx) {
@@ -134,37 +149,12 @@ public class HttpImageLoader {
 
     private class ProxyCache implements ImageLoader.ImageCache{
 
-        private boolean isPngCache = false;
-        private boolean isPermanentCache = false;
-
-        private ProxyCache(boolean isPngCache, boolean isPermanentCache) {
-            this.isPngCache = isPngCache;
-            this.isPermanentCache = isPermanentCache;
-        }
-
         @Override
         public Bitmap getBitmap(String s) {
-            //We getBitmapRam ourselves to do it synchronously - No need to implement it again
-            //But we want ROM image to load async:
-            if(diskCache != null) {
-                if(s.startsWith("#W0#H0"))
-                    s = s.substring(6);
-
-                Bitmap bmp = null;
-                if(isPngCache){
-                    bmp = diskCachePNG.getBitmap(s);
-                } else if (isPermanentCache) {
-                    bmp = diskCachePermanent.getBitmap(s);
-                } else {
-                    bmp = diskCache.getBitmap(s);
-                }
-
-                if (bmp != null) {
-                    ramCache.putBitmap(s, bmp);
-                }
-                return bmp;
-            }
-            return null;
+            //We getBitmapRam ourselves to do it synchronously - The disk caches are looked up by the ImageLoader
+            if(s.startsWith("#W0#H0"))
+                s = s.substring(6);
+            return getBitmapRam(s);
         }
 
         @Override
@@ -173,23 +163,12 @@ public class HttpImageLoader {
             if(s.startsWith("#W0#H0")){
                 s = s.substring(6);
             }
-
+            //Ram only: the disk caches keep the downloaded image, sized variants are not encoded again
             ramCache.put(s, bitmap);
-            if(isPngCache && diskCachePNG != null){
-                diskCachePNG.putBitmap(s, bitmap);
-            }
-            else if (isPermanentCache && diskCachePermanent != null) {
-                diskCachePermanent.putBitmap(s, bitmap);
-            }
-            else if (!isPngCache && !isPermanentCache && diskCache != null) {
-                diskCache.putBitmap(s, bitmap);
-            }
         }
     }
 
-    private ImageLoader.ImageCache volleyCacheProxy = new ProxyCache(false, false);
-    private ImageLoader.ImageCache volleyCachePNGProxy = new ProxyCache(true, false);
-    private ImageLoader.ImageCache volleyCachePermanentProxy = new ProxyCache(false, true);
+    private ImageLoader.ImageCache volleyCacheProxy = new ProxyCache();
 
     public Bitmap getBitmapRam(String url) {
         Bitmap bmp = ramCache.getBitmap(url);
@@ -200,21 +179,36 @@ public class HttpImageLoader {
         return bmp;
     }
 
+    /**
+     * Store a modified or resized bitmap for the url, in ram and encoded on disk
+     * Only way to store on disk another image than the downloaded one
+     * The bitmap is encoded on the disk thread of the ImageLoader: do not recycle it
+     *
+     * @param url
+     * @param bitmap
+     * @param isPNG
+     */
     public void cacheModifiedBitmap(String url, Bitmap bitmap, boolean isPNG) {
         cacheModifiedBitmap(url, bitmap, isPNG, false);
     }
 
-    public void cacheModifiedBitmap(String url, Bitmap bitmap, boolean isPNG, boolean isPermanent) {
+    public void cacheModifiedBitmap(final String url, final Bitmap bitmap, final boolean isPNG, final boolean isPermanent) {
         ramCache.put(url, bitmap);
-        if (diskCache != null && !isPNG) {
-            diskCache.putBitmap(url, bitmap);
-        }
-        if (diskCachePNG != null && isPNG) {
-            diskCachePNG.putBitmap(url, bitmap);
-        }
-        if (diskCachePermanent != null && isPermanent) {
-            diskCachePermanent.putBitmap(url, bitmap);
-        }
+        //Compress and write off the UI thread
+        ImageLoader.getDefaultDiskExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (diskCache != null && !isPNG) {
+                    diskCache.putBitmap(url, bitmap);
+                }
+                if (diskCachePNG != null && isPNG) {
+                    diskCachePNG.putBitmap(url, bitmap);
+                }
+                if (diskCachePermanent != null && isPermanent) {
+                    diskCachePermanent.putBitmap(url, bitmap);
+                }
+            }
+        });
     }
 
 
@@ -302,7 +296,7 @@ public class HttpImageLoader {
         return (long)Math.min(statFs.getAvailableBlocks() * (long)statFs.getBlockSize()- (1024 * 1024 * 30), (long) 1024 * 1024 * 20);
     }
 
-    private class DiskImageCache implements ImageLoader.ImageCache {
+    private class DiskImageCache implements ImageLoader.ImageDiskCache {
 
         private final int IO_BUFFER_SIZE = 8 * 1024;
         private final int APP_VERSION = 1;
@@ -352,7 +346,9 @@ public class HttpImageLoader {
             }
         }
 
-        @Override
+        /**
+         * Encode and store a bitmap - Only for the explicitly cached bitmaps, see cacheModifiedBitmap
+         */
         public void putBitmap(String key, Bitmap data) {
             if (mDiskCache == null) {
                 return;
@@ -365,41 +361,64 @@ public class HttpImageLoader {
                 }
 
                 if (writeBitmapToFile(data, editor)) {
-                    mDiskCache.flush();
                     editor.commit();
+                    mDiskCache.flush();
                 } else {
                     editor.abort();
                 }
             } catch (IOException e) {
+                abortQuietly(editor);
+            }
+        }
+
+        @Override
+        public void putEncoded(String url, byte[] data) {
+            if (mDiskCache == null) {
+                return;
+            }
+            DiskLruCache.Editor editor = null;
+            try {
+                editor = mDiskCache.edit(md5(url));
+                if (editor == null) {
+                    return;
+                }
+                OutputStream out = editor.newOutputStream(0);
                 try {
-                    if (editor != null) {
-                        editor.abort();
-                    }
-                } catch (IOException ignored) {
+                    out.write(data);
+                } finally {
+                    out.close();
                 }
+                editor.commit();
+                mDiskCache.flush();
+            } catch (IOException e) {
+                abortQuietly(editor);
             }
+        }
 
+        private void abortQuietly(DiskLruCache.Editor editor) {
+            try {
+                if (editor != null) {
+                    editor.abort();
+                }
+            } catch (IOException ignored) {
+            }
         }
 
         @Override
-        public Bitmap getBitmap(String key) {
+        public Bitmap getBitmap(String url, int maxWidth, int maxHeight) {
             if (mDiskCache == null) {
                 return null;
             }
 
-            Bitmap bitmap = null;
+            byte[] data = null;
             DiskLruCache.Snapshot snapshot = null;
 
             try {
-                snapshot = mDiskCache.get(md5(key));
+                snapshot = mDiskCache.get(md5(url));
                 if (snapshot == null) {
                     return null;
                 }
-                final InputStream in = snapshot.getInputStream(0);
-                if (in != null) {
-                    final BufferedInputStream buffIn = new BufferedInputStream(in, IO_BUFFER_SIZE);
-                    bitmap = BitmapFactory.decodeStream(buffIn);
-                }
+                data = readFully(snapshot.getInputStream(0), (int) snapshot.getLength(0));
             } catch (IOException e) {
                 e.printStackTrace();
             } finally {
@@ -407,8 +426,30 @@ public class HttpImageLoader {
                     snapshot.close();
                 }
             }
+            if (data == null) {
+                return null;
+            }
+
+            //Decode straight from the downloaded bytes, to the size requested
+            try {
+                return ImageRequest.decodeBitmap(data, Bitmap.Config.ARGB_8888, maxWidth, maxHeight);
+            } catch (OutOfMemoryError e) {
+                VolleyLog.e("Caught OOM for %d byte image, url=%s", data.length, url);
+                return null;
+            }
+        }
 
-            return bitmap;
+        private byte[] readFully(InputStream in, int length) throws IOException {
+            byte[] data = new byte[length];
+            int pos = 0;
+            int count;
+            while (pos < length && (count = in.read(data, pos, length - pos)) != -1) {
+                pos += count;
+            }
+            if (pos != length) {
+                throw new IOException("Expected " + length + " bytes, read " + pos + " bytes");
+            }
+            return data;
         }
 
         public void clearCache() {
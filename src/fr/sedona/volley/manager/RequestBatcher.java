@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.sedona.volley.manager;
+
+import com.android.volley.Cache;
+import com.android.volley.RequestQueue;
+import com.android.volley.VolleyLog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collect the requests started with {@link RequestBuilder#batch(RequestBatcher)} for a short
+ * window and send the ones having the same batch key as a single request, encoded and decoded
+ * by a {@link BatchCodec}.
+ * <p>
+ * Each request still gets its own callback and {@link ResultInfo}, and its response is cached
+ * under its own cache key. Requests already in the cache and not needing a refresh are not
+ * batched, they go through the queue as usual. A batch holding a single request is sent as is.
+ */
+public class RequestBatcher {
+
+    public static final long DEFAULT_WINDOW_MS = 20;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+
+    private final BatchCodec codec;
+    private final long windowMs;
+    private final int maxBatchSize;
+
+    /** Batches being collected, by batch key */
+    private final Map<String, List<RequestBuilder<?, ?>>> pending =
+            new HashMap<String, List<RequestBuilder<?, ?>>>();
+
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Volley-RequestBatcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    public RequestBatcher(BatchCodec codec) {
+        this(codec, DEFAULT_WINDOW_MS, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * @param codec        Encode and decode the batches
+     * @param windowMs     Time to wait for other requests after the first one of a batch
+     * @param maxBatchSize A batch is sent as soon as it holds this number of requests
+     */
+    public RequestBatcher(BatchCodec codec, long windowMs, int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        this.codec = codec;
+        this.windowMs = windowMs;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Add the request to the batch of its key
+     *
+     * @param request
+     * @return false if the request can't be batched and must be sent alone
+     */
+    boolean add(RequestBuilder<?, ?> request) {
+        final String key = codec.getBatchKey(request);
+        if (key == null) {
+            return false;
+        }
+
+        List<RequestBuilder<?, ?>> full = null;
+        synchronized (pending) {
+            List<RequestBuilder<?, ?>> batch = pending.get(key);
+            if (batch == null) {
+                batch = new ArrayList<RequestBuilder<?, ?>>();
+                pending.put(key, batch);
+                final List<RequestBuilder<?, ?>> scheduled = batch;
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(key, scheduled);
+                    }
+                }, windowMs, TimeUnit.MILLISECONDS);
+            }
+            batch.add(request);
+            if (batch.size() >= maxBatchSize) {
+                full = pending.remove(key);
+            }
+        }
+
+        if (full != null) {
+            final List<RequestBuilder<?, ?>> batch = full;
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    send(batch);
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Send the batch if it is still collected: it may have been sent already because it was full
+     */
+    private void flush(String key, List<RequestBuilder<?, ?>> batch) {
+        synchronized (pending) {
+            if (pending.get(key) != batch) {
+                return;
+            }
+            pending.remove(key);
+        }
+        send(batch);
+    }
+
+    private void send(List<RequestBuilder<?, ?>> batch) {
+        RequestQueue queue = RequestBuilder.getQueue();
+        Cache cache = queue.getCache();
+
+        List<RequestBuilder<?, ?>> toSend = new ArrayList<RequestBuilder<?, ?>>(batch.size());
+        for (RequestBuilder<?, ?> request : batch) {
+            if (request.isCanceled()) {
+                continue;
+            }
+            Cache.Entry entry = cache != null && request.shouldCache()
+                    ? cache.get(request.getCacheKey()) : null;
+            if (entry != null && !entry.refreshNeeded()) {
+                //Served by the cache dispatcher
+                queue.add(request);
+            } else {
+                toSend.add(request);
+            }
+        }
+
+        if (toSend.size() == 1) {
+            queue.add(toSend.get(0));
+        } else if (toSend.size() > 1) {
+            BatchCodec.Batch encoded;
+            try {
+                encoded = codec.encode(toSend);
+            } catch (RuntimeException e) {
+                VolleyLog.e(e, "Unable to encode a batch of %d requests", toSend.size());
+                for (RequestBuilder<?, ?> request : toSend) {
+                    queue.add(request);
+                }
+                return;
+            }
+            queue.add(new BatchRequest(codec, toSend, encoded));
+        }
+    }
+}
@@ -21,9 +21,11 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.net.http.AndroidHttpClient;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.volley.AuthFailureError;
+import com.android.volley.BackoffRetryPolicy;
 import com.android.volley.Cache;
 import com.android.volley.DefaultRetryPolicy;
 import com.android.volley.NetworkError;
@@ -32,28 +34,40 @@ import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.ServerError;
+import com.android.volley.StreamingRequest;
 import com.android.volley.TimeoutError;
 import com.android.volley.VolleyError;
 import com.android.volley.VolleyLog;
 import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.HttpHeaderParser;
 import com.android.volley.toolbox.HttpClientStack;
 import com.android.volley.toolbox.HttpStack;
 import com.android.volley.toolbox.HurlStack;
 import com.android.volley.toolbox.Volley;
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.MalformedJsonException;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Type;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.security.KeyStore;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -72,7 +86,7 @@ import fr.sedona.volley.parsers.SimpleParser;
  * @param <T> Succes object type
  * @param <E> Error Object type
  */
-public class RequestBuilder<T, E> extends Request<T> implements Response.ErrorListener {
+public class RequestBuilder<T, E> extends StreamingRequest<T> implements Response.ErrorListener {
 
     public static final int POST = Method.POST;
     public static final int GET = Method.GET;
@@ -83,6 +97,11 @@ public class RequestBuilder<T, E> extends Request<T> implements Response.ErrorLi
     public static final int NO_REQUEST_RETRY_COUNT = 0;
     public static final long CACHE_TIME_ONE_DAY = 1000 * 60 * 60 * 24;
 
+    /**
+     * Charset of Json responses not specifying one
+     */
+    public static final String DEFAULT_CHARSET = "UTF-8";
+
     protected WeakReference<QueryCallback<T, E>> callbackRef;
     protected Object parser;
     protected Object parserError;
@@ -100,11 +119,17 @@ public class RequestBuilder<T, E> extends Request<T> implements Response.ErrorLi
 
     protected static Gson gson;
     protected static RequestQueue queue;
+    private static SnapshotCodec snapshotCodec;
     private Object tag;
     private StringPreprocessor preprocessor;
     private boolean alwaysKeepInCache = false;
     protected String suffixCacheKey;
     protected boolean postAsCacheKey;
+    private boolean streamResponse = false;
+    private Set<String> cacheTags = Collections.emptySet();
+    private RequestBatcher batcher;
+    /** Size of the last parsed data, the weight of the bean in BeanCacheMap */
+    private volatile int parsedSize;
 
     public static RequestQueue getQueue() {
         return queue;
@@ -130,6 +155,16 @@ public class RequestBuilder<T, E> extends Request<T> implements Response.ErrorLi
         RequestBuilder.getQueue().getCache().removeByCriteria(criteria);
     }
 
+    /**
+     * Expire the cached responses having one of the tags, see {@link #cacheTags(String...)}
+     *
+     * @param tags
+     */
+    public static void clearCacheTags(String... tags) {
+        BeanCacheMap.get().clear();
+        RequestBuilder.getQueue().getCache().invalidateTags(true, tags);
+    }
+
     public void noCache() {
         cacheTimeToRefresh(0);
         cacheTimeToLive(0);
@@ -138,6 +173,68 @@ public class RequestBuilder<T, E> extends Request<T> implements Response.ErrorLi
         setShouldCache(false);
     }
 
+    /**
+     * Tag the cached response, for example "user:42" or "feed", to expire it later with
+     * {@link #clearCacheTags(String...)} or {@link Cache#invalidateTags(boolean, String...)}
+     *
+     * @param tags
+     * @return
+     */
+    public RequestBuilder cacheTags(String... tags) {
+        cacheTags = new HashSet<String>(Arrays.asList(tags));
+        return this;
+    }
+
+    /**
+     * Give up the request with a TIMEOUT_ERROR once the given time from now has passed, time
+     * waiting in the queue and retries included. Socket timeouts are cut down to the time left.
+     *
+     * @param timeoutMs
+     * @return
+     */
+    public RequestBuilder deadline(long timeoutMs) {
+        setDeadline(SystemClock.elapsedRealtime() + timeoutMs);
+        return this;
+    }
+
+    /**
+     * On a timeout, a connection failure or a server error, deliver the expired cached data if it
+     * expired less than the given time ago instead of the error. The result is marked with
+     * {@link ResultInfo#dataIsStale}. A Cache-Control stale-if-error sent by the server is
+     * honoured too.
+     *
+     * @param maxStaleMs
+     * @return
+     */
+    public RequestBuilder staleIfError(long maxStaleMs) {
+        setStaleIfErrorMs(maxStaleMs);
+        return this;
+    }
+
+    /**
+     * Send the request in a batch with compatible requests, see {@link RequestBatcher}
+     *
+     * @param batcher
+     * @return
+     */
+    public RequestBuilder batch(RequestBatcher batcher) {
+        this.batcher = batcher;
+        return this;
+    }
+
+    /**
+     * Share a single network call between identical requests (same method, url and body) in
+     * flight at the same time. Useful with {@link #noCache()}, cached requests already share
+     * their result.
+     *
+     * @param deduplicate
+     * @return
+     */
+    public RequestBuilder deduplicate(boolean deduplicate) {
+        setShouldDeduplicate(deduplicate);
+        return this;
+    }
+
     /**
      * Do not call if API < 9
      */
@@ -157,6 +254,23 @@ public class RequestBuilder<T, E> extends Request<T> implements Response.ErrorLi
         return this;
     }
 
+    /**
+     * Parse the response while it is downloaded instead of loading it in memory first.
+     * Recommended for large Json responses.
+     *
+     * @param streamResponse
+     * @return
+     */
+    public RequestBuilder streamResponse(boolean streamResponse) {
+        this.streamResponse = streamResponse;
+        return this;
+    }
+
+    @Override
+    public boolean shouldStream() {
+        return streamResponse;
+    }
+
     public static interface StringPreprocessor {
         public String preprocess(String s);
     }
@@ -172,11 +286,33 @@ public class RequestBuilder<T, E> extends Request<T> implements Response.ErrorLi
         gson = g;
     }
 
+    /**
+     * Store a binary snapshot of the parsed Json along with the cached response, read back on
+     * cache hits instead of parsing the Json again. Null, the default, to always parse.
+     *
+     * @param codec
+     */
+    public static void setSnapshotCodec(SnapshotCodec codec) {
+        snapshotCodec = codec;
+    }
+
     public static void init(Context ctx) {
         gson = new Gson();
         queue = Volley.newRequestQueue(ctx);
     }
 
+    /**
+     * Init on a queue shared with {@link HttpImageLoader}, e.g. built by
+     * {@link Volley#newRequestQueue(Context, com.android.volley.toolbox.HttpStack, int, int, int)}
+     *
+     * @param ctx
+     * @param q
+     */
+    public static void init(Context ctx, RequestQueue q) {
+        gson = new Gson();
+        queue = q;
+    }
+
     /**
      * Use only if a specific queue is wanted
      *
@@ -323,6 +459,18 @@ public class RequestBuilder<T, E> extends Request<T> implements Response.ErrorLi
         return this;
     }
 
+    /**
+     * Retry on timeouts, server errors and connection failures, waiting a random and growing time
+     * between attempts, see {@link BackoffRetryPolicy}. Call after {@link #timeout(int)}.
+     *
+     * @param maxRetries
+     * @return
+     */
+    public RequestBuilder retryWithBackoff(int maxRetries) {
+        setRetryPolicy(new BackoffRetryPolicy(getRetryPolicy().getCurrentTimeout(), maxRetries));
+        return this;
+    }
+
     /**
      * /**
      * Call it once to allow the cookie management for any query
@@ -392,7 +540,8 @@ public class RequestBuilder<T, E> extends Request<T> implements Response.ErrorLi
     }
 
     /**
-     * Allow to cache parsed Object to the RAM with a auto-managed size limit
+     * Allow to cache parsed Object to the RAM with a auto-managed size limit, see
+     * {@link BeanCacheMap}. The object is kept for cacheTimeToLive if set.
      *
      * @param allowBeanCache
      * @return
@@ -462,7 +611,7 @@ public class RequestBuilder<T, E> extends Request<T> implements Response.ErrorLi
      */
     public void start() {
         if (allowBeanCache > 0) {
-            Object dataParsed = BeanCacheMap.get().get(getUrl());
+            Object dataParsed = BeanCacheMap.get().get(getCacheKey());
             if (dataParsed != null) {
                 try {
                     ResultInfo queryResultInfo = new ResultInfo(ResultInfo.CODE_QUERY.SUCCESS);
@@ -474,6 +623,9 @@ public class RequestBuilder<T, E> extends Request<T> implements Response.ErrorLi
             }
         }
 
+        if (batcher != null && batcher.add(this)) {
+            return;
+        }
         queue.add(this);
     }
 
@@ -485,8 +637,8 @@ public class RequestBuilder<T, E> extends Request<T> implements Response.ErrorLi
             return;
         }
 
-        Response<T> response = parseNetworkResponse(new NetworkResponse(entry.data, entry.responseHeaders));
-        deliverResponse(response.result);
+        Response<T> response = parseCacheEntry(entry);
+        deliverResponse(response.setCacheMetadata(entry, Response.Origin.CACHE));
     }
 
     protected String generateUrl(String url, Map<String, Object> getParameters) {
@@ -596,47 +748,124 @@ public class RequestBuilder<T, E> extends Request<T> implements Response.ErrorLi
     @Override
     protected Response<T> parseNetworkResponse(NetworkResponse networkResponse) {
         //Parse
-        T dataParsed = parseData(parser, networkResponse.data);
+        T dataParsed = parseData(parser, networkResponse.data, parseCharset(networkResponse));
+        parsedSize = networkResponse.data != null ? networkResponse.data.length : 0;
+
+        return Response.success(dataParsed, buildCacheEntry(networkResponse, dataParsed));
+    }
+
+    @Override
+    protected Response<T> parseCacheEntry(Cache.Entry entry) {
+        //Read the snapshot back if it has the current version of the type, else parse the data
+        SnapshotCodec codec = snapshotCodec;
+        if (entry.snapshot != null && codec != null && parser instanceof Type) {
+            Type type = (Type) parser;
+            String version = codec.getVersion(type);
+            if (version != null && version.equals(entry.snapshotVersion)) {
+                try {
+                    T dataParsed = (T) codec.decode(type, entry.snapshot);
+                    parsedSize = entry.data != null ? entry.data.length : 0;
+                    return Response.success(dataParsed, entry);
+                } catch (Exception e) {
+                    VolleyLog.d("Could not read snapshot of %s: %s", getCacheKey(), e.toString());
+                }
+            }
+        }
+        return super.parseCacheEntry(entry);
+    }
+
+    @Override
+    public Response<T> parseNetworkStream(NetworkResponse networkResponse, InputStream body)
+            throws IOException {
+        //Parse while downloading, the body is written to the cache by the network
+        CountingInputStream countingBody = new CountingInputStream(body);
+        T dataParsed = parseData(parser, countingBody, parseCharset(networkResponse));
+        parsedSize = countingBody.count;
+
+        return Response.success(dataParsed, buildCacheEntry(networkResponse, dataParsed));
+    }
+
+    /**
+     * Build cache entry for this occur, or null if the request is not cached
+     */
+    private Cache.Entry buildCacheEntry(NetworkResponse networkResponse, T dataParsed) {
+        if (!shouldCache()) {
+            return null;
+        }
 
         //Format Cache structure
         long now = System.currentTimeMillis();
 
-        //Build cache entry for this occur
-        Cache.Entry entry = null;
-        if (shouldCache()) {
-            entry = new Cache.Entry();
-            entry.data = networkResponse.data;
-            entry.etag = null;
-            entry.softTtl = now + cacheTimeToRefresh <= 0 ? cacheTimeToLive : cacheTimeToRefresh;
-            entry.ttl = now + cacheTimeToLive;
-            entry.serverDate = now;
-            entry.responseHeaders = networkResponse.headers;
-            entry.alwaysKeep = alwaysKeepInCache;
-        }
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = networkResponse.data;
+        entry.etag = null;
+        entry.softTtl = now + cacheTimeToRefresh <= 0 ? cacheTimeToLive : cacheTimeToRefresh;
+        entry.ttl = now + cacheTimeToLive;
+        entry.serverDate = now;
+        entry.responseHeaders = networkResponse.headers;
+        entry.alwaysKeep = alwaysKeepInCache;
+        entry.tags = cacheTags;
+        addSnapshot(entry, dataParsed);
+        return entry;
+    }
 
-        return Response.success(dataParsed, entry);
+    /**
+     * Store the snapshot of the parsed data with the entry, if the {@link SnapshotCodec}
+     * supports its type
+     */
+    private void addSnapshot(Cache.Entry entry, T dataParsed) {
+        SnapshotCodec codec = snapshotCodec;
+        if (codec == null || dataParsed == null || !(parser instanceof Type)) {
+            return;
+        }
+        Type type = (Type) parser;
+        String version = codec.getVersion(type);
+        if (version == null) {
+            return;
+        }
+        try {
+            entry.snapshot = codec.encode(type, dataParsed);
+            entry.snapshotVersion = version;
+        } catch (IOException e) {
+            VolleyLog.d("Could not write snapshot of %s: %s", getCacheKey(), e.toString());
+        }
     }
 
     @Override
     protected void deliverResponse(T dataParsed) {
-        if (allowBeanCache >= 0) {
-            BeanCacheMap.get().put(getUrl(), dataParsed);
+        deliverResponse(Response.success(dataParsed, null));
+    }
+
+    @Override
+    protected void deliverResponse(Response<T> response) {
+        T dataParsed = response.result;
+        //Do not keep stale or intermediate data in RAM cache: it would be served as fresh
+        if (allowBeanCache >= 0 && !response.stale && !response.intermediate) {
+            long beanTimeToLive = cacheTimeToLive;
+            if (response.hasCacheMetadata) {
+                //The bean must not outlive the cache entry it comes from
+                long remaining = response.ttl - System.currentTimeMillis();
+                if (beanTimeToLive <= 0 || beanTimeToLive > remaining) {
+                    beanTimeToLive = remaining;
+                }
+            }
+            if (!response.hasCacheMetadata || beanTimeToLive > 0) {
+                BeanCacheMap.get().put(getCacheKey(), dataParsed, parsedSize, beanTimeToLive);
+            }
         }
 
-        //Build metadata for callback
+        //Build metadata for callback, from the response: no cache read on the main thread
         ResultInfo queryResultInfo = new ResultInfo();
         queryResultInfo.setTag(tag);
 
-        if (queue.getCache() != null) {
-            Cache.Entry currentDataCacheEntry = queue.getCache().get(this.getCacheKey());
-            if (currentDataCacheEntry != null) {
-                //In this case, Volley return the data cache in first callback, then network result in a 2nd callback
-                queryResultInfo.orderResult = getOrderResult();
-                queryResultInfo.dataIsRefreshing = getOrderResult() == STATUS_RESULT.intermediate;
-                queryResultInfo.dataDatetime = currentDataCacheEntry.serverDate;
-            }
+        if (response.hasCacheMetadata) {
+            //In this case, Volley return the data cache in first callback, then network result in a 2nd callback
+            queryResultInfo.orderResult = getOrderResult();
+            queryResultInfo.dataIsRefreshing = getOrderResult() == STATUS_RESULT.intermediate;
+            queryResultInfo.dataDatetime = response.serverDate;
         }
 
+        queryResultInfo.dataIsStale = response.stale;
         queryResultInfo.codeQuery = ResultInfo.CODE_QUERY.SUCCESS;
 
         sendCallback(queryResultInfo, dataParsed, null);
@@ -675,7 +904,8 @@ public class RequestBuilder<T, E> extends Request<T> implements Response.ErrorLi
             queryResultInfo.codeQuery = ResultInfo.CODE_QUERY.SERVER_ERROR;
 
             try {
-                dataParsed = parseData(parserError, error.networkResponse.data);
+                dataParsed = parseData(parserError, error.networkResponse.data,
+                        parseCharset(error.networkResponse));
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -695,7 +925,8 @@ public class RequestBuilder<T, E> extends Request<T> implements Response.ErrorLi
                     queryResultInfo.codeQuery = ResultInfo.CODE_QUERY.NOT_AUTHORIZED;
                 }
                 try {
-                    dataParsed = parseData(parserError, error.networkResponse.data);
+                    dataParsed = parseData(parserError, error.networkResponse.data,
+                            parseCharset(error.networkResponse));
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -711,9 +942,18 @@ public class RequestBuilder<T, E> extends Request<T> implements Response.ErrorLi
      * @param <U>        T or E depending of the data to be parsed
      * @return
      */
-
     protected <U> U parseData(Object dataParser, byte[] data) {
-        //String dataStr = new String(data);
+        return parseData(dataParser, data, DEFAULT_CHARSET);
+    }
+
+    /**
+     * @param dataParser
+     * @param data
+     * @param charset    Charset of the data, used by Json parsing
+     * @param <U>        T or E depending of the data to be parsed
+     * @return
+     */
+    protected <U> U parseData(Object dataParser, byte[] data, String charset) {
         U dataParsed = null;
 
         if (dataParser != null) {
@@ -725,22 +965,77 @@ public class RequestBuilder<T, E> extends Request<T> implements Response.ErrorLi
                 //Json parsing
                 Type type = (Type) dataParser;
 
-                String s = new String(data);
                 if (preprocessor != null) {
+                    //The preprocessor needs the whole String
+                    String s = new String(data, toCharset(charset));
                     s = preprocessor.preprocess(s);
+                    dataParsed = gson.fromJson(s, type);
+                } else {
+                    //Decode while parsing, no intermediate String
+                    Reader reader = new InputStreamReader(new ByteArrayInputStream(data),
+                            toCharset(charset));
+                    dataParsed = gson.fromJson(reader, type);
                 }
-                dataParsed = gson.fromJson(s, type);
-
-//                    Reader reader = new InputStreamReader(new ByteArrayInputStream(data));
-//                    JsonReader jsonReader = new JsonReader(reader);
-//                    jsonReader.beginObject();
-//                    gson.fromJson(jsonReader, type);
-
             }
         }
         return dataParsed;
     }
 
+    /**
+     * Same as {@link #parseData(Object, byte[], String)}, reading the data from a stream. Json is
+     * parsed without loading the whole data in memory, unless a preprocessor is set.
+     *
+     * @param dataParser
+     * @param body
+     * @param charset    Charset of the data, used by Json parsing
+     * @param <U>        T or E depending of the data to be parsed
+     * @return
+     */
+    protected <U> U parseData(Object dataParser, InputStream body, String charset)
+            throws IOException {
+        if (dataParser == null) {
+            return null;
+        }
+        if (dataParser instanceof Type && preprocessor == null) {
+            Reader reader = new InputStreamReader(body, toCharset(charset));
+            try {
+                return gson.fromJson(reader, (Type) dataParser);
+            } catch (JsonParseException e) {
+                //Network failure while reading: let the network retry or report it
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException && !(cause instanceof MalformedJsonException)) {
+                    throw (IOException) cause;
+                }
+                throw e;
+            }
+        }
+
+        //Parsers working on the whole data
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = body.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        return parseData(dataParser, bytes.toByteArray(), charset);
+    }
+
+    /**
+     * Charset of a response, Json defaults to UTF-8
+     */
+    private static String parseCharset(NetworkResponse networkResponse) {
+        return HttpHeaderParser.parseCharset(networkResponse.headers, DEFAULT_CHARSET);
+    }
+
+    private static Charset toCharset(String charset) {
+        try {
+            return Charset.forName(charset);
+        } catch (Exception e) {
+            //Illegal or unsupported charset name sent by the server
+            return Charset.forName(DEFAULT_CHARSET);
+        }
+    }
+
     /**
      * Do not use except if strictly required
      *
@@ -851,4 +1146,33 @@ public class RequestBuilder<T, E> extends Request<T> implements Response.ErrorLi
         }
         return null;
     }
+
+    /**
+     * Counts the bytes read from a response body
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        int count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result != -1) {
+                count++;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int result = super.read(buffer, offset, count);
+            if (result != -1) {
+                this.count += result;
+            }
+            return result;
+        }
+    }
 }
\ No newline at end of file
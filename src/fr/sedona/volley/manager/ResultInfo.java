@@ -43,6 +43,11 @@ public class ResultInfo {
 
     public Request.STATUS_RESULT orderResult;
 
+    /**
+     * Indicates the data is an expired cached result, delivered because the query failed, see {@link RequestBuilder#staleIfError(long)}.
+     */
+    public boolean dataIsStale = false;
+
     private Object tag;
 
     /**
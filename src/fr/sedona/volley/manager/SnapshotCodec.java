@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.sedona.volley.manager;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+/**
+ * Store the parsed object of a cached Json response in a compact binary form, read back on cache
+ * hits instead of parsing the Json again, see
+ * {@link RequestBuilder#setSnapshotCodec(SnapshotCodec)}.
+ * <p>
+ * The snapshot is stored with the version given for its type: when the version changed, for
+ * example after a field was added to the class, the snapshot is ignored and the Json is parsed.
+ */
+public interface SnapshotCodec {
+
+    /**
+     * @param type
+     * @return the version of the binary form of the type, or null if the type is not supported
+     */
+    public String getVersion(Type type);
+
+    /**
+     * @param type
+     * @param data the parsed object
+     * @return the snapshot of the object
+     * @throws IOException
+     */
+    public byte[] encode(Type type, Object data) throws IOException;
+
+    /**
+     * @param type
+     * @param snapshot
+     * @return the object
+     * @throws IOException if the snapshot cannot be read, the Json is parsed instead
+     */
+    public Object decode(Type type, byte[] snapshot) throws IOException;
+}
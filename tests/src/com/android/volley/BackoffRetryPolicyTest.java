@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class BackoffRetryPolicyTest extends TestCase {
+
+    public void testDelayGrowsExponentiallyUpToMax() throws Exception {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(1000, 10, 1f, 100, 1000,
+                new FixedRandom(0.999));
+        long[] expected = { 99, 199, 399, 799, 999, 999 };
+        for (long delay : expected) {
+            policy.retry(new TimeoutError());
+            assertEquals(delay, policy.getRetryDelayMs());
+        }
+    }
+
+    public void testDelayIsJittered() throws Exception {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(1000, 10, 1f, 100, 1000,
+                new FixedRandom(0.25));
+        policy.retry(new TimeoutError());
+        assertEquals(25, policy.getRetryDelayMs());
+        policy.retry(new TimeoutError());
+        assertEquals(50, policy.getRetryDelayMs());
+    }
+
+    public void testThrowsWhenOutOfRetries() throws Exception {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(1000, 1);
+        policy.retry(new TimeoutError());
+        TimeoutError error = new TimeoutError();
+        try {
+            policy.retry(error);
+            fail("Expected the error to be thrown");
+        } catch (VolleyError e) {
+            assertSame(error, e);
+        }
+    }
+
+    public void testBudgetRunsOut() {
+        RetryBudget budget = new RetryBudget(2, 0);
+        assertEquals(2, budget.getAvailableTokens());
+        assertTrue(budget.tryAcquire());
+        assertTrue(budget.tryAcquire());
+        assertFalse(budget.tryAcquire());
+        assertEquals(0, budget.getAvailableTokens());
+    }
+
+    public void testBudgetRefills() throws Exception {
+        RetryBudget budget = new RetryBudget(1, 100);
+        assertTrue(budget.tryAcquire());
+        assertFalse(budget.tryAcquire());
+        Thread.sleep(50);
+        assertTrue(budget.tryAcquire());
+    }
+
+    private static class FixedRandom extends Random {
+        private final double mValue;
+
+        FixedRandom(double value) {
+            mValue = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return mValue;
+        }
+    }
+}
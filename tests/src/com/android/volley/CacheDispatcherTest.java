@@ -22,8 +22,13 @@ import com.android.volley.mock.MockCache;
 import com.android.volley.mock.MockRequest;
 import com.android.volley.mock.MockResponseDelivery;
 import com.android.volley.mock.WaitableQueue;
+import com.android.volley.toolbox.HttpHeaderParser;
 import com.android.volley.utils.CacheTestUtils;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 import junit.framework.TestCase;
 
 @MediumTest
@@ -102,6 +107,27 @@ public class CacheDispatcherTest extends TestCase {
         assertSame(entry, request.getCacheEntry());
     }
 
+    // A hit fetched with other values of the headers it varies on is a miss.
+    public void testVaryMismatchIsMiss() throws Exception {
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, false, false);
+        Map<String, String> responseHeaders = new HashMap<String, String>();
+        responseHeaders.put("Vary", "Accept-Language");
+        responseHeaders.put(HttpHeaderParser.HEADER_VARY_KEY, "accept-language=fr\n");
+        entry.responseHeaders = responseHeaders;
+        mCache.setEntryToReturn(entry);
+        MockRequest request = new MockRequest() {
+            @Override
+            public Map<String, String> getHeaders() {
+                return Collections.singletonMap("Accept-Language", "en");
+            }
+        };
+        mCacheQueue.add(request);
+        mCacheQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertFalse(mDelivery.wasEitherResponseCalled());
+        assertTrue(mNetworkQueue.size() > 0);
+        assertNull(mNetworkQueue.take().getCacheEntry());
+    }
+
     // An expired cache hit does not post a response and queues to the network.
     public void testExpiredCacheHit() throws Exception {
         Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, true, true);
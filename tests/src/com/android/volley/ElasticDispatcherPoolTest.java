@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.volley.mock.MockRequest;
+import com.android.volley.mock.MockResponseDelivery;
+import com.android.volley.toolbox.NoCache;
+
+import java.net.CookieStore;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+@MediumTest
+public class ElasticDispatcherPoolTest extends TestCase {
+    private static final long MAX_QUEUE_WAIT_MS = 20;
+    private static final long KEEP_ALIVE_MS = 100;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private NetworkQueue mQueue;
+    private BlockingNetwork mNetwork;
+    private ElasticDispatcherPool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mQueue = new NetworkQueue();
+        mNetwork = new BlockingNetwork();
+        mPool = new ElasticDispatcherPool(mQueue, mNetwork, new NoCache(),
+                new MockResponseDelivery(), null, 1, 3, MAX_QUEUE_WAIT_MS, KEEP_ALIVE_MS);
+        mPool.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mNetwork.release();
+        mPool.stop();
+        super.tearDown();
+    }
+
+    public void testGrowsWhenRequestsWaitAndShrinksWhenIdle() throws Exception {
+        assertEquals(1, mPool.getPoolSize());
+        for (int i = 0; i < 6; i++) {
+            mQueue.add(newRequest(i));
+        }
+
+        // Every dispatcher is blocked on the network: the pool grows up to its maximum.
+        assertTrue(waitForPoolSize(3));
+        assertEquals(3, mNetwork.mInFlight.get());
+
+        mNetwork.release();
+        assertTrue(waitForPoolSize(1));
+        assertTrue(mQueue.isEmpty());
+        assertEquals(6, mNetwork.mPerformed.get());
+    }
+
+    public void testDoesNotGrowWhenRequestsAreServed() throws Exception {
+        mNetwork.release();
+        for (int i = 0; i < 10; i++) {
+            mQueue.add(newRequest(i));
+            Thread.sleep(5);
+        }
+        Thread.sleep(MAX_QUEUE_WAIT_MS * 3);
+        assertEquals(1, mPool.getPoolSize());
+    }
+
+    private boolean waitForPoolSize(int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mPool.getPoolSize() != size) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static Request<?> newRequest(int sequence) {
+        MockRequest request = new MockRequest();
+        request.setSequence(sequence);
+        return request;
+    }
+
+    /** Blocks every request until released. */
+    private static class BlockingNetwork implements Network {
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        final AtomicInteger mInFlight = new AtomicInteger();
+        final AtomicInteger mPerformed = new AtomicInteger();
+
+        public void release() {
+            mLatch.countDown();
+        }
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            mInFlight.incrementAndGet();
+            try {
+                mLatch.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new VolleyError(e);
+            } finally {
+                mInFlight.decrementAndGet();
+            }
+            mPerformed.incrementAndGet();
+            return new NetworkResponse(new byte[0]);
+        }
+
+        @Override
+        public Response<?> performStreamingRequest(StreamingRequest<?> request, Cache cache) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CookieStore getCookieStore() {
+            return null;
+        }
+    }
+}
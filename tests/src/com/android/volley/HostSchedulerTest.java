@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.volley.Request.Priority;
+import com.android.volley.mock.MockRequest;
+import com.android.volley.toolbox.NoCache;
+import com.android.volley.utils.ImmediateResponseDelivery;
+
+import java.net.CookieStore;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class HostSchedulerTest extends TestCase {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private int mSequence;
+
+    public void testLimitsRequestsPerHost() {
+        HostScheduler scheduler = new HostScheduler(2, 0);
+        Request<?> first = newRequest("a", Priority.NORMAL);
+        assertTrue(scheduler.admit(first));
+        assertTrue(scheduler.admit(newRequest("a", Priority.NORMAL)));
+        Request<?> third = newRequest("a", Priority.NORMAL);
+        assertFalse(scheduler.admit(third));
+        // Other hosts are not held up.
+        assertTrue(scheduler.admit(newRequest("b", Priority.NORMAL)));
+        assertEquals(1, scheduler.getWaitingCount());
+
+        List<Request<?>> admitted = scheduler.release(first);
+        assertEquals(1, admitted.size());
+        assertSame(third, admitted.get(0));
+        assertEquals(0, scheduler.getWaitingCount());
+        // Unknown requests, e.g. served from the cache, release nothing.
+        assertNull(scheduler.release(newRequest("a", Priority.NORMAL)));
+    }
+
+    public void testReservesCapacityForHighPriority() {
+        HostScheduler scheduler = new HostScheduler(10, 1);
+        scheduler.setCapacity(2);
+        Request<?> low = newRequest("cdn", Priority.LOW);
+        assertTrue(scheduler.admit(low));
+        Request<?> waitingLow = newRequest("cdn", Priority.LOW);
+        assertFalse(scheduler.admit(waitingLow));
+        assertFalse(scheduler.admit(newRequest("other", Priority.NORMAL)));
+        assertTrue(scheduler.admit(newRequest("api", Priority.IMMEDIATE)));
+        assertTrue(scheduler.admit(newRequest("api", Priority.HIGH)));
+        assertEquals(2, scheduler.getWaitingCount());
+    }
+
+    public void testAdmitsHighestPriorityFirst() {
+        HostScheduler scheduler = new HostScheduler(1, 0);
+        Request<?> running = newRequest("a", Priority.NORMAL);
+        assertTrue(scheduler.admit(running));
+        Request<?> low = newRequest("a", Priority.LOW);
+        Request<?> high = newRequest("a", Priority.HIGH);
+        scheduler.admit(low);
+        scheduler.admit(high);
+
+        assertSame(high, scheduler.release(running).get(0));
+        assertSame(low, scheduler.release(high).get(0));
+    }
+
+    public void testSharesDispatchersByWeight() {
+        HostScheduler scheduler = new HostScheduler(10, 0);
+        scheduler.setCapacity(1);
+        scheduler.setHostWeight("heavy", 2);
+        Request<?> running = newRequest("heavy", Priority.NORMAL);
+        assertTrue(scheduler.admit(running));
+        for (int i = 0; i < 6; i++) {
+            scheduler.admit(newRequest("heavy", Priority.NORMAL));
+            scheduler.admit(newRequest("light", Priority.NORMAL));
+        }
+
+        int heavy = 0;
+        for (int i = 0; i < 6; i++) {
+            running = scheduler.release(running).get(0);
+            if (running.getUrl().startsWith("http://heavy/")) {
+                heavy++;
+            }
+        }
+        assertEquals(4, heavy);
+    }
+
+    /**
+     * A slow host serving low priority requests does not hold every dispatcher.
+     */
+    @MediumTest
+    public void testSlowHostDoesNotStarveHighPriority() throws Exception {
+        SlowHostNetwork network = new SlowHostNetwork("cdn");
+        RequestQueue queue = new RequestQueue(new NoCache(), network, 2,
+                new ImmediateResponseDelivery());
+        queue.setHostScheduler(new HostScheduler(2, 1));
+        queue.start();
+        try {
+            for (int i = 0; i < 5; i++) {
+                queue.add(newRequest("cdn", Priority.LOW));
+            }
+            assertTrue(network.mSlowStarted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+            MockRequest api = newRequest("api", Priority.IMMEDIATE);
+            queue.add(api);
+            assertTrue(waitForCount(network.mFastPerformed, 1));
+            assertEquals(1, network.mSlowInFlight.get());
+
+            network.mRelease.countDown();
+            assertTrue(waitForCount(network.mSlowPerformed, 5));
+        } finally {
+            network.mRelease.countDown();
+            queue.stop();
+        }
+    }
+
+    private MockRequest newRequest(String host, Priority priority) {
+        MockRequest request = new MockRequest("http://" + host + "/" + mSequence, null);
+        request.setPriority(priority);
+        request.setSequence(mSequence++);
+        return request;
+    }
+
+    private static boolean waitForCount(AtomicInteger count, int expected)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (count.get() < expected) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /** Blocks the requests to the slow host until released. */
+    private static class SlowHostNetwork implements Network {
+        private final String mSlowHost;
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        final CountDownLatch mSlowStarted = new CountDownLatch(1);
+        final AtomicInteger mSlowInFlight = new AtomicInteger();
+        final AtomicInteger mSlowPerformed = new AtomicInteger();
+        final AtomicInteger mFastPerformed = new AtomicInteger();
+
+        SlowHostNetwork(String slowHost) {
+            mSlowHost = slowHost;
+        }
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            if (!request.getUrl().startsWith("http://" + mSlowHost + "/")) {
+                mFastPerformed.incrementAndGet();
+                return new NetworkResponse(new byte[0]);
+            }
+            mSlowInFlight.incrementAndGet();
+            mSlowStarted.countDown();
+            try {
+                mRelease.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new VolleyError(e);
+            } finally {
+                mSlowInFlight.decrementAndGet();
+            }
+            mSlowPerformed.incrementAndGet();
+            return new NetworkResponse(new byte[0]);
+        }
+
+        @Override
+        public Response<?> performStreamingRequest(StreamingRequest<?> request, Cache cache) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CookieStore getCookieStore() {
+            return null;
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.android.volley;
 
+import android.os.SystemClock;
 import android.test.suitebuilder.annotation.MediumTest;
 
 import com.android.volley.mock.MockCache;
@@ -24,7 +25,10 @@ import com.android.volley.mock.MockRequest;
 import com.android.volley.mock.MockResponseDelivery;
 import com.android.volley.mock.WaitableQueue;
 
+import java.net.CookieStore;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
@@ -81,6 +85,94 @@ public class NetworkDispatcherTest extends TestCase {
         assertTrue(mDelivery.postError_called);
     }
 
+    public void testPastDeadlineIsDropped() throws Exception {
+        mNetwork.setDataToReturn(CANNED_DATA);
+        mRequest.setDeadline(SystemClock.elapsedRealtime() - 1);
+        mNetworkQueue.add(mRequest);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertNull(mNetwork.requestHandled);
+        assertFalse(mDelivery.postResponse_called);
+        assertTrue(mDelivery.postError_called);
+    }
+
+    public void testStaleEntryServedOnError() throws Exception {
+        mNetwork.setNumExceptionsToThrow(MockNetwork.ALWAYS_THROW_EXCEPTIONS);
+        mRequest.setCacheEntry(makeExpiredEntry(1000));
+        mRequest.setStaleIfErrorMs(60 * 1000);
+        mNetworkQueue.add(mRequest);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertFalse(mDelivery.postError_called);
+        assertTrue(mDelivery.postResponse_called);
+        assertTrue(mDelivery.responsePosted.stale);
+        assertTrue(Arrays.equals((byte[]) mDelivery.responsePosted.result, CANNED_DATA));
+    }
+
+    public void testStaleIfErrorHeaderHonoured() throws Exception {
+        mNetwork.setNumExceptionsToThrow(MockNetwork.ALWAYS_THROW_EXCEPTIONS);
+        Cache.Entry entry = makeExpiredEntry(1000);
+        entry.responseHeaders.put("Cache-Control", "max-age=60, stale-if-error=3600");
+        mRequest.setCacheEntry(entry);
+        mNetworkQueue.add(mRequest);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertFalse(mDelivery.postError_called);
+        assertTrue(mDelivery.responsePosted.stale);
+    }
+
+    public void testTooStaleEntryNotServed() throws Exception {
+        mNetwork.setNumExceptionsToThrow(MockNetwork.ALWAYS_THROW_EXCEPTIONS);
+        mRequest.setCacheEntry(makeExpiredEntry(2 * 60 * 1000));
+        mRequest.setStaleIfErrorMs(60 * 1000);
+        mNetworkQueue.add(mRequest);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertFalse(mDelivery.postResponse_called);
+        assertTrue(mDelivery.postError_called);
+    }
+
+    public void testStaleEntryServedWhenCircuitOpen() throws Exception {
+        mDispatcher.quit();
+        mDispatcher.join();
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                throw new CircuitOpenError();
+            }
+
+            @Override
+            public Response<?> performStreamingRequest(StreamingRequest<?> request,
+                    Cache cache) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CookieStore getCookieStore() {
+                return null;
+            }
+        };
+        mDispatcher = new NetworkDispatcher(mNetworkQueue, network, mCache, mDelivery);
+        mDispatcher.start();
+
+        mRequest.setCacheEntry(makeExpiredEntry(1000));
+        mRequest.setStaleIfErrorMs(60 * 1000);
+        mNetworkQueue.add(mRequest);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!mDelivery.wasEitherResponseCalled() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(mDelivery.postError_called);
+        assertTrue(mDelivery.responsePosted.stale);
+        assertTrue(Arrays.equals((byte[]) mDelivery.responsePosted.result, CANNED_DATA));
+    }
+
+    private static Cache.Entry makeExpiredEntry(long expiredForMs) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = CANNED_DATA;
+        entry.responseHeaders = new HashMap<String, String>();
+        entry.ttl = System.currentTimeMillis() - expiredForMs;
+        entry.softTtl = entry.ttl;
+        return entry;
+    }
+
     public void test_shouldCacheFalse() throws Exception {
         mRequest.setShouldCache(false);
         mNetworkQueue.add(mRequest);
@@ -99,4 +191,92 @@ public class NetworkDispatcherTest extends TestCase {
         assertTrue(Arrays.equals(mCache.entryPut.data, CANNED_DATA));
         assertEquals("bananaphone", mCache.keyPut);
     }
+
+    public void testRetryLaterRequeuesRequest() throws Exception {
+        mDispatcher.quit();
+        mDispatcher.join();
+        final AtomicInteger attempts = new AtomicInteger();
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                if (attempts.incrementAndGet() == 1) {
+                    throw new RetryLaterError(new ServerError(), 50);
+                }
+                return new NetworkResponse(CANNED_DATA);
+            }
+
+            @Override
+            public Response<?> performStreamingRequest(StreamingRequest<?> request,
+                    Cache cache) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CookieStore getCookieStore() {
+                return null;
+            }
+        };
+        mDispatcher = new NetworkDispatcher(mNetworkQueue, network, mCache, mDelivery);
+        mDispatcher.start();
+
+        mNetworkQueue.add(mRequest);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!mDelivery.wasEitherResponseCalled() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(2, attempts.get());
+        assertTrue(mDelivery.postResponse_called);
+        assertFalse(mDelivery.postError_called);
+    }
+
+    public void testParseStagePostsResponse() throws Exception {
+        // Replace the dispatcher with one handing responses off to a parse stage.
+        mDispatcher.quit();
+        mDispatcher.join();
+        ParseStage parseStage = new ParseStage(1, 4);
+        parseStage.start();
+        mDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork, mCache, mDelivery,
+                parseStage);
+        mDispatcher.start();
+
+        mNetwork.setDataToReturn(CANNED_DATA);
+        mRequest.setShouldCache(true);
+        mRequest.setCacheKey("bananaphone");
+        mNetworkQueue.add(mRequest);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!mDelivery.wasEitherResponseCalled() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        parseStage.stop();
+
+        assertTrue(mDelivery.postResponse_called);
+        assertTrue(Arrays.equals((byte[]) mDelivery.responsePosted.result, CANNED_DATA));
+        assertTrue(mCache.putCalled);
+        assertEquals(1, parseStage.getParseCount());
+        assertEquals(0, parseStage.getQueueDepth());
+    }
+
+    public void testStoppedParseStageParsesOnDispatcher() throws Exception {
+        mDispatcher.quit();
+        mDispatcher.join();
+        ParseStage parseStage = new ParseStage(1, 4);
+        parseStage.start();
+        parseStage.stop();
+        mDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork, mCache, mDelivery,
+                parseStage);
+        mDispatcher.start();
+
+        mNetwork.setDataToReturn(CANNED_DATA);
+        mNetworkQueue.add(mRequest);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!mDelivery.wasEitherResponseCalled() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(mDelivery.postResponse_called);
+        assertEquals(1, parseStage.getParseCount());
+    }
 }
@@ -28,9 +28,11 @@ import android.test.InstrumentationTestCase;
 import android.test.UiThreadTest;
 import android.test.suitebuilder.annotation.LargeTest;
 
+import java.net.CookieStore;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -106,6 +108,134 @@ public class RequestQueueTest extends InstrumentationTestCase {
         queue.stop();
     }
 
+    public void testAdd_dedupeUncachedIdenticalRequests() throws Exception {
+        CountingNetwork network = new CountingNetwork();
+        final AtomicInteger parsed = new AtomicInteger();
+        final AtomicInteger delivered = new AtomicInteger();
+        RequestQueue queue = new RequestQueue(new NoCache(), network, 3, mDelivery);
+        for (int i = 0; i < 3; i++) {
+            DelayedRequest request = new DelayedRequest(100, parsed, delivered);
+            request.setShouldCache(false);
+            request.setShouldDeduplicate(true);
+            queue.add(request);
+        }
+        queue.start();
+        waitForCount(delivered, 3, 2000);
+        queue.stop();
+
+        // One network call and one parse, fanned out to the three requests.
+        assertEquals(1, network.mCount.get());
+        assertEquals(1, parsed.get());
+    }
+
+    public void testAdd_dedupeHandsOverWhenFirstCancelled() throws Exception {
+        CountingNetwork network = new CountingNetwork();
+        final AtomicInteger parsed = new AtomicInteger();
+        final AtomicInteger delivered = new AtomicInteger();
+        RequestQueue queue = new RequestQueue(new NoCache(), network, 3, mDelivery);
+        DelayedRequest first = null;
+        for (int i = 0; i < 3; i++) {
+            DelayedRequest request = new DelayedRequest(0, parsed, delivered);
+            request.setShouldCache(false);
+            request.setShouldDeduplicate(true);
+            queue.add(request);
+            if (first == null) {
+                first = request;
+            }
+        }
+        first.cancel();
+        queue.start();
+        waitForCount(delivered, 2, 2000);
+        queue.stop();
+
+        assertEquals(1, network.mCount.get());
+        assertEquals(2, delivered.get());
+    }
+
+    public void testAdd_imageRequestsUseTheirOwnDispatchers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        Network network = new CountingNetwork() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) {
+                if (request.getTrafficClass() == Request.TrafficClass.API) {
+                    try {
+                        release.await(2, TimeUnit.SECONDS);
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                return super.performRequest(request);
+            }
+        };
+        final AtomicInteger parsed = new AtomicInteger();
+        final AtomicInteger delivered = new AtomicInteger();
+        RequestQueue queue = new RequestQueue(new NoCache(), network, 1, mDelivery);
+        queue.setImageThreadPoolSize(1);
+        DelayedRequest api = new DelayedRequest(0, parsed, delivered);
+        api.setShouldCache(false);
+        queue.add(api);
+        DelayedRequest image = new DelayedRequest(0, parsed, delivered) {
+            @Override
+            public TrafficClass getTrafficClass() {
+                return TrafficClass.IMAGE;
+            }
+        };
+        image.setShouldCache(false);
+        queue.add(image);
+        queue.start();
+
+        // The image goes through while the only API dispatcher is busy.
+        waitForCount(delivered, 1, 1000);
+        release.countDown();
+        waitForCount(delivered, 2, 2000);
+        queue.stop();
+    }
+
+    public void testStop_stopsParseStage() throws Exception {
+        CountingNetwork network = new CountingNetwork();
+        final AtomicInteger parsed = new AtomicInteger();
+        final AtomicInteger delivered = new AtomicInteger();
+        RequestQueue queue = new RequestQueue(new NoCache(), network, 1, mDelivery);
+        queue.setParseStage(new ParseStage(1, 4));
+        DelayedRequest request = new DelayedRequest(0, parsed, delivered);
+        request.setShouldCache(false);
+        queue.add(request);
+        queue.start();
+        waitForCount(delivered, 1, 2000);
+        queue.stop();
+
+        long deadline = SystemClock.uptimeMillis() + 2000;
+        while (hasParseThread() && SystemClock.uptimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(hasParseThread());
+
+        // Restarting the queue restarts the stage.
+        request = new DelayedRequest(0, parsed, delivered);
+        request.setShouldCache(false);
+        queue.add(request);
+        queue.start();
+        waitForCount(delivered, 2, 2000);
+        queue.stop();
+    }
+
+    private static boolean hasParseThread() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("volley-parse-") && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void waitForCount(AtomicInteger count, int expected, long timeout)
+            throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + timeout;
+        while (count.get() < expected && SystemClock.uptimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, count.get());
+    }
+
     public void testCancelAll_onlyCorrectTag() throws Exception {
         MockNetwork network = new MockNetwork();
         RequestQueue queue = new RequestQueue(new NoCache(), network, 3, mDelivery);
@@ -170,6 +300,31 @@ public class RequestQueueTest extends InstrumentationTestCase {
             mSemaphore.release();
             return new NetworkResponse(new byte[16]);
         }
+
+        @Override
+        public Response<?> performStreamingRequest(StreamingRequest<?> request, Cache cache) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private class CountingNetwork implements Network {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) {
+            mCount.incrementAndGet();
+            return new NetworkResponse(new byte[16]);
+        }
+
+        @Override
+        public Response<?> performStreamingRequest(StreamingRequest<?> request, Cache cache) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CookieStore getCookieStore() {
+            return null;
+        }
     }
 
     private class DelayedRequest extends Request<Object> {
@@ -16,6 +16,7 @@
 
 package com.android.volley;
 
+import android.os.SystemClock;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.volley.Request.Priority;
@@ -48,6 +49,24 @@ public class RequestTest extends TestCase {
         assertTrue(immediate.compareTo(high) < 0);
     }
 
+    public void testDeadlineClampsTimeout() {
+        TestRequest request = new TestRequest(Priority.NORMAL);
+        request.setRetryPolicy(new DefaultRetryPolicy(30000, 0, 1f));
+        assertEquals(30000, request.getTimeoutMs());
+        assertEquals(Long.MAX_VALUE, request.getRemainingTimeMs());
+        assertFalse(request.isPastDeadline());
+
+        request.setDeadline(SystemClock.elapsedRealtime() + 1000);
+        assertTrue(request.getTimeoutMs() <= 1000);
+        assertTrue(request.getTimeoutMs() > 0);
+        assertFalse(request.isPastDeadline());
+
+        request.setDeadline(SystemClock.elapsedRealtime() - 1);
+        assertTrue(request.isPastDeadline());
+        assertEquals(0, request.getRemainingTimeMs());
+        assertEquals(1, request.getTimeoutMs());
+    }
+
     private class TestRequest extends Request<Object> {
         private Priority mPriority = Priority.NORMAL;
         public TestRequest(Priority priority) {
@@ -97,4 +116,38 @@ public class RequestTest extends TestCase {
             return null;
         }
     }
+
+    public void testDeduplicationKeyDistinguishesBodies() {
+        // These bodies have the same Arrays.hashCode().
+        BodyRequest first = new BodyRequest(new byte[] { 0, 31 });
+        BodyRequest second = new BodyRequest(new byte[] { 1, 0 });
+        BodyRequest same = new BodyRequest(new byte[] { 0, 31 });
+        assertFalse(first.getDeduplicationKey().equals(second.getDeduplicationKey()));
+        assertEquals(first.getDeduplicationKey(), same.getDeduplicationKey());
+        assertFalse(first.getDeduplicationKey().equals(
+                new BodyRequest(null).getDeduplicationKey()));
+    }
+
+    private class BodyRequest extends Request<Object> {
+        private final byte[] mBody;
+
+        public BodyRequest(byte[] body) {
+            super(Request.Method.POST, "http://foo", null);
+            mBody = body;
+        }
+
+        @Override
+        public byte[] getBody() {
+            return mBody;
+        }
+
+        @Override
+        protected void deliverResponse(Object response) {
+        }
+
+        @Override
+        protected Response<Object> parseNetworkResponse(NetworkResponse response) {
+            return null;
+        }
+    }
 }
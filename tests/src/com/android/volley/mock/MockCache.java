@@ -56,6 +56,14 @@ public class MockCache implements Cache {
 
     @Override
     public void remove(String key) {
+    }
+
+    @Override
+    public void removeByCriteria(String... criteria) {
+    }
+
+    @Override
+    public void invalidateTags(boolean fullExpire, String... tags) {
     }
 
 	@Override
@@ -16,12 +16,19 @@
 
 package com.android.volley.mock;
 
+import com.android.volley.Cache;
 import com.android.volley.Network;
+import com.android.volley.NetworkError;
 import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
+import com.android.volley.Response;
 import com.android.volley.ServerError;
+import com.android.volley.StreamingRequest;
 import com.android.volley.VolleyError;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
 public class MockNetwork implements Network {
     public final static int ALWAYS_THROW_EXCEPTIONS = -1;
 
@@ -55,4 +62,16 @@ public class MockNetwork implements Network {
         return new NetworkResponse(mDataToReturn);
     }
 
+    @Override
+    public Response<?> performStreamingRequest(StreamingRequest<?> request, Cache cache)
+            throws VolleyError {
+        NetworkResponse response = performRequest(request);
+        try {
+            return request.parseNetworkStream(new NetworkResponse(response.statusCode, null,
+                    response.headers, false), new ByteArrayInputStream(response.data));
+        } catch (IOException e) {
+            throw new NetworkError(e);
+        }
+    }
+
 }
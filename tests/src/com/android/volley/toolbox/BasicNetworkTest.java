@@ -16,18 +16,37 @@
 
 package com.android.volley.toolbox;
 
+import com.android.volley.AuthFailureError;
+import com.android.volley.BackoffRetryPolicy;
+import com.android.volley.Cache;
+import com.android.volley.CircuitOpenError;
+import com.android.volley.DefaultRetryPolicy;
 import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.ParseError;
 import com.android.volley.Request;
 import com.android.volley.Response;
+import com.android.volley.RetryBudget;
+import com.android.volley.RetryLaterError;
+import com.android.volley.ServerError;
+import com.android.volley.StreamingRequest;
+import com.android.volley.TimeoutError;
 import com.android.volley.mock.MockHttpStack;
 
+import org.apache.http.HttpResponse;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHttpResponse;
 
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.CookieStore;
+import java.net.SocketTimeoutException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -76,4 +95,221 @@ public class BasicNetworkTest extends AndroidTestCase {
         assertEquals("foo", mockHttpStack.getLastHeaders().get("requestheader"));
         assertEquals("requestpost=foo&", new String(mockHttpStack.getLastPostBody()));
     }
+
+    public void testStreamingRequestWritesCache() throws Exception {
+        File root = new File(getContext().getCacheDir(), "streaming-test");
+        DiskBasedCache cache = new DiskBasedCache(root);
+        cache.initialize();
+        try {
+            BasicNetwork httpNetwork = new BasicNetwork(newStackReturning("foobar"));
+            PrefixRequest request = new PrefixRequest(3, true);
+
+            Response<?> response = httpNetwork.performStreamingRequest(request, cache);
+            // The parser only read the start of the body, the cache has all of it.
+            assertEquals("foo", response.result);
+            Cache.Entry entry = cache.get(request.getCacheKey());
+            assertNotNull(entry);
+            assertEquals("foobar", new String(entry.data));
+            assertEquals(1, root.list().length);
+        } finally {
+            cache.clear();
+            root.delete();
+        }
+    }
+
+    public void testStreamingRequestDoesNotCacheErrors() throws Exception {
+        File root = new File(getContext().getCacheDir(), "streaming-test");
+        DiskBasedCache cache = new DiskBasedCache(root);
+        cache.initialize();
+        try {
+            BasicNetwork httpNetwork = new BasicNetwork(newStackReturning("foobar"));
+            PrefixRequest request = new PrefixRequest(3, false);
+
+            Response<?> response = httpNetwork.performStreamingRequest(request, cache);
+            assertFalse(response.isSuccess());
+            assertNull(cache.get(request.getCacheKey()));
+            // The temporary file was cleaned up.
+            assertEquals(0, root.list().length);
+        } finally {
+            cache.clear();
+            root.delete();
+        }
+    }
+
+    public void testRetriesStopAtDeadline() throws Exception {
+        final int[] attempts = new int[1];
+        final PrefixRequest request = new PrefixRequest(3, true);
+        request.setRetryPolicy(new DefaultRetryPolicy(1000, 100, 1f));
+        BasicNetwork httpNetwork = new BasicNetwork(new HttpStack() {
+            @Override
+            public HttpResponse performRequest(Request<?> r, Map<String, String> headers)
+                    throws IOException, AuthFailureError {
+                attempts[0]++;
+                // The first attempt uses up the time left.
+                request.setDeadline(SystemClock.elapsedRealtime() - 1);
+                throw new SocketTimeoutException();
+            }
+
+            @Override
+            public CookieStore getCookieStore() {
+                return null;
+            }
+        });
+
+        try {
+            httpNetwork.performRequest(request);
+            fail("Expected a TimeoutError");
+        } catch (TimeoutError expected) {
+        }
+        assertEquals(1, attempts[0]);
+    }
+
+    public void testBackoffRetriesServerErrorsLater() throws Exception {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        BasicHttpResponse fakeResponse = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1),
+                503, "Service Unavailable");
+        fakeResponse.setEntity(new StringEntity("down"));
+        mockHttpStack.setResponseToReturn(fakeResponse);
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        PrefixRequest request = new PrefixRequest(3, true);
+        request.setRetryPolicy(new BackoffRetryPolicy(1000, 1, 1f, 1000 * 1000, 1000 * 1000));
+
+        try {
+            httpNetwork.performRequest(request);
+            fail("Expected a RetryLaterError");
+        } catch (RetryLaterError expected) {
+            assertTrue(expected.getDelayMs() > 0);
+            assertTrue(expected.getCause() instanceof ServerError);
+        }
+
+        // Without a backoff policy, server errors are not retried.
+        request.setRetryPolicy(new DefaultRetryPolicy(1000, 1, 1f));
+        try {
+            httpNetwork.performRequest(request);
+            fail("Expected a ServerError");
+        } catch (ServerError expected) {
+        }
+    }
+
+    public void testRetryBudgetLimitsRetries() throws Exception {
+        final int[] attempts = new int[1];
+        BasicNetwork httpNetwork = new BasicNetwork(new HttpStack() {
+            @Override
+            public HttpResponse performRequest(Request<?> r, Map<String, String> headers)
+                    throws IOException, AuthFailureError {
+                attempts[0]++;
+                throw new SocketTimeoutException();
+            }
+
+            @Override
+            public CookieStore getCookieStore() {
+                return null;
+            }
+        });
+        httpNetwork.setRetryBudget(new RetryBudget(1, 0));
+        PrefixRequest request = new PrefixRequest(3, true);
+        request.setRetryPolicy(new DefaultRetryPolicy(1000, 5, 1f));
+
+        try {
+            httpNetwork.performRequest(request);
+            fail("Expected a TimeoutError");
+        } catch (TimeoutError expected) {
+        }
+        // The first attempt and the only retry of the budget.
+        assertEquals(2, attempts[0]);
+    }
+
+    public void testOpenCircuitFailsFast() throws Exception {
+        final int[] attempts = new int[1];
+        BasicNetwork httpNetwork = new BasicNetwork(new HttpStack() {
+            @Override
+            public HttpResponse performRequest(Request<?> r, Map<String, String> headers)
+                    throws IOException, AuthFailureError {
+                attempts[0]++;
+                throw new IOException("Connection refused");
+            }
+
+            @Override
+            public CookieStore getCookieStore() {
+                return null;
+            }
+        });
+        httpNetwork.setCircuitBreaker(new CircuitBreaker(0.5f, 2, 2, 60 * 1000));
+        for (int i = 0; i < 2; i++) {
+            try {
+                httpNetwork.performRequest(new PrefixRequest(3, true));
+                fail("Expected a NoConnectionError");
+            } catch (NoConnectionError expected) {
+                assertFalse(expected instanceof CircuitOpenError);
+            }
+        }
+
+        try {
+            httpNetwork.performRequest(new PrefixRequest(3, true));
+            fail("Expected a CircuitOpenError");
+        } catch (CircuitOpenError expected) {
+        }
+        assertEquals(2, attempts[0]);
+
+        // A request refreshing a cache entry fails too: the dispatcher decides whether the
+        // entry may be served stale.
+        PrefixRequest refresh = new PrefixRequest(3, true);
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = "stale".getBytes();
+        refresh.setCacheEntry(entry);
+        try {
+            httpNetwork.performRequest(refresh);
+            fail("Expected a CircuitOpenError");
+        } catch (CircuitOpenError expected) {
+        }
+        try {
+            httpNetwork.performStreamingRequest(refresh, null);
+            fail("Expected a CircuitOpenError");
+        } catch (CircuitOpenError expected) {
+        }
+        assertEquals(2, attempts[0]);
+    }
+
+    private static MockHttpStack newStackReturning(String body) throws Exception {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        BasicHttpResponse fakeResponse = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1),
+                200, "OK");
+        fakeResponse.setEntity(new StringEntity(body));
+        mockHttpStack.setResponseToReturn(fakeResponse);
+        return mockHttpStack;
+    }
+
+    /** Parses the first bytes of the body, or fails after reading them. */
+    private static class PrefixRequest extends StreamingRequest<String> {
+        private final int mLength;
+        private final boolean mSucceed;
+
+        public PrefixRequest(int length, boolean succeed) {
+            super(Request.Method.GET, "http://foo", null);
+            mLength = length;
+            mSucceed = succeed;
+        }
+
+        @Override
+        public Response<String> parseNetworkStream(NetworkResponse response, InputStream body)
+                throws IOException {
+            byte[] prefix = new byte[mLength];
+            int read = 0;
+            while (read < mLength) {
+                read += body.read(prefix, read, mLength - read);
+            }
+            if (!mSucceed) {
+                return Response.error(new ParseError());
+            }
+            Cache.Entry entry = new Cache.Entry();
+            entry.ttl = Long.MAX_VALUE;
+            entry.softTtl = Long.MAX_VALUE;
+            entry.responseHeaders = response.headers;
+            return Response.success(new String(prefix), entry);
+        }
+
+        @Override
+        protected void deliverResponse(String response) {
+        }
+    }
 }
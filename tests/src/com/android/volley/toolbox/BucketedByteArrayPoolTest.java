@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.volley.VolleyLog;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+public class BucketedByteArrayPoolTest extends AndroidTestCase {
+    public void testReusesBuffer() {
+        ByteArrayPool pool = new BucketedByteArrayPool(32);
+
+        byte[] buf1 = pool.getBuf(16);
+        byte[] buf2 = pool.getBuf(16);
+
+        pool.returnBuf(buf1);
+        pool.returnBuf(buf2);
+
+        byte[] buf3 = pool.getBuf(16);
+        byte[] buf4 = pool.getBuf(16);
+        assertTrue(buf3 == buf1 || buf3 == buf2);
+        assertTrue(buf4 == buf1 || buf4 == buf2);
+        assertTrue(buf3 != buf4);
+    }
+
+    public void testObeysSizeLimit() {
+        BucketedByteArrayPool pool = new BucketedByteArrayPool(32);
+
+        byte[] buf1 = pool.getBuf(16);
+        byte[] buf2 = pool.getBuf(16);
+        byte[] buf3 = pool.getBuf(16);
+
+        pool.returnBuf(buf1);
+        pool.returnBuf(buf2);
+        pool.returnBuf(buf3);
+        assertEquals(32, pool.getCurrentSize());
+
+        byte[] buf4 = pool.getBuf(16);
+        byte[] buf5 = pool.getBuf(16);
+        byte[] buf6 = pool.getBuf(16);
+
+        assertTrue(buf4 == buf2 || buf4 == buf3);
+        assertTrue(buf5 == buf2 || buf5 == buf3);
+        assertTrue(buf4 != buf5);
+        assertTrue(buf6 != buf1 && buf6 != buf2 && buf6 != buf3);
+        assertEquals(0, pool.getCurrentSize());
+    }
+
+    public void testIgnoresBuffersOverLimit() {
+        BucketedByteArrayPool pool = new BucketedByteArrayPool(32);
+
+        pool.returnBuf(new byte[64]);
+        pool.returnBuf(null);
+        assertEquals(0, pool.getCurrentSize());
+    }
+
+    public void testReturnsBufferWithRightSize() {
+        ByteArrayPool pool = new BucketedByteArrayPool(32);
+
+        byte[] buf1 = pool.getBuf(16);
+        pool.returnBuf(buf1);
+
+        byte[] buf2 = pool.getBuf(17);
+        assertNotSame(buf2, buf1);
+        assertTrue(buf2.length >= 17);
+
+        byte[] buf3 = pool.getBuf(15);
+        assertSame(buf3, buf1);
+    }
+
+    public void testServesFromLargerClass() {
+        ByteArrayPool pool = new BucketedByteArrayPool(1024);
+
+        // A buffer which is not a power of two serves requests up to its own length.
+        byte[] buf1 = new byte[100];
+        pool.returnBuf(buf1);
+        assertSame(buf1, pool.getBuf(64));
+
+        byte[] buf2 = pool.getBuf(256);
+        pool.returnBuf(buf2);
+        assertSame(buf2, pool.getBuf(10));
+    }
+
+    /**
+     * Runs the same get/return loop from 4, 8 and 16 threads against a {@link ByteArrayPool} and
+     * a {@link BucketedByteArrayPool} and logs the throughput of both.
+     */
+    @LargeTest
+    public void testContentionThroughput() throws Exception {
+        int operations = 20000;
+        int poolSize = 64 * 1024;
+        for (int threads : new int[] { 4, 8, 16 }) {
+            long locked = runContention(new ByteArrayPool(poolSize), threads, operations);
+            long bucketed = runContention(new BucketedByteArrayPool(poolSize), threads, operations);
+            VolleyLog.d("%d threads: ByteArrayPool: %d ops/s, BucketedByteArrayPool: %d ops/s",
+                    threads,
+                    threads * operations * 1000L / Math.max(1, locked),
+                    threads * operations * 1000L / Math.max(1, bucketed));
+        }
+    }
+
+    /**
+     * Gets and returns buffers of the sizes BasicNetwork asks for from several threads.
+     * @return The time spent, in milliseconds.
+     */
+    private long runContention(final ByteArrayPool pool, int threads, final int operations)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final int[] sizes = { 256, 1024, 2048, 4096 };
+
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        start.await();
+                        for (int i = 0; i < operations; i++) {
+                            int len = sizes[random.nextInt(sizes.length)];
+                            byte[] buf = pool.getBuf(len);
+                            assertTrue(buf.length >= len);
+                            buf[len - 1] = (byte) i;
+                            pool.returnBuf(buf);
+                        }
+                    } catch (InterruptedException ignored) {
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        start.countDown();
+        done.await();
+        return SystemClock.elapsedRealtime() - startTime;
+    }
+}
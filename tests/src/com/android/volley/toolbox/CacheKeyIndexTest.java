@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+@SmallTest
+public class CacheKeyIndexTest extends TestCase {
+
+    private static final List<String> KEYS = Arrays.asList(
+            "http://api.example.com/users/1",
+            "http://api.example.com/users/12/friends",
+            "http://api.example.com/superusers/3",
+            "http://api.example.com/feed?user=1&page=2",
+            "http://cdn.example.com/users.json");
+
+    private CacheKeyIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = new CacheKeyIndex();
+        for (String key : KEYS) {
+            mIndex.add(key);
+        }
+    }
+
+    public void testMatchesLikeContains() {
+        String[] criteria = {
+                "/users/", "/users/1", "users", "user=", "page=2", "/feed?", "api.example",
+                "/users/12/", ".json", "s/1", "/", "", "missing", "/missing/"
+        };
+        for (String criterion : criteria) {
+            assertEquals(criterion, containing(criterion),
+                    mIndex.findKeysContaining(new String[] { criterion }, KEYS));
+        }
+    }
+
+    public void testSeveralCriteria() {
+        Set<String> expected = containing("/users/");
+        expected.addAll(containing("page="));
+        assertEquals(expected,
+                mIndex.findKeysContaining(new String[] { "/users/", "page=" }, KEYS));
+    }
+
+    public void testLooksUpDelimitedSegments() {
+        // Without the list of keys to scan, the keys can only be found through the index.
+        List<String> none = Collections.emptyList();
+        assertEquals(containing("/users/"),
+                mIndex.findKeysContaining(new String[] { "/users/" }, none));
+        assertEquals(containing("/users/1"),
+                mIndex.findKeysContaining(new String[] { "/users/1" }, none));
+    }
+
+    public void testRemove() {
+        mIndex.remove("http://api.example.com/users/1");
+        List<String> keys = new ArrayList<String>(KEYS);
+        keys.remove("http://api.example.com/users/1");
+
+        assertEquals(Collections.singleton("http://api.example.com/users/12/friends"),
+                mIndex.findKeysContaining(new String[] { "/users/" }, keys));
+
+        mIndex.clear();
+        assertTrue(mIndex.findKeysContaining(new String[] { "/users/" }, keys).isEmpty());
+    }
+
+    private static Set<String> containing(String criterion) {
+        Set<String> keys = new HashSet<String>();
+        for (String key : KEYS) {
+            if (key.contains(criterion)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+}
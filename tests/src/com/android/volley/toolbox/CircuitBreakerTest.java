@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.volley.toolbox.CircuitBreaker.State;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class CircuitBreakerTest extends TestCase {
+    private static final long OPEN_DURATION_MS = 50;
+
+    private CircuitBreaker mBreaker;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBreaker = new CircuitBreaker(0.5f, 10, 4, OPEN_DURATION_MS);
+    }
+
+    public void testOpensAtFailureRate() {
+        mBreaker.onSuccess("host");
+        mBreaker.onFailure("host");
+        mBreaker.onSuccess("host");
+        assertEquals(State.CLOSED, mBreaker.getState("host"));
+        mBreaker.onFailure("host");
+
+        // 2 failures out of 4 requests.
+        assertEquals(State.OPEN, mBreaker.getState("host"));
+        assertFalse(mBreaker.allowRequest("host"));
+        assertTrue(mBreaker.allowRequest("other"));
+    }
+
+    public void testNeedsMinimumRequests() {
+        for (int i = 0; i < 3; i++) {
+            mBreaker.onFailure("host");
+        }
+        assertEquals(State.CLOSED, mBreaker.getState("host"));
+        assertTrue(mBreaker.allowRequest("host"));
+    }
+
+    public void testOldOutcomesLeaveTheWindow() {
+        for (int i = 0; i < 10; i++) {
+            mBreaker.onSuccess("host");
+        }
+        // 4 failures out of the last 10 requests.
+        for (int i = 0; i < 4; i++) {
+            mBreaker.onFailure("host");
+        }
+        assertEquals(State.CLOSED, mBreaker.getState("host"));
+        mBreaker.onFailure("host");
+        assertEquals(State.OPEN, mBreaker.getState("host"));
+    }
+
+    public void testHalfOpenProbeCloses() throws Exception {
+        open("host");
+        Thread.sleep(OPEN_DURATION_MS + 10);
+
+        assertTrue(mBreaker.allowRequest("host"));
+        assertEquals(State.HALF_OPEN, mBreaker.getState("host"));
+        // A single probe at a time.
+        assertFalse(mBreaker.allowRequest("host"));
+
+        mBreaker.onSuccess("host");
+        assertEquals(State.CLOSED, mBreaker.getState("host"));
+        assertTrue(mBreaker.allowRequest("host"));
+    }
+
+    public void testHalfOpenProbeFailureReopens() throws Exception {
+        open("host");
+        Thread.sleep(OPEN_DURATION_MS + 10);
+
+        assertTrue(mBreaker.allowRequest("host"));
+        mBreaker.onFailure("host");
+        assertEquals(State.OPEN, mBreaker.getState("host"));
+        assertFalse(mBreaker.allowRequest("host"));
+    }
+
+    private void open(String host) {
+        for (int i = 0; i < 4; i++) {
+            mBreaker.onFailure(host);
+        }
+        assertEquals(State.OPEN, mBreaker.getState(host));
+    }
+}
@@ -19,12 +19,19 @@ package com.android.volley.toolbox;
 import android.test.AndroidTestCase;
 
 import com.android.volley.Cache;
+import com.android.volley.StreamingCache;
 import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+import com.android.volley.utils.CacheTestUtils;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Random;
 
 public class DiskBasedCacheTest extends AndroidTestCase {
 
@@ -38,6 +45,7 @@ public class DiskBasedCacheTest extends AndroidTestCase {
         e.etag = "etag";
         e.responseHeaders = new HashMap<String, String>();
         e.responseHeaders.put("fruit", "banana");
+        e.tags = new HashSet<String>(Arrays.asList("user:42", "feed"));
 
         CacheHeader first = new CacheHeader("my-magical-key", e);
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -51,6 +59,33 @@ public class DiskBasedCacheTest extends AndroidTestCase {
         assertEquals(first.softTtl, second.softTtl);
         assertEquals(first.etag, second.etag);
         assertEquals(first.responseHeaders, second.responseHeaders);
+        assertEquals(first.tags, second.tags);
+    }
+
+    public void testSnapshotStoredAfterData() throws Exception {
+        File root = new File(getContext().getCacheDir(), "snapshot-cache-test");
+        deleteDirectory(root);
+        try {
+            DiskBasedCache cache = new DiskBasedCache(root, 1024 * 1024);
+            cache.initialize();
+            Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null);
+            entry.snapshot = new byte[] { 1, 2, 3 };
+            entry.snapshotVersion = "v1";
+            cache.put("with-snapshot", entry);
+            cache.put("without-snapshot", CacheTestUtils.makeRandomCacheEntry(null));
+
+            DiskBasedCache reloaded = new DiskBasedCache(root, 1024 * 1024);
+            reloaded.initialize();
+            Cache.Entry read = reloaded.get("with-snapshot");
+            assertTrue(Arrays.equals(entry.data, read.data));
+            assertTrue(Arrays.equals(entry.snapshot, read.snapshot));
+            assertEquals("v1", read.snapshotVersion);
+            read = reloaded.get("without-snapshot");
+            assertNull(read.snapshot);
+            assertNull(read.snapshotVersion);
+        } finally {
+            deleteDirectory(root);
+        }
     }
 
     public void testSerializeInt() throws Exception {
@@ -120,4 +155,328 @@ public class DiskBasedCacheTest extends AndroidTestCase {
         assertEquals(DiskBasedCache.readStringStringMap(bais), emptyKey);
         assertEquals(DiskBasedCache.readStringStringMap(bais), emptyValue);
     }
+
+    public void testLazyInitializationUsesManifest() throws Exception {
+        File root = new File(getContext().getCacheDir(), "lazy-cache-test");
+        deleteDirectory(root);
+        try {
+            DiskBasedCache cache = new DiskBasedCache(root, 1024 * 1024, true);
+            cache.initialize();
+            Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null);
+            cache.put("first", entry);
+            cache.put("second", CacheTestUtils.makeRandomCacheEntry(null));
+            cache.awaitScan();
+
+            // The next instance writes its manifest once its scan completes.
+            DiskBasedCache scanned = new DiskBasedCache(root, 1024 * 1024, true);
+            scanned.initialize();
+            scanned.awaitScan();
+            assertTrue(new File(root, DiskBasedCache.MANIFEST_FILE_NAME).exists());
+            scanned.remove("second");
+
+            DiskBasedCache reloaded = new DiskBasedCache(root, 1024 * 1024, true);
+            reloaded.initialize();
+            Cache.Entry read = reloaded.get("first");
+            assertNotNull(read);
+            assertTrue(Arrays.equals(entry.data, read.data));
+            assertEquals(entry.etag, read.etag);
+            assertEquals(entry.ttl, read.ttl);
+            assertNull(reloaded.get("second"));
+            reloaded.awaitScan();
+            assertNull(reloaded.get("second"));
+            assertNotNull(reloaded.get("first"));
+            cache.awaitManifestWrite();
+            scanned.awaitManifestWrite();
+            reloaded.awaitManifestWrite();
+        } finally {
+            deleteDirectory(root);
+        }
+    }
+
+    public void testLazyInitializationFindsFilesMissingFromManifest() throws Exception {
+        File root = new File(getContext().getCacheDir(), "lazy-cache-test");
+        deleteDirectory(root);
+        try {
+            DiskBasedCache eager = new DiskBasedCache(root, 1024 * 1024);
+            eager.initialize();
+            Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null);
+            eager.put("unlisted", entry);
+
+            DiskBasedCache lazy = new DiskBasedCache(root, 1024 * 1024, true);
+            lazy.initialize();
+            Cache.Entry read = lazy.get("unlisted");
+            assertNotNull(read);
+            assertTrue(Arrays.equals(entry.data, read.data));
+            lazy.awaitScan();
+            assertNotNull(lazy.get("unlisted"));
+            assertNull(lazy.get("missing"));
+            lazy.awaitManifestWrite();
+        } finally {
+            deleteDirectory(root);
+        }
+    }
+
+    public void testInitializeDeletesTempFiles() throws Exception {
+        File root = new File(getContext().getCacheDir(), "temp-cache-test");
+        deleteDirectory(root);
+        try {
+            root.mkdirs();
+            File eagerTemp = new File(root, "eager.tmp");
+            new FileOutputStream(eagerTemp).close();
+            DiskBasedCache eager = new DiskBasedCache(root, 1024 * 1024);
+            eager.initialize();
+            assertFalse(eagerTemp.exists());
+
+            File lazyTemp = new File(root, "lazy.tmp");
+            new FileOutputStream(lazyTemp).close();
+            DiskBasedCache lazy = new DiskBasedCache(root, 1024 * 1024, true);
+            lazy.initialize();
+            assertFalse(lazyTemp.exists());
+            lazy.awaitScan();
+        } finally {
+            deleteDirectory(root);
+        }
+    }
+
+    public void testLazyInitializationRereadsOverwrittenEntries() throws Exception {
+        File root = new File(getContext().getCacheDir(), "overwrite-cache-test");
+        deleteDirectory(root);
+        try {
+            DiskBasedCache cache = new DiskBasedCache(root, 1024 * 1024, true);
+            cache.initialize();
+            cache.awaitScan();
+            Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(new byte[1024]);
+            entry.tags = new HashSet<String>(Arrays.asList("old"));
+            cache.put("feed", entry);
+            // The change is written to the manifest shortly after.
+            cache.awaitManifestWrite();
+            File manifest = new File(root, DiskBasedCache.MANIFEST_FILE_NAME);
+            long emptyManifestLength = 8;
+            assertTrue(manifest.length() > emptyManifestLength);
+
+            // Overwritten without updating the manifest.
+            DiskBasedCache eager = new DiskBasedCache(root, 1024 * 1024);
+            eager.initialize();
+            Cache.Entry overwrite = CacheTestUtils.makeRandomCacheEntry(new byte[8 * 1024]);
+            overwrite.tags = new HashSet<String>(Arrays.asList("new"));
+            eager.put("feed", overwrite);
+
+            DiskBasedCache reloaded = new DiskBasedCache(root, 1024 * 1024, true);
+            reloaded.setTagBudget("new", 64 * 1024);
+            reloaded.initialize();
+            reloaded.awaitScan();
+            assertEquals(reloaded.getFileForKey("feed").length(), reloaded.getBudgetSize("new"));
+            assertEquals(0, reloaded.getBudgetSize(null));
+            reloaded.invalidateTags(true, "old");
+            assertFalse(reloaded.get("feed").isExpired());
+            reloaded.invalidateTags(false, "new");
+            assertTrue(reloaded.get("feed").refreshNeeded());
+            reloaded.awaitManifestWrite();
+        } finally {
+            deleteDirectory(root);
+        }
+    }
+
+    public void testRemoveByCriteriaDeletesFiles() throws Exception {
+        File root = new File(getContext().getCacheDir(), "criteria-cache-test");
+        deleteDirectory(root);
+        try {
+            DiskBasedCache cache = new DiskBasedCache(root, 1024 * 1024);
+            cache.initialize();
+            cache.put("http://host/users/1", CacheTestUtils.makeRandomCacheEntry(null));
+            cache.put("http://host/users/2?full=1", CacheTestUtils.makeRandomCacheEntry(null));
+            cache.put("http://host/superusers/3", CacheTestUtils.makeRandomCacheEntry(null));
+            cache.put("http://host/feed?user=1", CacheTestUtils.makeRandomCacheEntry(null));
+
+            cache.removeByCriteria("/users/", "user=");
+            assertNull(cache.get("http://host/users/1"));
+            assertNull(cache.get("http://host/users/2?full=1"));
+            assertNull(cache.get("http://host/feed?user=1"));
+            assertFalse(cache.getFileForKey("http://host/users/1").exists());
+            assertNotNull(cache.get("http://host/superusers/3"));
+
+            // Criteria without delimited segments are matched anywhere.
+            cache.removeByCriteria("perus");
+            assertNull(cache.get("http://host/superusers/3"));
+            assertFalse(cache.getFileForKey("http://host/superusers/3").exists());
+        } finally {
+            deleteDirectory(root);
+        }
+    }
+
+    public void testInvalidateTags() throws Exception {
+        File root = new File(getContext().getCacheDir(), "tags-cache-test");
+        deleteDirectory(root);
+        try {
+            DiskBasedCache cache = new DiskBasedCache(root, 1024 * 1024);
+            cache.initialize();
+            Cache.Entry profile = CacheTestUtils.makeRandomCacheEntry(null);
+            profile.tags = new HashSet<String>(Arrays.asList("user:42"));
+            cache.put("profile", profile);
+            Cache.Entry feed = CacheTestUtils.makeRandomCacheEntry(null);
+            feed.tags = new HashSet<String>(Arrays.asList("user:42", "feed"));
+            cache.put("feed", feed);
+            cache.put("other", CacheTestUtils.makeRandomCacheEntry(null));
+
+            cache.invalidateTags(false, "feed");
+            Cache.Entry read = cache.get("feed");
+            assertTrue(read.refreshNeeded());
+            assertFalse(read.isExpired());
+            assertTrue(Arrays.equals(feed.data, read.data));
+            assertFalse(cache.get("profile").refreshNeeded());
+
+            cache.invalidateTags(true, "user:42");
+            assertTrue(cache.get("profile").isExpired());
+            assertTrue(cache.get("feed").isExpired());
+            assertFalse(cache.get("other").isExpired());
+
+            // The TTLs were written to the files, and the tags are indexed again on startup.
+            DiskBasedCache reloaded = new DiskBasedCache(root, 1024 * 1024);
+            reloaded.initialize();
+            assertTrue(reloaded.get("profile").isExpired());
+            assertEquals(feed.tags, reloaded.get("feed").tags);
+            Cache.Entry other = CacheTestUtils.makeRandomCacheEntry(null);
+            other.tags = new HashSet<String>(Arrays.asList("feed"));
+            reloaded.put("other", other);
+            reloaded.invalidateTags(true, "feed");
+            assertTrue(reloaded.get("other").isExpired());
+        } finally {
+            deleteDirectory(root);
+        }
+    }
+
+    public void testLazyInitializationIndexesTags() throws Exception {
+        File root = new File(getContext().getCacheDir(), "tags-cache-test");
+        deleteDirectory(root);
+        try {
+            DiskBasedCache cache = new DiskBasedCache(root, 1024 * 1024, true);
+            cache.initialize();
+            Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null);
+            entry.tags = new HashSet<String>(Arrays.asList("feed"));
+            cache.put("feed", entry);
+            cache.awaitScan();
+            DiskBasedCache scanned = new DiskBasedCache(root, 1024 * 1024, true);
+            scanned.initialize();
+            scanned.awaitScan();
+
+            // The tags come from the manifest, before the files are scanned.
+            DiskBasedCache reloaded = new DiskBasedCache(root, 1024 * 1024, true);
+            reloaded.initialize();
+            reloaded.invalidateTags(false, "feed");
+            assertTrue(reloaded.get("feed").refreshNeeded());
+            reloaded.awaitScan();
+            cache.awaitManifestWrite();
+            scanned.awaitManifestWrite();
+            reloaded.awaitManifestWrite();
+        } finally {
+            deleteDirectory(root);
+        }
+    }
+
+    public void testTagBudgetPrunesSeparately() throws Exception {
+        File root = new File(getContext().getCacheDir(), "budget-cache-test");
+        deleteDirectory(root);
+        try {
+            DiskBasedCache cache = new DiskBasedCache(root, 64 * 1024);
+            cache.setTagBudget("image", 16 * 1024);
+            cache.initialize();
+            for (int i = 0; i < 4; i++) {
+                cache.put("api-" + i, CacheTestUtils.makeRandomCacheEntry(new byte[4 * 1024]));
+            }
+            // Many more images than their budget: they only evict each other.
+            for (int i = 0; i < 20; i++) {
+                Cache.Entry image = CacheTestUtils.makeRandomCacheEntry(new byte[4 * 1024]);
+                image.tags = new HashSet<String>(Arrays.asList("image"));
+                cache.put("image-" + i, image);
+            }
+            for (int i = 0; i < 4; i++) {
+                assertNotNull(cache.get("api-" + i));
+            }
+            assertNull(cache.get("image-0"));
+            assertNotNull(cache.get("image-19"));
+
+            // And the other entries only evict each other.
+            for (int i = 4; i < 40; i++) {
+                cache.put("api-" + i, CacheTestUtils.makeRandomCacheEntry(new byte[4 * 1024]));
+            }
+            assertNull(cache.get("api-0"));
+            assertNotNull(cache.get("image-19"));
+        } finally {
+            deleteDirectory(root);
+        }
+    }
+
+    public void testTagBudgetsRecountedOnEachChange() throws Exception {
+        File root = new File(getContext().getCacheDir(), "budget-recount-cache-test");
+        deleteDirectory(root);
+        try {
+            DiskBasedCache cache = new DiskBasedCache(root, 256 * 1024);
+            cache.setTagBudget("image", 32 * 1024);
+            cache.initialize();
+            for (int i = 0; i < 3; i++) {
+                Cache.Entry image = CacheTestUtils.makeRandomCacheEntry(new byte[4 * 1024]);
+                image.tags = new HashSet<String>(Arrays.asList("image"));
+                cache.put("image-" + i, image);
+            }
+            // Adding other budgets must not count the images again.
+            cache.setTagBudget("thumbnail", 32 * 1024);
+            cache.setTagBudget("avatar", 32 * 1024);
+            Cache.Entry image = CacheTestUtils.makeRandomCacheEntry(new byte[4 * 1024]);
+            image.tags = new HashSet<String>(Arrays.asList("image"));
+            cache.put("image-3", image);
+            for (int i = 0; i < 4; i++) {
+                assertNotNull(cache.get("image-" + i));
+            }
+        } finally {
+            deleteDirectory(root);
+        }
+    }
+
+    public void testEditorCommitsEntry() throws Exception {
+        File root = new File(getContext().getCacheDir(), "editor-cache-test");
+        deleteDirectory(root);
+        try {
+            DiskBasedCache cache = new DiskBasedCache(root, 1024 * 1024);
+            cache.initialize();
+            byte[] data = new byte[10 * 1024];
+            new Random(42).nextBytes(data);
+            Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null);
+            entry.snapshot = new byte[] { 1, 2, 3 };
+            entry.snapshotVersion = "v1";
+            StreamingCache.Editor editor = cache.edit("streamed");
+            editor.getOutputStream().write(data);
+            editor.commit(entry);
+
+            // Headers larger than the reserved space are written to a new file.
+            Cache.Entry large = CacheTestUtils.makeRandomCacheEntry(null);
+            large.responseHeaders = new HashMap<String, String>();
+            large.responseHeaders.put("padding", new String(new char[8 * 1024]));
+            editor = cache.edit("large-header");
+            editor.getOutputStream().write(data);
+            editor.commit(large);
+
+            assertEquals(2, root.listFiles().length);
+            DiskBasedCache reloaded = new DiskBasedCache(root, 1024 * 1024);
+            reloaded.initialize();
+            Cache.Entry read = reloaded.get("streamed");
+            assertTrue(Arrays.equals(data, read.data));
+            assertTrue(Arrays.equals(entry.snapshot, read.snapshot));
+            assertEquals("v1", read.snapshotVersion);
+            read = reloaded.get("large-header");
+            assertTrue(Arrays.equals(data, read.data));
+            assertEquals(large.responseHeaders, read.responseHeaders);
+        } finally {
+            deleteDirectory(root);
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
 }
@@ -156,6 +156,70 @@ public class HttpHeaderParserTest extends TestCase {
         assertEquals(entry.softTtl, entry.ttl);
     }
 
+    public void testParseCacheHeaders_staleWhileRevalidate() {
+        long now = System.currentTimeMillis();
+        headers.put("Date", rfc1123Date(now));
+        headers.put("Cache-Control", "max-age=60, stale-while-revalidate=3540");
+
+        Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(response);
+
+        assertEqualsWithin(now + ONE_MINUTE_MILLIS, entry.softTtl, ONE_MINUTE_MILLIS / 10);
+        assertEqualsWithin(now + ONE_HOUR_MILLIS, entry.ttl, ONE_MINUTE_MILLIS / 10);
+    }
+
+    public void testParseCacheHeaders_mustRevalidateDisablesStale() {
+        headers.put("Cache-Control", "max-age=60, stale-while-revalidate=3540, must-revalidate");
+
+        Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(response);
+
+        assertEquals(entry.softTtl, entry.ttl);
+    }
+
+    public void testParseCacheHeaders_ageCorrection() {
+        long now = System.currentTimeMillis();
+        headers.put("Cache-Control", "max-age=3600");
+        headers.put("Age", "3000");
+
+        Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(response);
+
+        assertEqualsWithin(now + 10 * ONE_MINUTE_MILLIS, entry.softTtl, ONE_MINUTE_MILLIS / 10);
+        assertEquals(entry.softTtl, entry.ttl);
+    }
+
+    public void testParseCacheHeaders_varyStar() {
+        headers.put("Cache-Control", "max-age=3600");
+        headers.put("Vary", "*");
+
+        assertNull(HttpHeaderParser.parseCacheHeaders(response));
+    }
+
+    public void testVaryKey() {
+        Map<String, String> requestHeaders = new HashMap<String, String>();
+        requestHeaders.put("accept-language", "fr");
+        assertNull(HttpHeaderParser.getVaryKey(headers, requestHeaders));
+        assertTrue(HttpHeaderParser.matchesVary(headers, requestHeaders));
+
+        headers.put("Vary", "Accept-Language, Accept-Encoding");
+        headers.put(HttpHeaderParser.HEADER_VARY_KEY,
+                HttpHeaderParser.getVaryKey(headers, requestHeaders));
+        assertTrue(HttpHeaderParser.matchesVary(headers, requestHeaders));
+
+        requestHeaders.put("accept-language", "en");
+        assertFalse(HttpHeaderParser.matchesVary(headers, requestHeaders));
+        assertFalse(HttpHeaderParser.matchesVary(headers, null));
+    }
+
+    public void testParseStaleIfError() {
+        assertEquals(0, HttpHeaderParser.parseStaleIfError(headers));
+        assertEquals(0, HttpHeaderParser.parseStaleIfError(null));
+
+        headers.put("Cache-Control", "max-age=60, stale-if-error=86400");
+        assertEquals(86400, HttpHeaderParser.parseStaleIfError(headers));
+
+        headers.put("Cache-Control", "stale-if-error=bogus");
+        assertEquals(0, HttpHeaderParser.parseStaleIfError(headers));
+    }
+
     private void assertEqualsWithin(long expected, long value, long fudgeFactor) {
         long diff = Math.abs(expected - value);
         assertTrue(diff < fudgeFactor);
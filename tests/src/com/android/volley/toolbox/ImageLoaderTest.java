@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.ImageLoader.ImageContainer;
+import com.android.volley.toolbox.ImageLoader.ImageListener;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+@SmallTest
+public class ImageLoaderTest extends InstrumentationTestCase {
+    private static final String URL = "http://foo/image.png";
+
+    private RecordingQueue mQueue;
+    private MemoryCache mMemoryCache;
+    private FakeDiskCache mDiskCache;
+    private ManualExecutor mDiskExecutor;
+    private ImageLoader mLoader;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mQueue = new RecordingQueue();
+        mMemoryCache = new MemoryCache();
+        mDiskCache = new FakeDiskCache();
+        mDiskExecutor = new ManualExecutor();
+        mLoader = new ImageLoader(mQueue, mMemoryCache, mDiskCache, mDiskExecutor);
+        mLoader.setBatchedResponseDelay(0);
+    }
+
+    public void testDiskTierStoresOnlyParsedImages() throws Exception {
+        get(URL, new RecordingListener(), 0, 0);
+        get("http://foo/broken.png", new RecordingListener(), 0, 0);
+        runDiskLookups();
+        assertEquals(2, mQueue.mAdded.size());
+
+        byte[] png = encodePng(100, 50);
+        parse(mQueue.mAdded.get(0), png);
+        Response<Bitmap> broken = parse(mQueue.mAdded.get(1), new byte[] { 1, 2, 3 });
+
+        assertFalse(broken.isSuccess());
+        assertEquals(1, mDiskCache.mEncoded.size());
+        assertTrue(Arrays.equals(png, mDiskCache.mEncoded.get(URL)));
+    }
+
+    public void testDiskTierSkipsRequestQueueCache() throws Exception {
+        get(URL, new RecordingListener(), 0, 0);
+        runDiskLookups();
+        assertEquals(1, mQueue.mAdded.size());
+        assertFalse(mQueue.mAdded.get(0).shouldCache());
+
+        // Without a disk tier the image goes to the cache of the queue as before.
+        mLoader = new ImageLoader(mQueue, new MemoryCache());
+        get("http://foo/other.png", new RecordingListener(), 0, 0);
+        assertEquals(2, mQueue.mAdded.size());
+        assertTrue(mQueue.mAdded.get(1).shouldCache());
+    }
+
+    public void testSizedDiskHitDecodedLikeNetworkResponse() throws Exception {
+        byte[] png = encodePng(100, 50);
+        mDiskCache.mEncoded.put(URL, png);
+
+        RecordingListener listener = new RecordingListener();
+        get(URL, listener, 20, 0);
+        runDiskLookups();
+
+        assertEquals(0, mQueue.mAdded.size());
+        assertEquals(Arrays.asList(URL + " 20x0"), mDiskCache.mLookups);
+        Bitmap fromNetwork = new ImageRequest(URL, null, 20, 0, Config.ARGB_8888, null, null)
+                .parseNetworkResponse(new NetworkResponse(png)).result;
+        assertEquals(1, listener.mResponses);
+        assertEquals(fromNetwork.getWidth(), listener.mBitmap.getWidth());
+        assertEquals(fromNetwork.getHeight(), listener.mBitmap.getHeight());
+        assertEquals(20, listener.mBitmap.getWidth());
+        assertEquals(10, listener.mBitmap.getHeight());
+    }
+
+    public void testDiskHitDeliveredThroughBatch() throws Exception {
+        mLoader.setBatchedResponseDelay(200);
+        mDiskCache.mEncoded.put(URL, encodePng(10, 10));
+        mDiskCache.mEncoded.put("http://foo/other.png", encodePng(10, 10));
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        get(URL, first, 0, 0);
+        get("http://foo/other.png", second, 0, 0);
+        assertEquals(2, runDiskLookups());
+
+        // Both hits wait for the same batch.
+        assertEquals(0, first.mResponses);
+        assertEquals(0, second.mResponses);
+        Thread.sleep(400);
+        getInstrumentation().waitForIdleSync();
+        assertEquals(1, first.mResponses);
+        assertEquals(1, second.mResponses);
+        assertNotNull(first.mBitmap);
+        assertEquals(0, mQueue.mAdded.size());
+        assertEquals(2, mMemoryCache.mBitmaps.size());
+    }
+
+    public void testDiskMissSendsOneRequest() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        get(URL, listener, 0, 0);
+        assertEquals(0, mQueue.mAdded.size());
+        assertEquals(1, runDiskLookups());
+        assertEquals(0, runDiskLookups());
+        assertEquals(1, mQueue.mAdded.size());
+        assertEquals(1, mDiskCache.mLookups.size());
+
+        deliver(mQueue.mAdded.get(0), Bitmap.createBitmap(10, 10, Config.ARGB_8888));
+        assertEquals(1, listener.mResponses);
+        assertEquals(0, listener.mErrors);
+        assertEquals(1, mQueue.mAdded.size());
+    }
+
+    public void testIdenticalGetsCoalesceOnLookup() throws Exception {
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        get(URL, first, 0, 0);
+        get(URL, second, 0, 0);
+        assertEquals(1, runDiskLookups());
+        assertEquals(1, mQueue.mAdded.size());
+
+        // A get() while the request is in flight joins it too.
+        RecordingListener third = new RecordingListener();
+        get(URL, third, 0, 0);
+        assertEquals(0, runDiskLookups());
+        deliver(mQueue.mAdded.get(0), Bitmap.createBitmap(10, 10, Config.ARGB_8888));
+        assertEquals(1, first.mResponses);
+        assertEquals(1, second.mResponses);
+        assertEquals(1, third.mResponses);
+        assertEquals(1, mQueue.mAdded.size());
+    }
+
+    public void testCancelBeforeLookupSkipsIt() throws Exception {
+        mDiskCache.mEncoded.put(URL, encodePng(10, 10));
+        RecordingListener listener = new RecordingListener();
+        cancel(get(URL, listener, 0, 0));
+        runDiskLookups();
+
+        assertEquals(0, mDiskCache.mLookups.size());
+        assertEquals(0, listener.mResponses);
+        assertEquals(0, mQueue.mAdded.size());
+
+        // The next get() looks the image up again.
+        get(URL, listener, 0, 0);
+        assertEquals(1, runDiskLookups());
+        assertEquals(1, listener.mResponses);
+    }
+
+    public void testCancelDuringLookupNeitherDeliversNorSends() throws Exception {
+        // A hit is not delivered.
+        mDiskCache.mEncoded.put(URL, encodePng(10, 10));
+        RecordingListener hitListener = new RecordingListener();
+        cancelDuringLookup(get(URL, hitListener, 0, 0));
+        assertEquals(1, runDiskLookups());
+        assertEquals(1, mDiskCache.mLookups.size());
+        assertEquals(0, hitListener.mResponses);
+        assertEquals(0, mMemoryCache.mBitmaps.size());
+
+        // A miss is not sent to the network.
+        RecordingListener missListener = new RecordingListener();
+        cancelDuringLookup(get("http://foo/missing.png", missListener, 0, 0));
+        assertEquals(1, runDiskLookups());
+        assertEquals(2, mDiskCache.mLookups.size());
+        assertEquals(0, missListener.mResponses);
+        assertEquals(0, mQueue.mAdded.size());
+    }
+
+    private void cancelDuringLookup(final ImageContainer container) {
+        mDiskCache.mDuringLookup = new Runnable() {
+            @Override
+            public void run() {
+                cancel(container);
+            }
+        };
+    }
+
+    /**
+     * Calls get() on the main thread, as required.
+     */
+    private ImageContainer get(final String url, final ImageListener listener,
+            final int maxWidth, final int maxHeight) {
+        final ImageContainer[] container = new ImageContainer[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                container[0] = mLoader.get(url, listener, maxWidth, maxHeight);
+            }
+        });
+        return container[0];
+    }
+
+    private void cancel(final ImageContainer container) {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                container.cancelRequest();
+            }
+        });
+    }
+
+    /**
+     * Delivers a network response to the listener of the request, on the main thread.
+     */
+    private void deliver(final Request<?> request, final Bitmap bitmap) {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                ((ImageRequest) request).deliverResponse(bitmap);
+            }
+        });
+        getInstrumentation().waitForIdleSync();
+    }
+
+    /**
+     * Runs the pending disk lookups, then what they posted to the main thread.
+     * @return The number of lookups run
+     */
+    private int runDiskLookups() {
+        int count = mDiskExecutor.runAll();
+        getInstrumentation().waitForIdleSync();
+        return count;
+    }
+
+    private static Response<Bitmap> parse(Request<?> request, byte[] data) {
+        return ((ImageRequest) request).parseNetworkResponse(new NetworkResponse(data));
+    }
+
+    private static byte[] encodePng(int width, int height) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, bytes);
+        return bytes.toByteArray();
+    }
+
+    /** Records the requests instead of sending them. */
+    private static class RecordingQueue extends RequestQueue {
+        private final List<Request<?>> mAdded = new ArrayList<Request<?>>();
+
+        public RecordingQueue() {
+            super(new NoCache(), new BasicNetwork(new HurlStack()), 1);
+        }
+
+        @Override
+        public <T> Request<T> add(Request<T> request) {
+            mAdded.add(request);
+            return request;
+        }
+    }
+
+    private static class MemoryCache implements ImageLoader.ImageCache {
+        private final Map<String, Bitmap> mBitmaps = new HashMap<String, Bitmap>();
+
+        @Override
+        public Bitmap getBitmap(String url) {
+            return mBitmaps.get(url);
+        }
+
+        @Override
+        public void putBitmap(String url, Bitmap bitmap) {
+            mBitmaps.put(url, bitmap);
+        }
+    }
+
+    /** Keeps the encoded images in memory and decodes them like a disk tier would. */
+    private static class FakeDiskCache implements ImageLoader.ImageDiskCache {
+        private final Map<String, byte[]> mEncoded = new HashMap<String, byte[]>();
+        private final List<String> mLookups = new ArrayList<String>();
+
+        /** Run while looking up, or null. */
+        private Runnable mDuringLookup;
+
+        @Override
+        public synchronized Bitmap getBitmap(String url, int maxWidth, int maxHeight) {
+            mLookups.add(url + " " + maxWidth + "x" + maxHeight);
+            if (mDuringLookup != null) {
+                mDuringLookup.run();
+            }
+            byte[] data = mEncoded.get(url);
+            if (data == null) {
+                return null;
+            }
+            return ImageRequest.decodeBitmap(data, Config.ARGB_8888, maxWidth, maxHeight);
+        }
+
+        @Override
+        public synchronized void putEncoded(String url, byte[] data) {
+            mEncoded.put(url, data);
+        }
+    }
+
+    /** Runs the tasks only when asked to, on the calling thread. */
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> mTasks = new ArrayList<Runnable>();
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            mTasks.add(task);
+        }
+
+        /**
+         * @return The number of tasks run
+         */
+        public int runAll() {
+            List<Runnable> tasks;
+            synchronized (this) {
+                tasks = new ArrayList<Runnable>(mTasks);
+                mTasks.clear();
+            }
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            return tasks.size();
+        }
+    }
+
+    private static class RecordingListener implements ImageListener {
+        /** Number of responses delivered after get() returned. */
+        private int mResponses;
+        private int mErrors;
+        private Bitmap mBitmap;
+
+        @Override
+        public void onResponse(ImageContainer response, boolean isImmediate) {
+            if (!isImmediate) {
+                mResponses++;
+                mBitmap = response.getBitmap();
+            }
+        }
+
+        @Override
+        public void onErrorResponse(VolleyError error) {
+            mErrors++;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.test.AndroidTestCase;
+
+import com.android.volley.Cache;
+import com.android.volley.utils.CacheTestUtils;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class MappedJournalCacheTest extends AndroidTestCase {
+
+    private static final int SEGMENT_SIZE = 16 * 1024;
+
+    private File mRootDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRootDirectory = new File(getContext().getCacheDir(), "journal-cache-test");
+        deleteDirectory(mRootDirectory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory(mRootDirectory);
+        super.tearDown();
+    }
+
+    public void testPutGet() {
+        MappedJournalCache cache = newCache();
+        cache.initialize();
+
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null);
+        entry.snapshot = new byte[] { 1, 2, 3 };
+        entry.snapshotVersion = "v1";
+        cache.put("my-key", entry);
+
+        Cache.Entry read = cache.get("my-key");
+        assertNotNull(read);
+        assertTrue(Arrays.equals(entry.data, read.data));
+        assertTrue(Arrays.equals(entry.snapshot, read.snapshot));
+        assertEquals(entry.snapshotVersion, read.snapshotVersion);
+        assertEquals(entry.etag, read.etag);
+        assertEquals(entry.serverDate, read.serverDate);
+        assertEquals(entry.ttl, read.ttl);
+        assertNull(cache.get("other-key"));
+    }
+
+    public void testRebuildsFromIndex() {
+        MappedJournalCache cache = newCache();
+        cache.initialize();
+        Cache.Entry kept = CacheTestUtils.makeRandomCacheEntry(null);
+        cache.put("kept", kept);
+        cache.put("replaced", CacheTestUtils.makeRandomCacheEntry(null));
+        Cache.Entry replacement = CacheTestUtils.makeRandomCacheEntry(null);
+        cache.put("replaced", replacement);
+        cache.put("removed", CacheTestUtils.makeRandomCacheEntry(null));
+        cache.remove("removed");
+
+        MappedJournalCache reloaded = newCache();
+        reloaded.initialize();
+        assertTrue(Arrays.equals(kept.data, reloaded.get("kept").data));
+        assertTrue(Arrays.equals(replacement.data, reloaded.get("replaced").data));
+        assertNull(reloaded.get("removed"));
+        assertEquals(cache.getTotalSize(), reloaded.getTotalSize());
+    }
+
+    public void testCompactionReclaimsSegments() {
+        MappedJournalCache cache = newCache();
+        cache.initialize();
+        // Fill a few segments, then remove most of their entries.
+        for (int i = 0; i < 40; i++) {
+            cache.put("key-" + i, CacheTestUtils.makeRandomCacheEntry(new byte[2 * 1024]));
+        }
+        int segmentsBefore = cache.getSegmentCount();
+        assertTrue(segmentsBefore > 2);
+        for (int i = 0; i < 40; i++) {
+            if (i % 4 != 0) {
+                cache.remove("key-" + i);
+            }
+        }
+        cache.compact();
+
+        assertTrue(cache.getSegmentCount() < segmentsBefore);
+        for (int i = 0; i < 40; i += 4) {
+            assertNotNull(cache.get("key-" + i));
+        }
+
+        MappedJournalCache reloaded = newCache();
+        reloaded.initialize();
+        for (int i = 0; i < 40; i += 4) {
+            assertNotNull(reloaded.get("key-" + i));
+        }
+        assertNull(reloaded.get("key-1"));
+    }
+
+    public void testCompactionDropsExpiredEntries() {
+        MappedJournalCache cache = newCache();
+        cache.initialize();
+        cache.put("expired", CacheTestUtils.makeRandomCacheEntry(new byte[1024], true, true));
+        cache.put("fresh", CacheTestUtils.makeRandomCacheEntry(new byte[1024]));
+        // Roll to a new segment so the first one gets sealed and sparse.
+        cache.put("large", CacheTestUtils.makeRandomCacheEntry(new byte[SEGMENT_SIZE]));
+        cache.compact();
+
+        assertNull(cache.get("expired"));
+        assertNotNull(cache.get("fresh"));
+    }
+
+    public void testInvalidateTags() {
+        MappedJournalCache cache = newCache();
+        cache.initialize();
+        Cache.Entry tagged = CacheTestUtils.makeRandomCacheEntry(null);
+        tagged.tags = new HashSet<String>(Arrays.asList("user:42", "feed"));
+        cache.put("tagged", tagged);
+        cache.put("other", CacheTestUtils.makeRandomCacheEntry(null));
+
+        cache.invalidateTags(false, "feed");
+        assertTrue(cache.get("tagged").refreshNeeded());
+        assertFalse(cache.get("tagged").isExpired());
+        assertFalse(cache.get("other").refreshNeeded());
+
+        MappedJournalCache reloaded = newCache();
+        reloaded.initialize();
+        reloaded.invalidateTags(true, "user:42");
+        Cache.Entry read = reloaded.get("tagged");
+        assertTrue(read.isExpired());
+        assertTrue(Arrays.equals(tagged.data, read.data));
+        assertEquals(tagged.tags, read.tags);
+        assertFalse(reloaded.get("other").isExpired());
+    }
+
+    public void testPrunesToSizeLimit() {
+        int maxSize = 32 * 1024;
+        MappedJournalCache cache = new MappedJournalCache(mRootDirectory, maxSize, SEGMENT_SIZE);
+        cache.initialize();
+        for (int i = 0; i < 50; i++) {
+            cache.put("key-" + i, CacheTestUtils.makeRandomCacheEntry(new byte[2 * 1024]));
+        }
+        assertTrue(cache.getTotalSize() <= maxSize);
+        assertNotNull(cache.get("key-49"));
+        assertNull(cache.get("key-0"));
+    }
+
+    public void testClear() {
+        MappedJournalCache cache = newCache();
+        cache.initialize();
+        cache.put("key", CacheTestUtils.makeRandomCacheEntry(null));
+        cache.clear();
+        assertNull(cache.get("key"));
+        assertEquals(0, cache.getSegmentCount());
+
+        MappedJournalCache reloaded = newCache();
+        reloaded.initialize();
+        assertNull(reloaded.get("key"));
+    }
+
+    private MappedJournalCache newCache() {
+        return new MappedJournalCache(mRootDirectory, 1024 * 1024, SEGMENT_SIZE);
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.volley.Cache;
+import com.android.volley.VolleyLog;
+import com.android.volley.utils.CacheTestUtils;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+public class ShardedDiskBasedCacheTest extends AndroidTestCase {
+
+    private File mRootDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRootDirectory = new File(getContext().getCacheDir(), "sharded-cache-test");
+        deleteDirectory(mRootDirectory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory(mRootDirectory);
+        super.tearDown();
+    }
+
+    public void testPutGet() {
+        ShardedDiskBasedCache cache = new ShardedDiskBasedCache(mRootDirectory);
+        cache.initialize();
+
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null);
+        entry.snapshot = new byte[] { 1, 2, 3 };
+        entry.snapshotVersion = "v1";
+        cache.put("my-key", entry);
+
+        Cache.Entry read = cache.get("my-key");
+        assertNotNull(read);
+        assertTrue(Arrays.equals(entry.data, read.data));
+        assertTrue(Arrays.equals(entry.snapshot, read.snapshot));
+        assertEquals(entry.snapshotVersion, read.snapshotVersion);
+        assertEquals(entry.etag, read.etag);
+        assertEquals(entry.ttl, read.ttl);
+        assertEquals(entry.softTtl, read.softTtl);
+        assertNull(cache.get("other-key"));
+    }
+
+    public void testRemoveAndRemoveByCriteria() {
+        ShardedDiskBasedCache cache = new ShardedDiskBasedCache(mRootDirectory);
+        cache.initialize();
+        cache.put("http://host/users/1", CacheTestUtils.makeRandomCacheEntry(null));
+        cache.put("http://host/users/2", CacheTestUtils.makeRandomCacheEntry(null));
+        cache.put("http://host/feed", CacheTestUtils.makeRandomCacheEntry(null));
+
+        cache.remove("http://host/feed");
+        assertNull(cache.get("http://host/feed"));
+        assertFalse(cache.getFileForKey("http://host/feed").exists());
+
+        cache.removeByCriteria("/users/");
+        assertNull(cache.get("http://host/users/1"));
+        assertNull(cache.get("http://host/users/2"));
+        assertFalse(cache.getFileForKey("http://host/users/1").exists());
+        assertEquals(0, cache.getTotalSize());
+    }
+
+    public void testInitializeReloadsEntries() {
+        ShardedDiskBasedCache cache = new ShardedDiskBasedCache(mRootDirectory);
+        cache.initialize();
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null);
+        cache.put("persistent-key", entry);
+
+        ShardedDiskBasedCache reloaded = new ShardedDiskBasedCache(mRootDirectory);
+        reloaded.initialize();
+        Cache.Entry read = reloaded.get("persistent-key");
+        assertNotNull(read);
+        assertTrue(Arrays.equals(entry.data, read.data));
+        assertEquals(cache.getTotalSize(), reloaded.getTotalSize());
+    }
+
+    public void testInvalidateTags() {
+        ShardedDiskBasedCache cache = new ShardedDiskBasedCache(mRootDirectory);
+        cache.initialize();
+        Cache.Entry tagged = CacheTestUtils.makeRandomCacheEntry(null);
+        tagged.tags = new HashSet<String>(Arrays.asList("user:42", "feed"));
+        cache.put("tagged", tagged);
+        cache.put("other", CacheTestUtils.makeRandomCacheEntry(null));
+
+        cache.invalidateTags(false, "feed");
+        assertTrue(cache.get("tagged").refreshNeeded());
+        assertFalse(cache.get("tagged").isExpired());
+        assertFalse(cache.get("other").refreshNeeded());
+
+        ShardedDiskBasedCache reloaded = new ShardedDiskBasedCache(mRootDirectory);
+        reloaded.initialize();
+        reloaded.invalidateTags(true, "user:42");
+        Cache.Entry read = reloaded.get("tagged");
+        assertTrue(read.isExpired());
+        assertTrue(Arrays.equals(tagged.data, read.data));
+        assertEquals(tagged.tags, read.tags);
+        assertFalse(reloaded.get("other").isExpired());
+    }
+
+    public void testPrunesToSizeLimit() {
+        int maxSize = 64 * 1024;
+        ShardedDiskBasedCache cache = new ShardedDiskBasedCache(mRootDirectory, maxSize, 4);
+        cache.initialize();
+        for (int i = 0; i < 100; i++) {
+            cache.put("key-" + i, CacheTestUtils.makeRandomCacheEntry(new byte[4 * 1024]));
+        }
+        assertTrue(cache.getTotalSize() <= maxSize);
+        // The most recent entry is still there.
+        assertNotNull(cache.get("key-99"));
+    }
+
+    public void testEntryLargerThanAShardShareIsKept() {
+        int maxSize = 64 * 1024;
+        ShardedDiskBasedCache cache = new ShardedDiskBasedCache(mRootDirectory, maxSize, 8);
+        cache.initialize();
+        cache.put("small", CacheTestUtils.makeRandomCacheEntry(new byte[1024]));
+        // Larger than the budget divided by the number of shards.
+        Cache.Entry large = CacheTestUtils.makeRandomCacheEntry(new byte[32 * 1024]);
+        cache.put("large", large);
+
+        Cache.Entry read = cache.get("large");
+        assertNotNull(read);
+        assertTrue(Arrays.equals(large.data, read.data));
+        assertNotNull(cache.get("small"));
+    }
+
+    public void testEntryLargerThanTheBudgetIsKeptUntilReplaced() {
+        int maxSize = 16 * 1024;
+        ShardedDiskBasedCache cache = new ShardedDiskBasedCache(mRootDirectory, maxSize, 4);
+        cache.initialize();
+        cache.put("old", CacheTestUtils.makeRandomCacheEntry(new byte[1024]));
+        cache.put("huge", CacheTestUtils.makeRandomCacheEntry(new byte[32 * 1024]));
+
+        // The entry being put is never the one pruned.
+        assertNotNull(cache.get("huge"));
+        assertNull(cache.get("old"));
+        assertTrue(cache.getFileForKey("huge").exists());
+    }
+
+    /**
+     * Runs the same mix of gets and puts from several threads against a {@link DiskBasedCache}
+     * and a {@link ShardedDiskBasedCache} and logs the throughput of both.
+     */
+    @LargeTest
+    public void testConcurrentThroughput() throws Exception {
+        int threads = 5; // One cache dispatcher and four network dispatchers.
+        int operations = 1000;
+        int keys = 200;
+
+        long single = runStress(new DiskBasedCache(new File(mRootDirectory, "single")),
+                threads, operations, keys);
+        long sharded = runStress(new ShardedDiskBasedCache(new File(mRootDirectory, "sharded")),
+                threads, operations, keys);
+
+        VolleyLog.d("DiskBasedCache: %d ops/s, ShardedDiskBasedCache: %d ops/s",
+                threads * operations * 1000L / Math.max(1, single),
+                threads * operations * 1000L / Math.max(1, sharded));
+    }
+
+    /**
+     * Hammers the cache from several threads and checks every entry read back is consistent.
+     * @return The time spent, in milliseconds.
+     */
+    private long runStress(final Cache cache, int threads, final int operations, final int keys)
+            throws InterruptedException {
+        cache.initialize();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger corrupted = new AtomicInteger();
+        // Each key always holds the same data, of a length and checksum known to the readers.
+        final byte[][] contents = new byte[keys][];
+        final long[] checksums = new long[keys];
+        Random contentRandom = new Random(keys);
+        for (int k = 0; k < keys; k++) {
+            contents[k] = new byte[512 + contentRandom.nextInt(4096)];
+            contentRandom.nextBytes(contents[k]);
+            checksums[k] = checksum(contents[k]);
+        }
+
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        start.await();
+                        for (int i = 0; i < operations; i++) {
+                            int k = random.nextInt(keys);
+                            String key = "stress-" + k;
+                            if (random.nextInt(4) == 0) {
+                                cache.put(key, CacheTestUtils.makeRandomCacheEntry(contents[k]));
+                            } else {
+                                Cache.Entry entry = cache.get(key);
+                                if (entry != null && (entry.data.length != contents[k].length
+                                        || checksum(entry.data) != checksums[k])) {
+                                    corrupted.incrementAndGet();
+                                }
+                            }
+                        }
+                    } catch (InterruptedException ignored) {
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        start.countDown();
+        done.await();
+        long elapsed = SystemClock.elapsedRealtime() - startTime;
+
+        assertEquals(0, corrupted.get());
+        return elapsed;
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDirectory(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.sedona.volley.manager;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.CountDownLatch;
+
+public class BeanCacheMapTest extends AndroidTestCase {
+
+    private BeanCacheMap mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = BeanCacheMap.get();
+        mCache.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.setMaxEntries(0);
+        mCache.setMaxWeight(BeanCacheMap.DEFAULT_MAX_WEIGHT);
+        mCache.clear();
+        super.tearDown();
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        mCache.setMaxEntries(2);
+        long evictions = mCache.getEvictionCount();
+        mCache.put("a", "A", 1);
+        mCache.put("b", "B", 1);
+        // Reading a makes b the least recently used.
+        assertEquals("A", mCache.get("a"));
+        mCache.put("c", "C", 1);
+
+        assertEquals("A", mCache.get("a"));
+        assertNull(mCache.get("b"));
+        assertEquals("C", mCache.get("c"));
+        assertEquals(evictions + 1, mCache.getEvictionCount());
+    }
+
+    public void testBoundedByWeight() {
+        mCache.setMaxWeight(100);
+        mCache.put("a", "A", 40);
+        mCache.put("b", "B", 40);
+        mCache.put("c", "C", 40);
+
+        assertEquals(80, mCache.getWeight());
+        assertNull(mCache.get("a"));
+        assertNotNull(mCache.get("b"));
+
+        // Replacing a bean counts its new weight only.
+        mCache.put("b", "B2", 10);
+        assertEquals(50, mCache.getWeight());
+        assertEquals(2, mCache.size());
+    }
+
+    public void testOnlyBoundedByWeightByDefault() {
+        for (int i = 0; i < 100; i++) {
+            mCache.put("key-" + i, "value", 1024);
+        }
+        assertEquals(100, mCache.size());
+
+        mCache.setMaxWeight(10 * 1024);
+        assertEquals(10, mCache.size());
+        assertNotNull(mCache.get("key-99"));
+    }
+
+    public void testExpiresAfterTimeToLive() {
+        mCache.put("short", "S", 1, 50);
+        mCache.put("forever", "F", 1);
+        assertEquals("S", mCache.get("short"));
+
+        SystemClock.sleep(100);
+        assertNull(mCache.get("short"));
+        assertEquals("F", mCache.get("forever"));
+        assertEquals(1, mCache.getWeight());
+    }
+
+    public void testCountsHitsAndMisses() {
+        long hits = mCache.getHitCount();
+        long misses = mCache.getMissCount();
+        mCache.put("a", "A", 1);
+        mCache.get("a");
+        mCache.get("a");
+        mCache.get("b");
+
+        assertEquals(hits + 2, mCache.getHitCount());
+        assertEquals(misses + 1, mCache.getMissCount());
+    }
+
+    public void testConcurrentAccess() throws Exception {
+        mCache.setMaxWeight(1000);
+        int threads = 4;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 2000; i++) {
+                        String key = "key-" + ((i + offset) % 50);
+                        mCache.put(key, key, 30);
+                        Object value = mCache.get(key);
+                        assertTrue(value == null || key.equals(value));
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+
+        assertTrue(mCache.getWeight() <= 1000);
+        assertEquals(mCache.size() * 30, mCache.getWeight());
+    }
+}
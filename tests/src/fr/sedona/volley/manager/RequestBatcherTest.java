@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.sedona.volley.manager;
+
+import android.test.AndroidTestCase;
+
+import com.android.volley.Cache;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.StreamingRequest;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.android.volley.utils.ImmediateResponseDelivery;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.CookieStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RequestBatcherTest extends AndroidTestCase {
+
+    private static final String ITEMS_URL = "http://host/items/";
+
+    private File mCacheDirectory;
+    private ItemsNetwork mNetwork;
+    private RequestQueue mQueue;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDirectory = new File(getContext().getCacheDir(), "batcher-test");
+        deleteDirectory(mCacheDirectory);
+        mNetwork = new ItemsNetwork();
+        // Create the cache directory before the tests write to the cache.
+        DiskBasedCache cache = new DiskBasedCache(mCacheDirectory);
+        cache.initialize();
+        mQueue = new RequestQueue(cache, mNetwork, 2, new ImmediateResponseDelivery());
+        mQueue.start();
+        RequestBuilder.setQueue(mQueue);
+        RequestBuilder.setGson(new Gson());
+        BeanCacheMap.get().clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mQueue.stop();
+        deleteDirectory(mCacheDirectory);
+        super.tearDown();
+    }
+
+    public void testBatchesCompatibleRequests() throws Exception {
+        RequestBatcher batcher = new RequestBatcher(new ItemsCodec(), 50, 10);
+        CountDownLatch done = new CountDownLatch(3);
+        List<ItemCallback> callbacks = new ArrayList<ItemCallback>();
+        for (int id = 1; id <= 3; id++) {
+            callbacks.add(startItem(batcher, id, done));
+        }
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("http://host/items?ids=1,2,3"), mNetwork.mUrls);
+        for (int i = 0; i < callbacks.size(); i++) {
+            ItemCallback callback = callbacks.get(i);
+            assertEquals(ResultInfo.CODE_QUERY.SUCCESS, callback.mInfo.codeQuery);
+            assertEquals(i + 1, callback.mItem.id);
+            assertEquals("item " + (i + 1), callback.mItem.name);
+        }
+        // Each item is cached under its own key.
+        Cache.Entry entry = mQueue.getCache().get(cacheKey(2));
+        assertNotNull(entry);
+        assertEquals("{\"id\":2,\"name\":\"item 2\"}", new String(entry.data, "UTF-8"));
+    }
+
+    public void testMissingPartFailsOnlyItsRequest() throws Exception {
+        RequestBatcher batcher = new RequestBatcher(new ItemsCodec(), 50, 10);
+        CountDownLatch done = new CountDownLatch(2);
+        ItemCallback found = startItem(batcher, 1, done);
+        ItemCallback missing = startItem(batcher, ItemsNetwork.MISSING_ID, done);
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(1, mNetwork.mUrls.size());
+        assertEquals(ResultInfo.CODE_QUERY.SUCCESS, found.mInfo.codeQuery);
+        assertEquals(ResultInfo.CODE_QUERY.SERVER_ERROR, missing.mInfo.codeQuery);
+        assertNull(missing.mItem);
+        assertNull(mQueue.getCache().get(cacheKey(ItemsNetwork.MISSING_ID)));
+    }
+
+    public void testSingleRequestIsSentAlone() throws Exception {
+        RequestBatcher batcher = new RequestBatcher(new ItemsCodec(), 10, 10);
+        CountDownLatch done = new CountDownLatch(1);
+        ItemCallback callback = startItem(batcher, 7, done);
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(ITEMS_URL + 7), mNetwork.mUrls);
+        assertEquals(7, callback.mItem.id);
+    }
+
+    public void testFullBatchIsSentBeforeTheWindow() throws Exception {
+        RequestBatcher batcher = new RequestBatcher(new ItemsCodec(), 60 * 1000, 2);
+        CountDownLatch done = new CountDownLatch(2);
+        startItem(batcher, 1, done);
+        startItem(batcher, 2, done);
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("http://host/items?ids=1,2"), mNetwork.mUrls);
+    }
+
+    public void testFreshCachedRequestIsNotBatched() throws Exception {
+        Cache.Entry fresh = new Cache.Entry();
+        fresh.data = "{\"id\":2,\"name\":\"cached\"}".getBytes("UTF-8");
+        fresh.ttl = fresh.softTtl = System.currentTimeMillis() + 60 * 1000;
+        mQueue.getCache().put(cacheKey(2), fresh);
+
+        RequestBatcher batcher = new RequestBatcher(new ItemsCodec(), 50, 10);
+        CountDownLatch done = new CountDownLatch(3);
+        ItemCallback cached = startItem(batcher, 2, done);
+        startItem(batcher, 3, done);
+        startItem(batcher, 4, done);
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals("cached", cached.mItem.name);
+        assertEquals(Collections.singletonList("http://host/items?ids=3,4"), mNetwork.mUrls);
+    }
+
+    private static ItemCallback startItem(RequestBatcher batcher, int id, CountDownLatch done) {
+        ItemCallback callback = new ItemCallback(done);
+        RequestBuilder<Item, Object> request =
+                new RequestBuilder<Item, Object>(RequestBuilder.GET, ITEMS_URL + id);
+        request.parserJson(Item.class)
+                .cacheTimeToLive(RequestBuilder.CACHE_TIME_ONE_DAY)
+                .batch(batcher)
+                .callback(callback);
+        request.start();
+        return callback;
+    }
+
+    private static String cacheKey(int id) {
+        return ITEMS_URL + id + RequestBuilder.GET;
+    }
+
+    /** Batches the requests to ITEMS_URL, the response is a Json object of the items by id */
+    private static class ItemsCodec implements BatchCodec {
+
+        @Override
+        public String getBatchKey(RequestBuilder<?, ?> request) {
+            return request.getUrl().startsWith(ITEMS_URL) ? ITEMS_URL : null;
+        }
+
+        @Override
+        public Batch encode(List<RequestBuilder<?, ?>> requests) {
+            StringBuilder url = new StringBuilder("http://host/items?ids=");
+            for (int i = 0; i < requests.size(); i++) {
+                if (i > 0) {
+                    url.append(',');
+                }
+                url.append(getId(requests.get(i)));
+            }
+            Batch batch = new Batch();
+            batch.url = url.toString();
+            return batch;
+        }
+
+        @Override
+        public List<NetworkResponse> decode(List<RequestBuilder<?, ?>> requests,
+                NetworkResponse response) throws IOException {
+            JsonObject items = new JsonParser().parse(new String(response.data, "UTF-8"))
+                    .getAsJsonObject();
+            List<NetworkResponse> parts = new ArrayList<NetworkResponse>(requests.size());
+            for (RequestBuilder<?, ?> request : requests) {
+                JsonElement item = items.get(getId(request));
+                parts.add(item != null
+                        ? new NetworkResponse(item.toString().getBytes("UTF-8")) : null);
+            }
+            return parts;
+        }
+
+        private static String getId(RequestBuilder<?, ?> request) {
+            return request.getUrl().substring(ITEMS_URL.length());
+        }
+    }
+
+    /** Answers single items and batches of items, except the item MISSING_ID */
+    private static class ItemsNetwork implements Network {
+        static final int MISSING_ID = 404;
+
+        final List<String> mUrls = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) {
+            String url = request.getUrl();
+            mUrls.add(url);
+            try {
+                if (url.startsWith(ITEMS_URL)) {
+                    return new NetworkResponse(item(url.substring(ITEMS_URL.length()))
+                            .getBytes("UTF-8"));
+                }
+                StringBuilder body = new StringBuilder("{");
+                for (String id : url.substring(url.indexOf('=') + 1).split(",")) {
+                    if (Integer.parseInt(id) == MISSING_ID) {
+                        continue;
+                    }
+                    if (body.length() > 1) {
+                        body.append(',');
+                    }
+                    body.append('"').append(id).append("\":").append(item(id));
+                }
+                body.append('}');
+                return new NetworkResponse(body.toString().getBytes("UTF-8"));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private static String item(String id) {
+            return "{\"id\":" + id + ",\"name\":\"item " + id + "\"}";
+        }
+
+        @Override
+        public Response<?> performStreamingRequest(StreamingRequest<?> request, Cache cache) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CookieStore getCookieStore() {
+            return null;
+        }
+    }
+
+    private static class ItemCallback implements QueryCallback<Item, Object> {
+        private final CountDownLatch mDone;
+        ResultInfo mInfo;
+        Item mItem;
+
+        ItemCallback(CountDownLatch done) {
+            mDone = done;
+        }
+
+        @Override
+        public void onQueryFinished(int idQuery, ResultInfo queryInfo, Item data, Object error) {
+            mInfo = queryInfo;
+            mItem = data;
+            mDone.countDown();
+        }
+    }
+
+    private static class Item {
+        int id;
+        String name;
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2014 Sedona Paris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.sedona.volley.manager;
+
+import android.test.AndroidTestCase;
+
+import com.android.volley.Cache;
+import com.android.volley.ExecutorDelivery;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.StreamingRequest;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.net.CookieStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+public class RequestBuilderTest extends AndroidTestCase {
+
+    private static final Type ITEMS_TYPE = new TypeToken<List<Item>>() { }.getType();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        RequestBuilder.setGson(new Gson());
+    }
+
+    public void testParseJsonUsesResponseCharset() throws Exception {
+        RequestBuilder<List<Item>, Object> request = newRequest();
+        byte[] data = "[{\"name\":\"café\",\"id\":1}]".getBytes("ISO-8859-1");
+
+        Response<List<Item>> response = request.parseNetworkResponse(
+                new NetworkResponse(data, contentType("application/json; charset=ISO-8859-1")));
+        assertEquals("café", response.result.get(0).name);
+
+        // Json defaults to UTF-8.
+        data = "[{\"name\":\"café\",\"id\":1}]".getBytes("UTF-8");
+        response = request.parseNetworkResponse(
+                new NetworkResponse(data, contentType("application/json")));
+        assertEquals("café", response.result.get(0).name);
+    }
+
+    public void testParseJsonWithPreprocessor() throws Exception {
+        RequestBuilder<List<Item>, Object> request = newRequest();
+        request.setPreprocessor(new RequestBuilder.StringPreprocessor() {
+            @Override
+            public String preprocess(String s) {
+                return s.substring(s.indexOf('['));
+            }
+        });
+        byte[] data = "while(1);[{\"name\":\"a\",\"id\":2}]".getBytes("UTF-8");
+
+        Response<List<Item>> response = request.parseNetworkResponse(
+                new NetworkResponse(data, contentType("application/json")));
+        assertEquals(2, response.result.get(0).id);
+    }
+
+    public void testParseJsonStream() throws Exception {
+        RequestBuilder<List<Item>, Object> request = newRequest();
+        byte[] data = makePayload(64 * 1024);
+
+        Response<List<Item>> response = request.parseNetworkStream(
+                new NetworkResponse(200, null, contentType("application/json"), false),
+                new ByteArrayInputStream(data));
+        assertEquals(request.parseNetworkResponse(new NetworkResponse(data)).result.size(),
+                response.result.size());
+    }
+
+    public void testSnapshotReadOnCacheHit() throws Exception {
+        ItemsSnapshotCodec codec = new ItemsSnapshotCodec();
+        RequestBuilder.setSnapshotCodec(codec);
+        try {
+            RequestBuilder<List<Item>, Object> request = newRequest();
+            request.cacheTimeToLive(RequestBuilder.CACHE_TIME_ONE_DAY);
+            Response<List<Item>> response = request.parseNetworkResponse(new NetworkResponse(
+                    "[{\"name\":\"a\",\"id\":2}]".getBytes("UTF-8")));
+            Cache.Entry entry = response.cacheEntry;
+            assertNotNull(entry.snapshot);
+            assertEquals(codec.mVersion, entry.snapshotVersion);
+
+            List<Item> items = newRequest().parseCacheEntry(entry).result;
+            assertEquals(1, codec.mDecodeCount);
+            assertEquals(2, items.get(0).id);
+            assertEquals("a", items.get(0).name);
+
+            // The Json is parsed when the snapshot has another version.
+            codec.mVersion = "items-2";
+            items = newRequest().parseCacheEntry(entry).result;
+            assertEquals(1, codec.mDecodeCount);
+            assertEquals("a", items.get(0).name);
+        } finally {
+            RequestBuilder.setSnapshotCodec(null);
+        }
+    }
+
+    /**
+     * Delivers a network response, then a cached one and its refresh, and fails if the cache is
+     * accessed while delivering any of them.
+     */
+    public void testDeliveryDoesNotAccessCache() throws Exception {
+        File directory = new File(getContext().getCacheDir(), "strict-delivery-test");
+        StrictCache cache = new StrictCache(new DiskBasedCache(directory));
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) {
+                return new NetworkResponse("[{\"name\":\"a\",\"id\":1}]".getBytes());
+            }
+
+            @Override
+            public Response<?> performStreamingRequest(StreamingRequest<?> request, Cache c) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CookieStore getCookieStore() {
+                return null;
+            }
+        };
+        RequestQueue queue = new RequestQueue(cache, network, 1,
+                new ExecutorDelivery(cache.getDeliveryExecutor()));
+        queue.start();
+        RequestBuilder.setQueue(queue);
+        try {
+            CountDownLatch first = new CountDownLatch(1);
+            ItemsCallback fromNetwork = new ItemsCallback(first);
+            queue.add(newRequest().cacheTimeToLive(RequestBuilder.CACHE_TIME_ONE_DAY)
+                    .callback(fromNetwork));
+            assertTrue(first.await(2, TimeUnit.SECONDS));
+
+            // Served from the cache first, then refreshed from the network.
+            CountDownLatch second = new CountDownLatch(2);
+            ItemsCallback fromCache = new ItemsCallback(second);
+            queue.add(newRequest().cacheTimeToLive(RequestBuilder.CACHE_TIME_ONE_DAY)
+                    .callback(fromCache));
+            assertTrue(second.await(2, TimeUnit.SECONDS));
+
+            assertEquals(Collections.emptyList(), cache.mViolations);
+            assertTrue(fromNetwork.mInfos.get(0).dataDatetime > 0);
+            assertTrue(fromCache.mInfos.get(0).dataDatetime > 0);
+            assertEquals(Request.STATUS_RESULT.intermediate, fromCache.mInfos.get(0).orderResult);
+        } finally {
+            queue.stop();
+            queue.getCache().clear();
+        }
+    }
+
+    public void testBeanCacheFollowsCacheEntry() throws Exception {
+        BeanCacheMap.get().clear();
+        List<Item> items = new ArrayList<Item>();
+
+        // An intermediate response is refreshed right after: it is not kept.
+        RequestBuilder<List<Item>, Object> request = newRequest();
+        request.allowBeanCache(true).cacheTimeToLive(RequestBuilder.CACHE_TIME_ONE_DAY);
+        Response<List<Item>> response = cachedResponse(items, 60 * 1000);
+        response.intermediate = true;
+        request.deliverResponse(response);
+        assertNull(BeanCacheMap.get().get(request.getCacheKey()));
+
+        // An entry expiring before the bean TTL: the bean expires with it.
+        request.deliverResponse(cachedResponse(items, 50));
+        assertSame(items, BeanCacheMap.get().get(request.getCacheKey()));
+        Thread.sleep(100);
+        assertNull(BeanCacheMap.get().get(request.getCacheKey()));
+
+        // An expired entry is not kept at all.
+        request.deliverResponse(cachedResponse(items, -1000));
+        assertNull(BeanCacheMap.get().get(request.getCacheKey()));
+        BeanCacheMap.get().clear();
+    }
+
+    public void testStaleResponseReportedInResultInfo() throws Exception {
+        ItemsCallback callback = new ItemsCallback(new CountDownLatch(1));
+        RequestBuilder<List<Item>, Object> request = newRequest();
+        request.callback(callback);
+        Response<List<Item>> response = cachedResponse(new ArrayList<Item>(), -1000);
+        response.stale = true;
+        request.deliverResponse(response);
+
+        assertEquals(1, callback.mInfos.size());
+        assertTrue(callback.mInfos.get(0).dataIsStale);
+    }
+
+    private static Response<List<Item>> cachedResponse(List<Item> items, long remainingTtl) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.ttl = System.currentTimeMillis() + remainingTtl;
+        entry.softTtl = entry.ttl;
+        return Response.success(items, null).setCacheMetadata(entry, Response.Origin.CACHE);
+    }
+
+    private static RequestBuilder<List<Item>, Object> newRequest() {
+        RequestBuilder<List<Item>, Object> request =
+                new RequestBuilder<List<Item>, Object>(RequestBuilder.GET, "http://foo");
+        request.parserJson(ITEMS_TYPE);
+        return request;
+    }
+
+    private static Map<String, String> contentType(String value) {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", value);
+        return headers;
+    }
+
+    /** Returns a Json array of items of about the given size. */
+    private static byte[] makePayload(int size) throws Exception {
+        StringBuilder builder = new StringBuilder(size + 64);
+        builder.append('[');
+        for (int i = 0; builder.length() < size; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"id\":").append(i)
+                    .append(",\"name\":\"item number ").append(i).append("\"}");
+        }
+        builder.append(']');
+        return builder.toString().getBytes("UTF-8");
+    }
+
+    private static class Item {
+        int id;
+        String name;
+    }
+
+    /** Writes lists of items as their count followed by the id and name of each */
+    private static class ItemsSnapshotCodec implements SnapshotCodec {
+        String mVersion = "items-1";
+        int mDecodeCount;
+
+        @Override
+        public String getVersion(Type type) {
+            return ITEMS_TYPE.equals(type) ? mVersion : null;
+        }
+
+        @Override
+        public byte[] encode(Type type, Object data) throws IOException {
+            List<Item> items = (List<Item>) data;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(items.size());
+            for (Item item : items) {
+                out.writeInt(item.id);
+                out.writeUTF(item.name);
+            }
+            out.close();
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public Object decode(Type type, byte[] snapshot) throws IOException {
+            mDecodeCount++;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+            int count = in.readInt();
+            List<Item> items = new ArrayList<Item>(count);
+            for (int i = 0; i < count; i++) {
+                Item item = new Item();
+                item.id = in.readInt();
+                item.name = in.readUTF();
+                items.add(item);
+            }
+            return items;
+        }
+    }
+
+    private static class ItemsCallback implements QueryCallback<List<Item>, Object> {
+        private final CountDownLatch mDone;
+        final List<ResultInfo> mInfos =
+                Collections.synchronizedList(new ArrayList<ResultInfo>());
+
+        ItemsCallback(CountDownLatch done) {
+            mDone = done;
+        }
+
+        @Override
+        public void onQueryFinished(int idQuery, ResultInfo queryInfo, List<Item> data,
+                Object error) {
+            mInfos.add(queryInfo);
+            mDone.countDown();
+        }
+    }
+
+    /**
+     * A cache recording every call made while a response is delivered through the executor it
+     * gives, like a strict mode policy on the delivery thread.
+     */
+    private static class StrictCache implements Cache {
+        private final Cache mCache;
+        private final ThreadLocal<Boolean> mDelivering = new ThreadLocal<Boolean>();
+        final List<String> mViolations = Collections.synchronizedList(new ArrayList<String>());
+
+        StrictCache(Cache cache) {
+            mCache = cache;
+        }
+
+        Executor getDeliveryExecutor() {
+            return new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    mDelivering.set(Boolean.TRUE);
+                    try {
+                        command.run();
+                    } finally {
+                        mDelivering.set(null);
+                    }
+                }
+            };
+        }
+
+        private void check(String call) {
+            if (mDelivering.get() != null) {
+                mViolations.add(call);
+            }
+        }
+
+        @Override
+        public Entry get(String key) {
+            check("get");
+            return mCache.get(key);
+        }
+
+        @Override
+        public void put(String key, Entry entry) {
+            check("put");
+            mCache.put(key, entry);
+        }
+
+        @Override
+        public void initialize() {
+            mCache.initialize();
+        }
+
+        @Override
+        public void invalidate(String key, boolean fullExpire) {
+            check("invalidate");
+            mCache.invalidate(key, fullExpire);
+        }
+
+        @Override
+        public void invalidateTags(boolean fullExpire, String... tags) {
+            check("invalidateTags");
+            mCache.invalidateTags(fullExpire, tags);
+        }
+
+        @Override
+        public void remove(String key) {
+            check("remove");
+            mCache.remove(key);
+        }
+
+        @Override
+        public void removeByCriteria(String... criteria) {
+            check("removeByCriteria");
+            mCache.removeByCriteria(criteria);
+        }
+
+        @Override
+        public void clear() {
+            mCache.clear();
+        }
+    }
+}